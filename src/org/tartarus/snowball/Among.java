@@ -3,6 +3,19 @@ package org.tartarus.snowball;
 import java.lang.reflect.Method;
 
 public class Among {
+    /**
+     * An entry without a routine to call when it matches. find_among then
+     * returns the result directly, without reflection.
+     */
+    public Among (String s, int substring_i, int result) {
+        this.s_size = s.length();
+        this.s = s.toCharArray();
+        this.substring_i = substring_i;
+	this.result = result;
+	this.method = null;
+	this.methodobject = null;
+    }
+
     public Among (String s, int substring_i, int result,
 		  String methodname, SnowballProgram methodobject) {
         this.s_size = s.length();
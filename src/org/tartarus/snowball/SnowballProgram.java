@@ -2,10 +2,22 @@
 package org.tartarus.snowball;
 import java.lang.reflect.InvocationTargetException;
 
+/**
+ * Runtime for the generated stemmers. The current string is kept in a
+ * reusable char[] instead of a StringBuffer, so no character access is
+ * synchronized and getCurrent() only copies the result into a String.
+ * An instance is not thread-safe; use one per thread.
+ */
 public class SnowballProgram {
+    /**
+     * Buffers grown beyond this size by a long word are not kept for the
+     * next word.
+     */
+    private static final int RETAINED_CAPACITY = 256;
+
     protected SnowballProgram()
     {
-	current = new StringBuffer();
+	current = new char[16];
 	setCurrent("");
     }
 
@@ -14,9 +26,14 @@ public class SnowballProgram {
      */
     public void setCurrent(String value)
     {
-	current.replace(0, current.length(), value);
+	int n = value.length();
+	if (n > current.length || current.length > RETAINED_CAPACITY) {
+	    current = new char[Math.max(n, 16)];
+	}
+	value.getChars(0, n, current, 0);
+	length = n;
 	cursor = 0;
-	limit = current.length();
+	limit = length;
 	limit_backward = 0;
 	bra = cursor;
 	ket = limit;
@@ -27,19 +44,12 @@ public class SnowballProgram {
      */
     public String getCurrent()
     {
-        String result = current.toString();
-        // Make a new StringBuffer.  If we reuse the old one, and a user of
-        // the library keeps a reference to the buffer returned (for example,
-        // by converting it to a String in a way which doesn't force a copy),
-        // the buffer size will not decrease, and we will risk wasting a large
-        // amount of memory.
-        // Thanks to Wolfram Esser for spotting this problem.
-        current = new StringBuffer();
-        return result;
+	return new String(current, 0, length);
     }
 
-    // current string
-    protected StringBuffer current;
+    // current string, the first length chars of current
+    protected char [] current;
+    protected int length;
 
     protected int cursor;
     protected int limit;
@@ -50,6 +60,7 @@ public class SnowballProgram {
     protected void copy_from(SnowballProgram other)
     {
 	current          = other.current;
+	length           = other.length;
 	cursor           = other.cursor;
 	limit            = other.limit;
 	limit_backward   = other.limit_backward;
@@ -60,7 +71,7 @@ public class SnowballProgram {
     protected boolean in_grouping(char [] s, int min, int max)
     {
 	if (cursor >= limit) return false;
-	char ch = current.charAt(cursor);
+	char ch = current[cursor];
 	if (ch > max || ch < min) return false;
 	ch -= min;
 	if ((s[ch >> 3] & (0X1 << (ch & 0X7))) == 0) return false;
@@ -71,7 +82,7 @@ public class SnowballProgram {
     protected boolean in_grouping_b(char [] s, int min, int max)
     {
 	if (cursor <= limit_backward) return false;
-	char ch = current.charAt(cursor - 1);
+	char ch = current[cursor - 1];
 	if (ch > max || ch < min) return false;
 	ch -= min;
 	if ((s[ch >> 3] & (0X1 << (ch & 0X7))) == 0) return false;
@@ -82,7 +93,7 @@ public class SnowballProgram {
     protected boolean out_grouping(char [] s, int min, int max)
     {
 	if (cursor >= limit) return false;
-	char ch = current.charAt(cursor);
+	char ch = current[cursor];
 	if (ch > max || ch < min) {
 	    cursor++;
 	    return true;
@@ -98,7 +109,7 @@ public class SnowballProgram {
     protected boolean out_grouping_b(char [] s, int min, int max)
     {
 	if (cursor <= limit_backward) return false;
-	char ch = current.charAt(cursor - 1);
+	char ch = current[cursor - 1];
 	if (ch > max || ch < min) {
 	    cursor--;
 	    return true;
@@ -114,7 +125,7 @@ public class SnowballProgram {
     protected boolean in_range(int min, int max)
     {
 	if (cursor >= limit) return false;
-	char ch = current.charAt(cursor);
+	char ch = current[cursor];
 	if (ch > max || ch < min) return false;
 	cursor++;
 	return true;
@@ -123,7 +134,7 @@ public class SnowballProgram {
     protected boolean in_range_b(int min, int max)
     {
 	if (cursor <= limit_backward) return false;
-	char ch = current.charAt(cursor - 1);
+	char ch = current[cursor - 1];
 	if (ch > max || ch < min) return false;
 	cursor--;
 	return true;
@@ -132,7 +143,7 @@ public class SnowballProgram {
     protected boolean out_range(int min, int max)
     {
 	if (cursor >= limit) return false;
-	char ch = current.charAt(cursor);
+	char ch = current[cursor];
 	if (!(ch > max || ch < min)) return false;
 	cursor++;
 	return true;
@@ -141,7 +152,7 @@ public class SnowballProgram {
     protected boolean out_range_b(int min, int max)
     {
 	if (cursor <= limit_backward) return false;
-	char ch = current.charAt(cursor - 1);
+	char ch = current[cursor - 1];
 	if(!(ch > max || ch < min)) return false;
 	cursor--;
 	return true;
@@ -152,7 +163,7 @@ public class SnowballProgram {
 	if (limit - cursor < s_size) return false;
 	int i;
 	for (i = 0; i != s_size; i++) {
-	    if (current.charAt(cursor + i) != s.charAt(i)) return false;
+	    if (current[cursor + i] != s.charAt(i)) return false;
 	}
 	cursor += s_size;
 	return true;
@@ -163,7 +174,7 @@ public class SnowballProgram {
 	if (cursor - limit_backward < s_size) return false;
 	int i;
 	for (i = 0; i != s_size; i++) {
-	    if (current.charAt(cursor - s_size + i) != s.charAt(i)) return false;
+	    if (current[cursor - s_size + i] != s.charAt(i)) return false;
 	}
 	cursor -= s_size;
 	return true;
@@ -202,7 +213,7 @@ public class SnowballProgram {
 		    diff = -1;
 		    break;
 		}
-		diff = current.charAt(c + common) - w.s[i2];
+		diff = current[c + common] - w.s[i2];
 		if (diff != 0) break;
 		common++;
 	    }
@@ -275,7 +286,7 @@ public class SnowballProgram {
 		    diff = -1;
 		    break;
 		}
-		diff = current.charAt(c - 1 - common) - w.s[i2];
+		diff = current[c - 1 - common] - w.s[i2];
 		if (diff != 0) break;
 		common++;
 	    }
@@ -325,7 +336,15 @@ public class SnowballProgram {
     protected int replace_s(int c_bra, int c_ket, String s)
     {
 	int adjustment = s.length() - (c_ket - c_bra);
-	current.replace(c_bra, c_ket, s);
+	int newLength = length + adjustment;
+	if (newLength > current.length) {
+	    char [] grown = new char[Math.max(newLength, current.length * 2)];
+	    System.arraycopy(current, 0, grown, 0, length);
+	    current = grown;
+	}
+	System.arraycopy(current, c_ket, current, c_ket + adjustment, length - c_ket);
+	s.getChars(0, s.length(), current, c_bra);
+	length = newLength;
 	limit += adjustment;
 	if (cursor >= c_ket) cursor += adjustment;
 	else if (cursor > c_bra) cursor = c_bra;
@@ -337,7 +356,7 @@ public class SnowballProgram {
 	if (bra < 0 ||
 	    bra > ket ||
 	    ket > limit ||
-	    limit > current.length())   // this line could be removed
+	    limit > length)   // this line could be removed
 	{
 	    System.err.println("faulty slice operation");
 	// FIXME: report error somehow.
@@ -381,8 +400,8 @@ public class SnowballProgram {
     protected StringBuffer slice_to(StringBuffer s)
     {
 	slice_check();
-	int len = ket - bra;
-	s.replace(0, s.length(), current.substring(bra, ket));
+	s.setLength(0);
+	s.append(current, bra, ket - bra);
 	return s;
     }
 
@@ -390,20 +409,22 @@ public class SnowballProgram {
     protected StringBuilder slice_to(StringBuilder s)
     {
 	slice_check();
-	int len = ket - bra;
-	s.replace(0, s.length(), current.substring(bra, ket));
+	s.setLength(0);
+	s.append(current, bra, ket - bra);
 	return s;
     }
 
     protected StringBuffer assign_to(StringBuffer s)
     {
-	s.replace(0, s.length(), current.substring(0, limit));
+	s.setLength(0);
+	s.append(current, 0, limit);
 	return s;
     }
 
     protected StringBuilder assign_to(StringBuilder s)
     {
-	s.replace(0, s.length(), current.substring(0, limit));
+	s.setLength(0);
+	s.append(current, 0, limit);
 	return s;
     }
 
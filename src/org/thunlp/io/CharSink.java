@@ -0,0 +1,8 @@
+package org.thunlp.io;
+
+/**
+ * 逐个接收字符的对象，DocumentReader可以把解码出的字符直接交给它，不经过缓冲区
+ */
+public interface CharSink {
+	public void append( char c );
+}
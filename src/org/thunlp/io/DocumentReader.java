@@ -0,0 +1,361 @@
+package org.thunlp.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 把整个文件（或者文件开头的一部分）解码成字符的读取器，结果和用InputStreamReader
+ * 读入相同，无法解码的字节同样换成替换字符。
+ *
+ * 按文件长度一次分配缓冲区，不需要反复扩大和复制；小文件一次读入一个重复使用的
+ * ByteBuffer，大文件用内存映射，直接从映射的ByteBuffer解码。只需要开头一部分字符时，
+ * 解码到足够的字符就停止，大文件后面的部分不会被读入。
+ *
+ * 也可以把解码出的字符逐个交给一个CharSink，不经过字符缓冲区。这时UTF-8和GBK由这里
+ * 直接从字节解码（GBK用JDK解码器预先生成的双字节表），遇到不合法的字节序列时从这个
+ * 位置起改用CharsetDecoder，所以结果仍然和InputStreamReader相同。
+ *
+ * 解码器和缓冲区在多次读取之间重复使用，所以一个对象不能在多个线程中同时使用。
+ */
+public class DocumentReader {
+	/**
+	 * 超过这个长度的文件用内存映射读入
+	 */
+	private static final long MAP_THRESHOLD = 256 * 1024;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	/**
+	 * 逐个字符解码时的字节格式
+	 */
+	private static final int GENERIC = 0;
+	private static final int UTF8 = 1;
+	private static final int GBK = 2;
+
+	private final String encoding;
+	private final CharsetDecoder decoder;
+	private final int format;
+	private ByteBuffer bytes = ByteBuffer.allocate(0);
+	private CharBuffer chars = CharBuffer.allocate(0);
+	/**
+	 * 逐个字符解码时CharsetDecoder的输出缓冲区
+	 */
+	private CharBuffer pending = null;
+
+	/**
+	 * GBK双字节字符的解码表，由JDK的GBK解码器对所有双字节组合解码得到。下标为
+	 * (第一个字节 - 0x81) * 192 + (第二个字节 - 0x40)，不能解码成一个字符的组合为0
+	 */
+	private static class GbkTable {
+		static final char [] TABLE = build();
+
+		private static char [] build() {
+			Charset gbk;
+			try {
+				gbk = Charset.forName("GBK");
+			} catch ( IllegalArgumentException e ) {
+				return null;
+			}
+			CharsetDecoder d = gbk.newDecoder();
+			char [] table = new char[126 * 192];
+			ByteBuffer in = ByteBuffer.allocate(2);
+			CharBuffer out = CharBuffer.allocate(4);
+			for ( int lead = 0x81 ; lead <= 0xFE ; lead++ ) {
+				for ( int trail = 0x40 ; trail <= 0xFF ; trail++ ) {
+					in.clear();
+					in.put((byte) lead).put((byte) trail).flip();
+					out.clear();
+					d.reset();
+					if ( d.decode(in, out, true).isUnderflow() && ! in.hasRemaining()
+							&& d.flush(out).isUnderflow() && out.position() == 1 ) {
+						table[(lead - 0x81) * 192 + trail - 0x40] = out.get(0);
+					}
+				}
+			}
+			return table;
+		}
+	}
+
+	public DocumentReader() {
+		this(Charset.forName("UTF-8"));
+	}
+
+	public DocumentReader( String encoding ) throws UnsupportedEncodingException {
+		this(charset(encoding));
+	}
+
+	public DocumentReader( Charset charset ) {
+		this.encoding = charset.name();
+		this.decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		if ( "UTF-8".equals(encoding) ) {
+			format = UTF8;
+		} else if ( "GBK".equals(encoding) && GbkTable.TABLE != null ) {
+			format = GBK;
+		} else {
+			format = GENERIC;
+		}
+	}
+
+	private static Charset charset( String encoding ) throws UnsupportedEncodingException {
+		try {
+			return Charset.forName(encoding);
+		} catch ( IllegalArgumentException e ) {
+			throw new UnsupportedEncodingException(encoding);
+		}
+	}
+
+	/**
+	 * @return 字符集的标准名称
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * 读入整个文件
+	 * @return 文件的内容，在下一次读取之前有效
+	 */
+	public CharBuffer read( File file ) throws IOException {
+		return read(file, MAX_CAPACITY);
+	}
+
+	/**
+	 * 读入文件开头的最多maxChars个字符
+	 * @return 文件的前min(文件的字符数, maxChars)个字符，在下一次读取之前有效
+	 */
+	public CharBuffer read( File file, int maxChars ) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			return decode(open(input.getChannel()), maxChars);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * 把文件开头的最多maxChars个字符按顺序逐个交给sink，字符和read(file, maxChars)
+	 * 的结果相同
+	 * @return 交给sink的字符数
+	 */
+	public int read( File file, int maxChars, CharSink sink ) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			return decode(open(input.getChannel()), maxChars, sink);
+		} finally {
+			input.close();
+		}
+	}
+
+	private ByteBuffer open( FileChannel channel ) throws IOException {
+		long size = channel.size();
+		if ( size > MAP_THRESHOLD ) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		return readFully(channel, (int) size);
+	}
+
+	/**
+	 * 把文件读入重复使用的bytes，文件在读的过程中变长时扩大缓冲区
+	 */
+	private ByteBuffer readFully( FileChannel channel, int size ) throws IOException {
+		// 多留一个字节，读到文件结尾时不需要扩大
+		if ( bytes.capacity() < size + 1 ) {
+			bytes = ByteBuffer.allocate(size + 1);
+		}
+		bytes.clear();
+		while ( channel.read(bytes) >= 0 ) {
+			if ( ! bytes.hasRemaining() ) {
+				ByteBuffer larger = ByteBuffer.allocate(grow(bytes.capacity(), MAX_CAPACITY));
+				bytes.flip();
+				larger.put(bytes);
+				bytes = larger;
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+	private static int grow( int capacity, int limit ) {
+		return (int) Math.min((long) limit, Math.max(16L, 2L * capacity));
+	}
+
+	private CharBuffer decode( ByteBuffer in, int maxChars ) {
+		// 多留一个位置，最后一个字符是代理对时也能解码出maxChars个字符
+		int limit = (int) Math.min((long) maxChars + 1, MAX_CAPACITY);
+		long estimate = (long) Math.ceil(in.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+		int capacity = (int) Math.min(estimate, limit);
+		if ( chars.capacity() < capacity ) {
+			chars = CharBuffer.allocate(capacity);
+		}
+		chars.clear();
+		chars.limit(capacity);
+		decoder.reset();
+		CoderResult result;
+		while ( ( result = decoder.decode(in, chars, true) ).isOverflow()
+				&& chars.position() < maxChars && chars.limit() < limit ) {
+			growChars(limit);
+		}
+		if ( result.isUnderflow() ) {
+			while ( decoder.flush(chars).isOverflow()
+					&& chars.position() < maxChars && chars.limit() < limit ) {
+				growChars(limit);
+			}
+		}
+		chars.flip();
+		if ( chars.limit() > maxChars ) {
+			chars.limit(maxChars);
+		}
+		return chars;
+	}
+
+	/**
+	 * 逐个字符解码。UTF-8和GBK在这里解码，遇到不合法或者不完整的字节序列时停下，
+	 * 剩下的部分交给decodeGeneric。这两种编码的解码器在字符之间没有状态，从一个字符
+	 * 的边界开始解码和从头解码的结果相同
+	 */
+	private int decode( ByteBuffer in, int maxChars, CharSink sink ) {
+		int n = 0;
+		int i = in.position();
+		int end = in.limit();
+		if ( format == UTF8 ) {
+			while ( i < end && n < maxChars ) {
+				int b = in.get(i);
+				if ( b >= 0 ) {
+					sink.append((char) b);
+					n++;
+					i++;
+					continue;
+				}
+				b &= 0xFF;
+				if ( b >= 0xC2 && b <= 0xDF ) {
+					int b1 = continuation(in, i + 1, end, 0x80, 0xBF);
+					if ( b1 < 0 ) {
+						break;
+					}
+					sink.append((char) ( ( b & 0x1F ) << 6 | b1 & 0x3F ));
+					n++;
+					i += 2;
+				} else if ( b >= 0xE0 && b <= 0xEF ) {
+					// E0后面不能是过长的编码，ED后面不能是代理字符
+					int b1 = continuation(in, i + 1, end, b == 0xE0 ? 0xA0 : 0x80,
+							b == 0xED ? 0x9F : 0xBF);
+					int b2 = continuation(in, i + 2, end, 0x80, 0xBF);
+					if ( b1 < 0 || b2 < 0 ) {
+						break;
+					}
+					sink.append((char) ( ( b & 0x0F ) << 12 | ( b1 & 0x3F ) << 6 | b2 & 0x3F ));
+					n++;
+					i += 3;
+				} else if ( b >= 0xF0 && b <= 0xF4 ) {
+					int b1 = continuation(in, i + 1, end, b == 0xF0 ? 0x90 : 0x80,
+							b == 0xF4 ? 0x8F : 0xBF);
+					int b2 = continuation(in, i + 2, end, 0x80, 0xBF);
+					int b3 = continuation(in, i + 3, end, 0x80, 0xBF);
+					if ( b1 < 0 || b2 < 0 || b3 < 0 ) {
+						break;
+					}
+					int cp = ( b & 0x07 ) << 18 | ( b1 & 0x3F ) << 12 | ( b2 & 0x3F ) << 6 | b3 & 0x3F;
+					sink.append(Character.highSurrogate(cp));
+					if ( ++n < maxChars ) {
+						sink.append(Character.lowSurrogate(cp));
+						n++;
+					}
+					i += 4;
+				} else {
+					break;
+				}
+			}
+		} else if ( format == GBK ) {
+			char [] table = GbkTable.TABLE;
+			while ( i < end && n < maxChars ) {
+				int b = in.get(i);
+				if ( b >= 0 ) {
+					sink.append((char) b);
+					n++;
+					i++;
+					continue;
+				}
+				b &= 0xFF;
+				if ( b < 0x81 || b > 0xFE || i + 1 >= end ) {
+					break;
+				}
+				int trail = in.get(i + 1) & 0xFF;
+				char c = trail >= 0x40 ? table[(b - 0x81) * 192 + trail - 0x40] : 0;
+				if ( c == 0 ) {
+					break;
+				}
+				sink.append(c);
+				n++;
+				i += 2;
+			}
+		}
+		if ( i < end && n < maxChars ) {
+			in.position(i);
+			n = decodeGeneric(in, maxChars, n, sink);
+		}
+		return n;
+	}
+
+	/**
+	 * @return 位置j上在[lo, hi]之间的字节，超出范围或者已经到结尾时返回-1
+	 */
+	private static int continuation( ByteBuffer in, int j, int end, int lo, int hi ) {
+		if ( j >= end ) {
+			return -1;
+		}
+		int b = in.get(j) & 0xFF;
+		return b >= lo && b <= hi ? b : -1;
+	}
+
+	/**
+	 * 用CharsetDecoder解码in中剩下的字节，接着已经交给sink的n个字符输出
+	 */
+	private int decodeGeneric( ByteBuffer in, int maxChars, int n, CharSink sink ) {
+		if ( pending == null ) {
+			pending = CharBuffer.allocate(1024);
+		}
+		decoder.reset();
+		boolean flushing = false;
+		while ( n < maxChars ) {
+			pending.clear();
+			CoderResult result = flushing ? decoder.flush(pending) : decoder.decode(in, pending, true);
+			pending.flip();
+			while ( pending.hasRemaining() && n < maxChars ) {
+				sink.append(pending.get());
+				n++;
+			}
+			if ( result.isUnderflow() ) {
+				if ( flushing ) {
+					break;
+				}
+				flushing = true;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * 扩大chars中可以写入的部分，不超过limit
+	 */
+	private void growChars( int limit ) {
+		int size = grow(chars.limit(), limit);
+		if ( size <= chars.capacity() ) {
+			chars.limit(size);
+			return;
+		}
+		CharBuffer larger = CharBuffer.allocate(size);
+		chars.flip();
+		larger.put(chars);
+		chars = larger;
+	}
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 
 public class TextFileReader {
 	BufferedReader br;
@@ -16,8 +17,7 @@ public class TextFileReader {
 	 * @throws IOException
 	 */
 	public String readAll() throws IOException{
-		int bufsize = 4096;
-		char [] buffer = new char[bufsize];
+		char [] buffer = new char[4096];
 		int read, fill = 0;
 		while ( true ) {
 			read = br.read(buffer, fill, buffer.length - fill);
@@ -26,11 +26,8 @@ public class TextFileReader {
 			}
 			fill += read;
 			if ( fill >= buffer.length ) {
-				char [] newbuffer = new char[bufsize + buffer.length];
-				for ( int i = 0 ; i < buffer.length; i++ ) 
-					newbuffer[i] = buffer[i];
-				buffer = null;
-				buffer = newbuffer;
+				// 按倍数扩大，读入n个字符总共只复制O(n)次
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
 			}
 		}
 		
@@ -41,11 +38,11 @@ public class TextFileReader {
 		return readAll(filename,"UTF-8");
 	}
 
+	/**
+	 * 读取整个文件，缓冲区按文件长度一次分配，见DocumentReader
+	 */
 	public static String readAll(String filename,String encode) throws IOException{
-		TextFileReader reader = new TextFileReader(filename,encode);
-		String result = reader.readAll();
-		reader.close();
-		return result;
+		return new DocumentReader(encode).read(new File(filename)).toString();
 	}
 	
 	public String readLine() throws IOException{
@@ -1,26 +1,49 @@
 package org.thunlp.language.chinese;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
 
-public class BigramWordSegment implements WordSegment, Serializable {
-	private List<String> segs = new ArrayList<String>();
+/**
+ * 汉字按bigram切分，其他字符按空格和汉字分开。不保存任何状态，可以被多个线程同时使用。
+ * 指定了停用词表时，含有停用字的bigram和单字、以及本身是停用词的bigram不输出。
+ */
+public class BigramWordSegment implements PackedWordSegment, Serializable {
 	
+	private final ChineseStopwords stopwords;
+
+	public BigramWordSegment() {
+		this(null);
+	}
+
+	/**
+	 * @param stopwords 生成bigram时去掉的停用字和停用词，为null时不去掉
+	 */
+	public BigramWordSegment( ChineseStopwords stopwords ) {
+		this.stopwords = stopwords;
+	}
+
 	public boolean outputPosTag() {
 		return false;
 	}
 
 	public String[] segment(String text) {
+		TokenBuffer segs = new TokenBuffer();
+		segment(text, segs);
+		return segs.toArray();
+	}
+
+	/**
+	 * 汉字的bigram和单字打包成int输出，其他的片段仍是String
+	 */
+	public void segment(String text, TokenBuffer tokens) {
 		int start, end;
 		
 		start = 0;
 		end = 0;
-		segs.clear();
+		tokens.clear();
 		boolean precedentByChinese = false;
 		while ( end < text.length() ) {
 			if ( Character.isSpaceChar(text.charAt(end)) ) {
-				segs.add(text.substring(start, end));
+				tokens.add(text.substring(start, end));
 				while ( end < text.length() && Character.isSpaceChar( text.charAt(end) ) )
 						end++;
 				if ( end >= text.length() )
@@ -29,7 +52,7 @@ public class BigramWordSegment implements WordSegment, Serializable {
 			}
 			if ( LangUtils.isChinese(text.codePointAt(end)) ) {
 				if ( end > start ) {
-					segs.add(text.substring(start, end));
+					tokens.add(text.substring(start, end));
 					precedentByChinese = false;
 				} else {
 					precedentByChinese = true;
@@ -37,11 +60,16 @@ public class BigramWordSegment implements WordSegment, Serializable {
 				start = end;
 				if ( start < text.length() - 1 && 
 				    LangUtils.isChinese(text.codePointAt(start + 1)) ) {		
-					segs.add(text.substring(start, start+2));
+					char c0 = text.charAt(start);
+					char c1 = text.charAt(start + 1);
+					if ( stopwords == null || ! stopwords.isStopBigram(c0, c1) ) {
+						tokens.add(TokenBuffer.pack(c0, c1));
+					}
 					end = ++start;
 				} else {
-					if ( ! precedentByChinese ) {
-						segs.add(text.substring(start, start + 1));
+					if ( ! precedentByChinese && ( stopwords == null
+							|| ! stopwords.isStopChar(text.charAt(start)) ) ) {
+						tokens.add(TokenBuffer.pack(text.charAt(start)));
 					}
 					end = ++start;
 				}
@@ -49,7 +77,6 @@ public class BigramWordSegment implements WordSegment, Serializable {
 				end ++;
 			}
 		}
-		return segs.toArray(new String[segs.size()]);
 	}
 
 	public static void main (String args[]) {
@@ -0,0 +1,117 @@
+package org.thunlp.language.chinese;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * 中文停用字和停用词，供bigram分词器在生成bigram时直接去掉含有虚字的bigram。
+ *
+ * 词表中单个字的词是停用字（的、了、是……），含有停用字的bigram和单字都去掉；两个字
+ * 的词本身作为bigram时去掉。三个字以上的词不能对应到某一个bigram，不使用。
+ *
+ * 每个字是不是停用字、是不是某个两字停用词的第一个字记在一张64K的标记表中，两个字的
+ * 停用词打包成int后排序保存。绝大多数bigram查两次标记表就能确定不用去掉，只有第一个
+ * 字是停用词的开头时才做二分查找。
+ */
+public class ChineseStopwords implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static Logger LOG = Logger.getAnonymousLogger();
+
+	private static ChineseStopwords defaultStopwords = null;
+
+	private static final byte STOP_CHAR = 1;
+	private static final byte FIRST_CHAR = 2;
+
+	private final byte [] flags = new byte[Character.MAX_VALUE + 1];
+	private int [] words;
+
+	/**
+	 * @param stopwords 停用词，不是一两个字的词被忽略
+	 */
+	public ChineseStopwords( Iterable<String> stopwords ) {
+		int [] packed = new int[16];
+		int n = 0;
+		for ( String word : stopwords ) {
+			if ( word.length() == 1 ) {
+				flags[word.charAt(0)] |= STOP_CHAR;
+			} else if ( word.length() == 2 && word.charAt(0) != 0 ) {
+				if ( n == packed.length ) {
+					packed = Arrays.copyOf(packed, n * 2);
+				}
+				packed[n++] = TokenBuffer.pack(word.charAt(0), word.charAt(1));
+				flags[word.charAt(0)] |= FIRST_CHAR;
+			}
+		}
+		words = Arrays.copyOf(packed, n);
+		Arrays.sort(words);
+	}
+
+	/**
+	 * 读入系统属性wordsegment.stopwords.cn.file指定的词表，没有指定时读入自带的
+	 * stopwords.cn.txt，只读一次
+	 * @return 停用词表；不能读取时返回null
+	 */
+	public static synchronized ChineseStopwords getDefault() {
+		if ( defaultStopwords != null ) {
+			return defaultStopwords;
+		}
+		InputStream input = null;
+		if ( System.getProperties().containsKey("wordsegment.stopwords.cn.file") ) {
+			try {
+				input = new FileInputStream(
+						System.getProperty("wordsegment.stopwords.cn.file"));
+			} catch ( FileNotFoundException e ) {
+				e.printStackTrace();
+				input = null;
+			}
+		}
+		if ( input == null ) {
+			input = ChineseStopwords.class.getClassLoader()
+				.getResourceAsStream("org/thunlp/language/chinese/stopwords.cn.txt");
+		}
+		if ( input == null ) {
+			LOG.warning("Cannot load Chinese stopwords.");
+			return null;
+		}
+		List<String> words = new ArrayList<String>();
+		try {
+			BufferedReader reader =
+				new BufferedReader(new InputStreamReader(input, "UTF-8"));
+			String line;
+			while ( ( line = reader.readLine() ) != null ) {
+				words.add(line.trim());
+			}
+			reader.close();
+		} catch ( IOException e ) {
+			LOG.warning("Cannot load Chinese stopwords.");
+			return null;
+		}
+		defaultStopwords = new ChineseStopwords(words);
+		return defaultStopwords;
+	}
+
+	public boolean isStopChar( char c ) {
+		return ( flags[c] & STOP_CHAR ) != 0;
+	}
+
+	/**
+	 * @return 两个字组成的bigram是否要去掉：含有停用字，或者本身是停用词
+	 */
+	public boolean isStopBigram( char c0, char c1 ) {
+		int f0 = flags[c0];
+		if ( ( ( f0 | flags[c1] ) & STOP_CHAR ) != 0 ) {
+			return true;
+		}
+		return ( f0 & FIRST_CHAR ) != 0
+			&& Arrays.binarySearch(words, TokenBuffer.pack(c0, c1)) >= 0;
+	}
+}
@@ -1,6 +1,5 @@
 package org.thunlp.language.chinese;
 
-import java.util.Hashtable;
 import java.util.regex.Pattern;
 
 /**
@@ -10,8 +9,12 @@ import java.util.regex.Pattern;
  */
 public class LangUtils {
 	protected static Pattern allMarksPat;
-	protected static Hashtable<Character, Character> t2s;
-	protected static Hashtable<Character, Character> s2t;
+	/**
+	 * Lookup tables for Traditional/Simplified Chinese conversion, indexed by
+	 * char. Characters without a counterpart map to themselves.
+	 */
+	protected static char [] t2s;
+	protected static char [] s2t;
 	
 	/**
 	 * Prevent this class to be instantiated.
@@ -29,13 +32,17 @@ public class LangUtils {
 		allMarksPat = Pattern.compile( pat );
 		
 		// Initialize the map for Traditional/Simplified Chinese conversion.
-		t2s = new Hashtable<Character, Character>();
-		s2t = new Hashtable<Character, Character>();
+		t2s = new char[Character.MAX_VALUE + 1];
+		s2t = new char[Character.MAX_VALUE + 1];
+		for (int c = 0; c < t2s.length; c++) {
+		  t2s[c] = (char) c;
+		  s2t[c] = (char) c;
+		}
 		String schars = ChineseLanguageConstants.SIMPLIFIED_CHARS;
 		String tchars = ChineseLanguageConstants.TRADITIONAL_CHARS;
 		for (int i = 0; i < schars.length(); i++) {
-		  t2s.put(tchars.charAt(i), schars.charAt(i));
-		  s2t.put(schars.charAt(i), tchars.charAt(i));
+		  t2s[tchars.charAt(i)] = schars.charAt(i);
+		  s2t[schars.charAt(i)] = tchars.charAt(i);
 		}
 	}
 	
@@ -435,10 +442,7 @@ public class LangUtils {
   public static String T2S(String text) {
     char [] chars = text.toCharArray();
     for (int i = 0; i < chars.length; i++) {
-      Character replacement = t2s.get(chars[i]);
-      if (replacement != null) {
-        chars[i] = replacement;
-      }
+      chars[i] = t2s[chars[i]];
     }
     return new String(chars);
   }
@@ -451,10 +455,7 @@ public class LangUtils {
   public static String S2T(String text) {
     char [] chars = text.toCharArray();
     for (int i = 0; i < chars.length; i++) {
-      Character replacement = s2t.get(chars[i]);
-      if (replacement != null) {
-        chars[i] = replacement;
-      }
+      chars[i] = s2t[chars[i]];
     }
     return new String(chars);
   }
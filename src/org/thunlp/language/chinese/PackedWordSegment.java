@@ -0,0 +1,12 @@
+package org.thunlp.language.chinese;
+
+/**
+ * 能把汉字bigram打包成int输出的分词器。segment(text, tokens)的结果和segment(text)
+ * 完全一样，只是一两个字符的汉字词不再构造String。
+ */
+public interface PackedWordSegment extends WordSegment {
+	/**
+	 * 分词，结果写入tokens（先清空）
+	 */
+	public void segment( String text, TokenBuffer tokens );
+}
@@ -0,0 +1,323 @@
+package org.thunlp.language.chinese;
+
+import java.nio.CharBuffer;
+
+import org.thunlp.io.CharSink;
+
+/**
+ * 一遍扫描完成的文本预处理，结果和依次调用LangUtils中的以下函数逐字相同：
+ * <ol>
+ * <li>mapFullWidthLetterToHalfWidth、mapChineseMarksToAnsi、
+ * mapFullWidthNumberToHalfWidth（mapCharacters为true时）</li>
+ * <li>removeEmptyLines、removeExtraSpaces</li>
+ * <li>只保留汉字和32到127之间的ASCII字符，再去掉首尾的空格（filter为true时）</li>
+ * <li>T2S（toSimplified为true时）</li>
+ * </ol>
+ *
+ * 三个字符替换函数合成一张64K的char查找表，表是用这三个函数本身对所有字符计算出来的，
+ * 所以它们的特殊行为（例如全角的Ｂ被换成C）也原样保留。繁简转换用LangUtils中的查找表。
+ *
+ * removeEmptyLines和removeExtraSpaces的正则表达式都只作用在连续的空白字符（空格、
+ * 全角空格、\t、\u000B、\u000C、\u00A0、\uE5F1、\r、\n）上，这里把每一段连续的空白
+ * 一次处理完：
+ * <ul>
+ * <li>文本开头的空白中有\n时，去掉到最后一个\n为止的部分</li>
+ * <li>其他位置的空白中，从第一个\r或\n到它后面最后一个\n为止的部分换成一个\n</li>
+ * <li>剩下的连续空格类字符换成一个空格，\r和\n不变</li>
+ * <li>去掉文本开头的空格，以及结尾或者结尾的换行符之前的空格</li>
+ * </ul>
+ *
+ * filter为true时还可以用stream逐个字符处理，见Stream。
+ *
+ * 对象创建之后不再改变，可以在多个线程中同时使用。
+ */
+public class TextNormalizer {
+	/**
+	 * 只去掉空行和多余的空格，相当于removeEmptyLines之后再removeExtraSpaces
+	 */
+	public static final TextNormalizer WHITESPACE = new TextNormalizer(false, false, false);
+
+	/**
+	 * 三个字符替换函数合成的查找表
+	 */
+	private static final char [] FULL_WIDTH;
+
+	static {
+		char [] all = new char[Character.MAX_VALUE + 1];
+		for ( int c = 0 ; c < all.length ; c++ ) {
+			all[c] = (char) c;
+		}
+		String text = new String(all);
+		text = LangUtils.mapFullWidthLetterToHalfWidth(text);
+		text = LangUtils.mapChineseMarksToAnsi(text);
+		text = LangUtils.mapFullWidthNumberToHalfWidth(text);
+		FULL_WIDTH = text.toCharArray();
+	}
+
+	private final char [] map;
+	private final boolean filter;
+	private final char [] convert;
+
+	/**
+	 * @param mapCharacters 是否把全角字母、数字和中文标点换成ASCII字符
+	 * @param filter 是否只保留汉字和ASCII可打印字符
+	 * @param toSimplified 是否转换成简体
+	 */
+	public TextNormalizer( boolean mapCharacters, boolean filter, boolean toSimplified ) {
+		this.map = mapCharacters ? FULL_WIDTH : null;
+		this.filter = filter;
+		this.convert = toSimplified ? LangUtils.t2s : null;
+	}
+
+	/**
+	 * removeEmptyLines和removeExtraSpaces作为空白处理的字符
+	 */
+	private static boolean isSpace( char c ) {
+		if ( c <= ' ' ) {
+			return ( SPACES & 1L << c ) != 0;
+		}
+		return c == '　' || c == '\u00A0' || c == '\uE5F1';
+	}
+
+	/**
+	 * 不超过' '的空白字符的位图
+	 */
+	private static final long SPACES = 1L << ' ' | 1L << '\t' | 1L << '\u000B'
+		| 1L << '\u000C' | 1L << '\r' | 1L << '\n';
+
+	/**
+	 * 正则表达式中$可以出现在它前面的结尾的换行符
+	 */
+	private static boolean isLineTerminator( char c ) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	private char mapped( char c ) {
+		return map != null ? map[c] : c;
+	}
+
+	public String normalize( String text ) {
+		char [] buf = text.toCharArray();
+		return new String(buf, 0, normalize(buf, 0, buf.length, buf));
+	}
+
+	/**
+	 * 和normalize(String)相同，有数组的CharBuffer（例如DocumentReader读入的文件）
+	 * 直接从数组中读取，不先转换成String
+	 */
+	public String normalize( CharSequence text ) {
+		if ( text instanceof CharBuffer && ( (CharBuffer) text ).hasArray() ) {
+			CharBuffer cb = (CharBuffer) text;
+			int from = cb.arrayOffset() + cb.position();
+			int to = cb.arrayOffset() + cb.limit();
+			char [] out = new char[to - from];
+			return new String(out, 0, normalize(cb.array(), from, to, out));
+		}
+		return normalize(text.toString());
+	}
+
+	/**
+	 * 处理in中[from, to)的字符，结果从0开始写入out
+	 * @param out 长度至少为to - from，可以就是in（此时from应为0）
+	 * @return 结果的长度
+	 */
+	public int normalize( char [] in, int from, int to, char [] out ) {
+		int n = 0;
+		int i = from;
+		while ( i < to ) {
+			char c = mapped(in[i]);
+			if ( ! isSpace(c) ) {
+				n = emit(c, out, n);
+				i++;
+				continue;
+			}
+			// 一段连续的空白[i, j)
+			int firstBreak = -1;
+			int lastNewline = -1;
+			int j = i;
+			for ( ; j < to && isSpace(c = mapped(in[j])) ; j++ ) {
+				if ( c == '\n' ) {
+					lastNewline = j;
+				}
+				if ( firstBreak < 0 && ( c == '\r' || c == '\n' ) ) {
+					firstBreak = j;
+				}
+			}
+			if ( i == from ) {
+				n = emitSpaces(in, lastNewline >= 0 ? lastNewline + 1 : i, j, out, n);
+			} else if ( firstBreak >= 0 && lastNewline > firstBreak ) {
+				n = emitSpaces(in, i, firstBreak, out, n);
+				n = emit('\n', out, n);
+				n = emitSpaces(in, lastNewline + 1, j, out, n);
+			} else {
+				n = emitSpaces(in, i, j, out, n);
+			}
+			i = j;
+		}
+
+		if ( filter ) {
+			while ( n > 0 && out[n - 1] == ' ' ) {
+				n--;
+			}
+		} else if ( n > 0 && out[n - 1] == ' ' ) {
+			n--;
+		} else if ( n >= 3 && out[n - 2] == '\r' && out[n - 1] == '\n' ) {
+			if ( out[n - 3] == ' ' ) {
+				out[n - 3] = '\r';
+				out[n - 2] = '\n';
+				n--;
+			}
+		} else if ( n >= 2 && isLineTerminator(out[n - 1]) && out[n - 2] == ' ' ) {
+			out[n - 2] = out[n - 1];
+			n--;
+		}
+		return n;
+	}
+
+	/**
+	 * 输出[from, to)中的空白，连续的空格类字符合并成一个空格
+	 */
+	private int emitSpaces( char [] in, int from, int to, char [] out, int n ) {
+		boolean space = false;
+		for ( int k = from ; k < to ; k++ ) {
+			char c = mapped(in[k]);
+			if ( c == '\r' || c == '\n' ) {
+				n = emit(c, out, n);
+				space = false;
+			} else if ( ! space ) {
+				n = emit(' ', out, n);
+				space = true;
+			}
+		}
+		return n;
+	}
+
+	private int emit( char c, char [] out, int n ) {
+		if ( filter && ! kept(c) ) {
+			return n;
+		}
+		// 开头的空格
+		if ( n == 0 && c == ' ' ) {
+			return n;
+		}
+		out[n++] = converted(c);
+		return n;
+	}
+
+	/**
+	 * filter为true时保留的字符
+	 */
+	private static boolean kept( char c ) {
+		return LangUtils.isChinese(c) || ( c > 31 && c < 128 );
+	}
+
+	private char converted( char c ) {
+		return convert != null ? convert[c] : c;
+	}
+
+	/**
+	 * @param out 接收处理结果
+	 * @return 逐个字符处理文本的Stream
+	 * @throws IllegalStateException filter为false时
+	 */
+	public Stream stream( CharSink out ) {
+		if ( ! filter ) {
+			throw new IllegalStateException("stream requires filter");
+		}
+		return new Stream(out);
+	}
+
+	/**
+	 * 逐个字符处理文本，结果逐个交给out，和normalize的结果逐字相同，不需要先把文本
+	 * 放进缓冲区。filter为true时换行符都被去掉，一段连续空白的结果只是若干个空格，
+	 * 所以只要记下这段空白里各部分的空格组数：
+	 * <ul>
+	 * <li>空白中有换行、并且第一个换行之后还有\n时，是第一个换行之前和最后一个\n之后
+	 * 的空格组数之和</li>
+	 * <li>否则是整段空白的空格组数</li>
+	 * </ul>
+	 * 其中空格组是被\r、\n分开的连续的空格类字符。结尾的空格要去掉，所以空格要等到
+	 * 后面出现保留的字符时才输出。
+	 *
+	 * 一篇文本处理完之后调用finish，然后可以处理下一篇。只能在一个线程中使用。
+	 */
+	public class Stream implements CharSink {
+		private final CharSink out;
+		/**
+		 * 是否已经输出过字符，之前的空格都被去掉
+		 */
+		private boolean started = false;
+		/**
+		 * 等待后面出现保留的字符时输出的空格数
+		 */
+		private int spaces = 0;
+
+		// 当前这段空白的状态
+		private boolean inRun = false;
+		private boolean inGroup = false;
+		private int groups = 0;
+		/**
+		 * 第一个换行之前的空格组数，还没有换行时为-1
+		 */
+		private int groupsBeforeBreak = -1;
+		private int groupsAfterNewline = 0;
+		private boolean newlineAfterBreak = false;
+
+		private Stream( CharSink out ) {
+			this.out = out;
+		}
+
+		public void append( char c ) {
+			c = mapped(c);
+			if ( isSpace(c) ) {
+				if ( ! inRun ) {
+					inRun = true;
+					inGroup = false;
+					groups = 0;
+					groupsBeforeBreak = -1;
+					groupsAfterNewline = 0;
+					newlineAfterBreak = false;
+				}
+				if ( c == '\r' || c == '\n' ) {
+					if ( groupsBeforeBreak < 0 ) {
+						groupsBeforeBreak = groups;
+					} else if ( c == '\n' ) {
+						newlineAfterBreak = true;
+					}
+					if ( c == '\n' ) {
+						groupsAfterNewline = 0;
+					}
+					inGroup = false;
+				} else if ( ! inGroup ) {
+					groups++;
+					groupsAfterNewline++;
+					inGroup = true;
+				}
+				return;
+			}
+			if ( inRun ) {
+				inRun = false;
+				if ( started ) {
+					spaces += newlineAfterBreak ? groupsBeforeBreak + groupsAfterNewline : groups;
+				}
+			}
+			if ( ! kept(c) ) {
+				return;
+			}
+			for ( ; spaces > 0 ; spaces-- ) {
+				out.append(converted(' '));
+			}
+			out.append(converted(c));
+			started = true;
+		}
+
+		/**
+		 * 一篇文本结束，去掉结尾的空格
+		 */
+		public void finish() {
+			started = false;
+			spaces = 0;
+			inRun = false;
+		}
+	}
+}
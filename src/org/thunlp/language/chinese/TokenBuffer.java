@@ -0,0 +1,130 @@
+package org.thunlp.language.chinese;
+
+import java.util.Arrays;
+
+/**
+ * 可重复使用的分词结果缓冲区。由一个或两个字符组成的词（主要是汉字bigram）直接打包
+ * 成一个int保存，不构造String；其他的词仍然以String保存。两种词按分词输出的顺序
+ * 混合存放。
+ *
+ * 打包规则：单个字符c打包为c本身，两个字符c0c1打包为(c0 << 16) | c1，要求c0不为0，
+ * 所以高16位是否为0就区分了两种长度。
+ */
+public class TokenBuffer {
+	private int [] codes;
+	private String [] strings;
+	private int size;
+
+	public TokenBuffer() {
+		this(256);
+	}
+
+	public TokenBuffer(int capacity) {
+		capacity = Math.max(capacity, 16);
+		codes = new int[capacity];
+		strings = new String[capacity];
+		size = 0;
+	}
+
+	public static int pack(char c) {
+		return c;
+	}
+
+	public static int pack(char c0, char c1) {
+		return (c0 << 16) | c1;
+	}
+
+	/**
+	 * 打包后的词的长度，1或者2
+	 */
+	public static int packedLength(int code) {
+		return (code >>> 16) == 0 ? 1 : 2;
+	}
+
+	public static String unpack(int code) {
+		char c0 = (char) (code >>> 16);
+		if ( c0 == 0 ) {
+			return String.valueOf((char) code);
+		}
+		return new String(new char[] {c0, (char) code});
+	}
+
+	public void clear() {
+		// 只需要释放String的引用，codes不用清
+		Arrays.fill(strings, 0, size, null);
+		size = 0;
+	}
+
+	private void grow() {
+		int capacity = codes.length + (codes.length >> 1);
+		codes = Arrays.copyOf(codes, capacity);
+		strings = Arrays.copyOf(strings, capacity);
+	}
+
+	/**
+	 * 加入一个打包好的词
+	 */
+	public void add(int code) {
+		if ( size == codes.length ) {
+			grow();
+		}
+		codes[size] = code;
+		strings[size] = null;
+		size++;
+	}
+
+	public void add(String token) {
+		if ( size == codes.length ) {
+			grow();
+		}
+		codes[size] = 0;
+		strings[size] = token;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 第i个词是否是打包的
+	 */
+	public boolean isPacked(int i) {
+		return strings[i] == null;
+	}
+
+	public int getCode(int i) {
+		return codes[i];
+	}
+
+	/**
+	 * 第i个词的String形式，打包的词会在这里构造String
+	 */
+	public String get(int i) {
+		String s = strings[i];
+		return s != null ? s : unpack(codes[i]);
+	}
+
+	/**
+	 * 用seg分词，结果写入这里（先清空）。PackedWordSegment直接写入打包的词，其他分词器
+	 * 的结果逐个以String加入
+	 */
+	public void segment(WordSegment seg, String text) {
+		if ( seg instanceof PackedWordSegment ) {
+			((PackedWordSegment) seg).segment(text, this);
+			return;
+		}
+		clear();
+		for ( String token : seg.segment(text) ) {
+			add(token);
+		}
+	}
+
+	public String [] toArray() {
+		String [] result = new String[size];
+		for ( int i = 0 ; i < size ; i++ ) {
+			result[i] = get(i);
+		}
+		return result;
+	}
+}
@@ -1,23 +1,42 @@
 package org.thunlp.language.english;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 
+import org.thunlp.io.CharSink;
+
+import org.thunlp.language.chinese.ChineseStopwords;
 import org.thunlp.language.chinese.LangUtils;
-import org.thunlp.language.chinese.WordSegment;
+import org.thunlp.language.chinese.PackedWordSegment;
+import org.thunlp.language.chinese.TokenBuffer;
 
-public class BilingualBigramWordSegment implements WordSegment{
+/**
+ * 中英文混合文本的bigram切分：汉字单独成词，英文经过停用词过滤和词干化，然后相邻两个
+ * 词组成bigram。不保存分词的中间状态，可以被多个线程同时使用。
+ * 指定了中文停用词表时，含有停用字的bigram和单字、以及两个汉字本身是停用词的bigram
+ * 不输出。
+ */
+public class BilingualBigramWordSegment implements PackedWordSegment{
 
-    private LinkedList<String> results = null; 
+    private static final EnglishWordSegment englishSegment = new EnglishWordSegment();
 
     private boolean withSpaceInBigram;
+    private final ChineseStopwords stopwords;
     
     public BilingualBigramWordSegment() {
     	this(false);
     }
     
     public BilingualBigramWordSegment(boolean b) {
-    	results = new LinkedList<String>();
+    	this(b, null);
+    }
+    
+    /**
+     * @param stopwords 生成bigram时去掉的中文停用字和停用词，为null时不去掉
+     */
+    public BilingualBigramWordSegment(boolean b, ChineseStopwords stopwords) {
     	withSpaceInBigram = b;
+    	this.stopwords = stopwords;
     }
     
     public boolean outputPosTag() {
@@ -41,24 +60,232 @@ public class BilingualBigramWordSegment implements WordSegment{
     }
     
 	public String[] segment(String text) {
-		EnglishWordSegment seg = new EnglishWordSegment();
-		String[] tokens = seg.segment(splitChineseCharactersWithSpace(text));
+		String[] tokens = englishSegment.segment(splitChineseCharactersWithSpace(text));
 		int len = tokens.length;
-		results.clear();
+		ArrayList<String> results = new ArrayList<String>(Math.max(len - 1, 0));
 		if (len > 1) {
 			for (int i = 0; i < len - 1; ++i)
-				if (withSpaceInBigram)
+				if (isStopBigram(tokens[i], tokens[i+1]))
+					continue;
+				else if (withSpaceInBigram)
 					results.add(tokens[i] + " " + tokens[i+1]);
 				else
 					results.add(tokens[i] + tokens[i+1]);
 			return results.toArray(new String[results.size()]);
 		} else if (len < 1) {
 			return new String[] {""};
+		} else if (isStopChar(tokens[0])) {
+			return new String[0];
 		} else {
 			return tokens;
 		}
 	}
 	
+	/**
+	 * 和segment(text)结果相同，但两个汉字组成的bigram打包成int输出。这里不再先插空格
+	 * 再用正则切分，而是用Stream逐个字符扫描文本。
+	 */
+	public void segment(String text, TokenBuffer tokens) {
+		tokens.clear();
+		Stream stream = stream(tokens);
+		for (int i = 0; i < text.length(); ++i)
+			stream.append(text.charAt(i));
+		stream.finish();
+	}
+
+	/**
+	 * @return 逐个字符接收文本、把切分结果追加到tokens的Stream
+	 */
+	public Stream stream(TokenBuffer tokens) {
+		return new Stream(tokens);
+	}
+
+	private static boolean isWordChar(int cp) {
+		return EnglishWordSegment.isWordChar(cp);
+	}
+
+	/**
+	 * 词w是否是单个停用字
+	 */
+	private boolean isStopChar(String w) {
+		return stopwords != null && w.length() == 1 && stopwords.isStopChar(w.charAt(0));
+	}
+
+	private boolean isStopBigram(String w0, String w1) {
+		return isStopBigram(w0.length(), w0.length() > 0 ? w0.charAt(0) : 0,
+				w1.length(), w1.length() > 0 ? w1.charAt(0) : 0);
+	}
+
+	/**
+	 * 长度为len0、第一个字符为c0的词和长度为len1、第一个字符为c1的词组成的bigram
+	 * 是否要去掉：两个都是单字时查停用词表，否则看其中的单字是不是停用字
+	 */
+	private boolean isStopBigram(int len0, char c0, int len1, char c1) {
+		if (stopwords == null)
+			return false;
+		if (len0 == 1 && len1 == 1)
+			return stopwords.isStopBigram(c0, c1);
+		return (len0 == 1 && stopwords.isStopChar(c0))
+				|| (len1 == 1 && stopwords.isStopChar(c1));
+	}
+
+	/**
+	 * 逐个字符接收文本，结果和segment(text)相同：每个汉字单独成词，其余的词是连续的
+	 * 数字和字母，和split("[^0-9\\p{L}]+")一样，文本以分隔符开头时第一个词是空串。
+	 * 英文词在一个重复使用的字符数组里拼起来，经过停用词过滤和词干化后和前一个词组成
+	 * bigram写入输出，两个汉字的bigram打包成int。只有一个词时输出这个词，没有词时输出
+	 * 空串。带空格的bigram无法打包，这时把文本收集起来，在finish时调用segment(text)。
+	 *
+	 * 一篇文本结束时调用finish，之后可以接收下一篇。只能在一个线程中使用。
+	 */
+	public class Stream implements CharSink {
+		private final TokenBuffer out;
+		private StringBuilder text;   // 带空格的bigram时收集的文本
+		private boolean first = true; // 还没有收到字符
+		private boolean leadingDelimiter;
+		private boolean seenWord;
+		private char highSurrogate = 0;
+		private char[] word = new char[32];
+		private int wordLength = -1;  // 当前英文词的长度，-1表示不在词中
+		private int count = 0;        // 已经输出的词数
+		private char prevChar;        // 前一个词是汉字时有效
+		private String prevWord;      // 前一个词不是汉字时有效，否则为null
+
+		Stream(TokenBuffer out) {
+			this.out = out;
+			if (withSpaceInBigram)
+				text = new StringBuilder();
+		}
+
+		public void append(char c) {
+			if (text != null) {
+				text.append(c);
+				return;
+			}
+			if (highSurrogate != 0) {
+				char high = highSurrogate;
+				highSurrogate = 0;
+				if (Character.isLowSurrogate(c)) {
+					codePoint(Character.toCodePoint(high, c));
+					return;
+				}
+				codePoint(high);
+			}
+			if (Character.isHighSurrogate(c))
+				highSurrogate = c;
+			else
+				codePoint(c);
+		}
+
+		private void codePoint(int cp) {
+			if (first) {
+				leadingDelimiter = !isWordChar(cp);
+				first = false;
+			}
+			if (LangUtils.isChinese(cp)) {
+				endWord();
+				if (!seenWord && leadingDelimiter)
+					word(word, 0, 0);
+				seenWord = true;
+				word((char) cp);
+			} else if (isWordChar(cp)) {
+				if (wordLength < 0) {
+					if (!seenWord && leadingDelimiter)
+						word(word, 0, 0);
+					seenWord = true;
+					wordLength = 0;
+				}
+				if (wordLength + 2 > word.length)
+					word = Arrays.copyOf(word, word.length * 2);
+				wordLength += Character.toChars(cp, word, wordLength);
+			} else {
+				endWord();
+			}
+		}
+
+		private void endWord() {
+			if (wordLength >= 0) {
+				word(word, 0, wordLength);
+				wordLength = -1;
+			}
+		}
+
+		/**
+		 * 一个汉字
+		 */
+		private void word(char c) {
+			if (EnglishWordSegment.isStopword(c))
+				return;
+			if (count > 0) {
+				if (prevWord == null) {
+					if (stopwords == null || !stopwords.isStopBigram(prevChar, c))
+						out.add(TokenBuffer.pack(prevChar, c));
+				} else if (!isStopBigram(prevWord.length(),
+						prevWord.length() > 0 ? prevWord.charAt(0) : 0, 1, c)) {
+					out.add(prevWord + c);
+				}
+			}
+			prevChar = c;
+			prevWord = null;
+			count++;
+		}
+
+		/**
+		 * chars中[start, end)的英文词
+		 */
+		private void word(char[] chars, int start, int end) {
+			String w = EnglishWordSegment.normalize(chars, start, end);
+			if (w == null)
+				return;
+			if (count > 0) {
+				if (prevWord == null) {
+					if (!isStopBigram(1, prevChar, w.length(),
+							w.length() > 0 ? w.charAt(0) : 0))
+						out.add(prevChar + w);
+				} else if (!isStopBigram(prevWord, w)) {
+					out.add(prevWord + w);
+				}
+			}
+			prevWord = w;
+			count++;
+		}
+
+		/**
+		 * 一篇文本结束，输出剩下的结果
+		 */
+		public void finish() {
+			if (text != null) {
+				for (String token : segment(text.toString()))
+					out.add(token);
+				text.setLength(0);
+				return;
+			}
+			if (highSurrogate != 0) {
+				char high = highSurrogate;
+				highSurrogate = 0;
+				codePoint(high);
+			}
+			if (first)
+				word(word, 0, 0);
+			else
+				endWord();
+			if (count == 0)
+				out.add("");
+			else if (count == 1) {
+				if (prevWord == null) {
+					if (stopwords == null || !stopwords.isStopChar(prevChar))
+						out.add(TokenBuffer.pack(prevChar));
+				} else if (!isStopChar(prevWord)) {
+					out.add(prevWord);
+				}
+			}
+			first = true;
+			seenWord = false;
+			count = 0;
+			prevWord = null;
+		}
+	}
+
 	public static void main(String argc[]) {
 		BilingualBigramWordSegment seg = new BilingualBigramWordSegment(true);
 		String res[] = seg.segment("客户端没有在限定的时间内将2112年3月的数据发送给abc服务器，服务器为了保证服务性能，认定那个连接已经失效，所以出现上述异常。 Server is trying to read data from the request, but its taking longer than the timeout value for the data to arrive from the client.");
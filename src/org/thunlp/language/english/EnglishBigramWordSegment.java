@@ -1,13 +1,17 @@
 package org.thunlp.language.english;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 
 import org.thunlp.language.chinese.BigramWordSegment;
 import org.thunlp.language.chinese.WordSegment;
 
+/**
+ * 英文的bigram切分：先用EnglishWordSegment切分，相邻两个词组成bigram。不保存分词的
+ * 中间状态，可以被多个线程同时使用。
+ */
 public class EnglishBigramWordSegment implements WordSegment {
 	
-    private LinkedList<String> results = null; 
+    private static final EnglishWordSegment englishSegment = new EnglishWordSegment();
 
     private boolean withSpaceInBigram;
     
@@ -16,7 +20,6 @@ public class EnglishBigramWordSegment implements WordSegment {
     }
     
     public EnglishBigramWordSegment(boolean b) {
-    	results = new LinkedList<String>();
     	withSpaceInBigram = b;
     }
     
@@ -25,10 +28,9 @@ public class EnglishBigramWordSegment implements WordSegment {
 	}
 
 	public String[] segment(String text) {
-		EnglishWordSegment seg = new EnglishWordSegment();
-		String[] tokens = seg.segment(text);
+		String[] tokens = englishSegment.segment(text);
 		int len = tokens.length;
-		results.clear();
+		ArrayList<String> results = new ArrayList<String>(Math.max(len - 1, 0));
 		if (len > 1) {
 			for (int i = 0; i < len - 1; ++i)
 				if (withSpaceInBigram)
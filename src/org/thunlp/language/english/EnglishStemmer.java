@@ -4,15 +4,22 @@ import org.tartarus.snowball.ext.englishStemmer;
 
 /**
  * This is just a proxy to Snowball Porter stemmer.
+ * 每个线程有自己的stemmer实例，stem可以被多个线程同时调用，不需要加锁。
  * @author sixiance
  *
  */
 public class EnglishStemmer {
-  private static englishStemmer stemmer = new englishStemmer(); 
+  private static final ThreadLocal<englishStemmer> stemmers =
+    new ThreadLocal<englishStemmer>() {
+      protected englishStemmer initialValue() {
+        return new englishStemmer();
+      }
+  };
   
   private EnglishStemmer() {}
   
-  synchronized public static String stem(String word) {
+  public static String stem(String word) {
+    englishStemmer stemmer = stemmers.get();
     stemmer.setCurrent(word);
     stemmer.stem();
     return stemmer.getCurrent();
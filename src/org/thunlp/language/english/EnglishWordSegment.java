@@ -7,29 +7,53 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Set;
 import java.util.logging.Logger;
 
-import org.tartarus.snowball.ext.porterStemmer;
-import org.thunlp.language.chinese.WordSegment;
+import org.thunlp.language.chinese.PackedWordSegment;
+import org.thunlp.language.chinese.TokenBuffer;
 
-public class EnglishWordSegment implements WordSegment {
+/**
+ * 英文分词：连续的数字和字母（Unicode字母）组成一个词，和split("[^0-9\\p{L}]+")的
+ * 结果相同，再经过停用词过滤和porterStemmer词干化。
+ *
+ * 直接扫描文本切分，不用正则表达式。英文的词频分布很不均匀，少数常用词占了大部分，
+ * 所以词干化的结果放在一个固定大小的缓存里：按词的哈希值直接映射到一个位置，新词
+ * 覆盖旧词，命中时不用构造子串也不用再做词干化。缓存的每一项创建后不再改变，多个
+ * 线程同时读写也只会多算几次，不需要加锁。
+ */
+public class EnglishWordSegment implements PackedWordSegment {
   private static Logger LOG = Logger.getAnonymousLogger();
-  private static Set<String> stopwordsSet = null;
-  private porterStemmer stemmer = null;
+  private static WordTrie stopwordsSet = null;
   
+  /**
+   * 词干化缓存的大小，必须是2的幂
+   */
+  private static final int CACHE_SIZE = 1 << 16;
+
+  /**
+   * 缓存中的一项，stem为null表示token是停用词
+   */
+  private static final class Stem {
+    final String token;
+    final String stem;
+
+    Stem(String token, String stem) {
+      this.token = token;
+      this.stem = stem;
+    }
+  }
+
+  private static final Stem [] cache = new Stem[CACHE_SIZE];
+
   static {
     stopwordsSet = loadStopwords();
   }
   
   public EnglishWordSegment() {
-    stemmer = new porterStemmer();
   }
 
-  private static Set<String> loadStopwords() {
-    Set<String> stopwords = new HashSet<String>();
+  private static WordTrie loadStopwords() {
+    WordTrie stopwords = new WordTrie(false);
     InputStream input = null;
     if (System.getProperties().containsKey("wordsegment.stopwords.en.file")) {
       try {
@@ -53,7 +77,7 @@ public class EnglishWordSegment implements WordSegment {
         new BufferedReader(new InputStreamReader(input, "UTF-8"));
       String line;
       while ((line = reader.readLine()) != null) {
-        stopwords.add(line.trim());
+        stopwords.add(line.trim(), 0);
       }
       reader.close();
     } catch (UnsupportedEncodingException e) {
@@ -75,19 +99,127 @@ public class EnglishWordSegment implements WordSegment {
    * 使用porterStemmer和停用词表来切分处理英文
    */
   public String[] segment(String text) {
-    String [] tokens = text.split("[^0-9\\p{L}]+");
-    LinkedList<String> results = new LinkedList<String>(); 
-    for ( int i = 0 ; i < tokens.length ; i++ ) {
-      if ( ! stopwordsSet.contains( tokens[i] ) ) {
-        stemmer.setCurrent(tokens[i]);
-        if ( stemmer.stem() ) {
-          results.add(stemmer.getCurrent());
-        } else {
-          results.add(tokens[i]);
+    TokenBuffer tokens = new TokenBuffer();
+    segment(text, tokens);
+    return tokens.toArray();
+  }
+
+  /**
+   * 和segment(text)结果相同，词以String写入tokens（先清空）
+   */
+  public void segment(String text, TokenBuffer tokens) {
+    tokens.clear();
+    int length = text.length();
+    if ( length == 0 ) {
+      // split对空串返回一个空串
+      add(tokens, normalize(text, 0, 0));
+      return;
+    }
+    // split在文本以分隔符开头时，第一个词是空串，但全是分隔符时没有词
+    boolean leadingDelimiter = ! isWordChar(text.codePointAt(0));
+    int start = -1;  // 当前词的起点，-1表示不在词中
+    int i = 0;
+    while ( i < length ) {
+      int cp = text.codePointAt(i);
+      if ( isWordChar(cp) ) {
+        if ( start < 0 ) {
+          if ( leadingDelimiter ) {
+            add(tokens, normalize(text, 0, 0));
+            leadingDelimiter = false;
+          }
+          start = i;
         }
+      } else if ( start >= 0 ) {
+        add(tokens, normalize(text, start, i));
+        start = -1;
       }
+      i += Character.charCount(cp);
+    }
+    if ( start >= 0 ) {
+      add(tokens, normalize(text, start, length));
+    }
+  }
+
+  private static void add(TokenBuffer tokens, String token) {
+    if ( token != null ) {
+      tokens.add(token);
+    }
+  }
+
+  /**
+   * 和正则表达式中的[0-9\\p{L}]相同
+   */
+  static boolean isWordChar(int cp) {
+    if ( cp < 128 ) {
+      return (cp >= '0' && cp <= '9') || ((cp | 0x20) >= 'a' && (cp | 0x20) <= 'z');
     }
-    return results.toArray(new String[results.size()]);
+    return Character.isLetter(cp);
+  }
+
+  /**
+   * 对text中[start, end)的词做停用词过滤和词干化，先查缓存
+   * @return 处理后的词，是停用词时返回null
+   */
+  static String normalize(String text, int start, int end) {
+    int h = 0;
+    for ( int i = start ; i < end ; i++ ) {
+      h = 31 * h + text.charAt(i);
+    }
+    h ^= h >>> 16;
+    int slot = (h * 0x9E3779B1) >>> 16 & (CACHE_SIZE - 1);
+    Stem entry = cache[slot];
+    if ( entry != null && entry.token.length() == end - start
+        && entry.token.regionMatches(0, text, start, end - start) ) {
+      return entry.stem;
+    }
+    String token = text.substring(start, end);
+    String stem = normalize(token);
+    cache[slot] = new Stem(token, stem);
+    return stem;
+  }
+
+  /**
+   * 和normalize(String, int, int)相同，词是字符数组text中的[start, end)
+   */
+  static String normalize(char [] text, int start, int end) {
+    int h = 0;
+    for ( int i = start ; i < end ; i++ ) {
+      h = 31 * h + text[i];
+    }
+    h ^= h >>> 16;
+    int slot = (h * 0x9E3779B1) >>> 16 & (CACHE_SIZE - 1);
+    Stem entry = cache[slot];
+    if ( entry != null && entry.token.length() == end - start ) {
+      int i = 0;
+      while ( i < end - start && entry.token.charAt(i) == text[start + i] ) {
+        i++;
+      }
+      if ( i == end - start ) {
+        return entry.stem;
+      }
+    }
+    String token = new String(text, start, end - start);
+    String stem = normalize(token);
+    cache[slot] = new Stem(token, stem);
+    return stem;
+  }
+
+  /**
+   * 对切分出的一个词做停用词过滤和词干化
+   * @return 处理后的词，是停用词时返回null
+   */
+  static String normalize(String token) {
+    if ( stopwordsSet.contains( token ) ) {
+      return null;
+    }
+    return PorterStemmer.stem(token);
+  }
+
+  /**
+   * 单个字符是否在停用词表中，不用为了查表构造String
+   */
+  static boolean isStopword(char c) {
+    return stopwordsSet.contains(c);
   }
 
 }
@@ -4,15 +4,22 @@ import org.tartarus.snowball.ext.porterStemmer;
 
 /**
  * This is just a proxy to Snowball Porter stemmer.
+ * 每个线程有自己的stemmer实例，stem可以被多个线程同时调用，不需要加锁。
  * @author sixiance
  *
  */
 public class PorterStemmer {
-  private static porterStemmer stemmer = new porterStemmer(); 
+  private static final ThreadLocal<porterStemmer> stemmers =
+    new ThreadLocal<porterStemmer>() {
+      protected porterStemmer initialValue() {
+        return new porterStemmer();
+      }
+  };
   
   private PorterStemmer() {}
   
-  synchronized public static String stem(String word) {
+  public static String stem(String word) {
+    porterStemmer stemmer = stemmers.get();
     stemmer.setCurrent(word);
     stemmer.stem();
     return stemmer.getCurrent();
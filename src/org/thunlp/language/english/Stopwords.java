@@ -7,25 +7,47 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
+/**
+ * 英文停用词表。isStopword按词表中的原样查找；removeAllStopwords的结果和原来的
+ * 正则表达式" " + (各个词用"|"连接) + " "（不区分ASCII字母的大小写）的replaceAll
+ * 相同。注意"|"的优先级最低，所以第一个词要求前面有空格，最后一个词要求后面有
+ * 空格，中间的词不要求两边有空格，会从其他词的中间去掉。
+ *
+ * 这些候选串放在一个字典树中，对每个位置扫描一次字典树就能找出正则表达式会匹配的
+ * 候选串（能匹配的候选串中最靠前的一个），整个文本只扫描一遍，和词表大小无关。
+ * 词按字面匹配，不再当作正则表达式解释。
+ */
 public class Stopwords {
-  private static Pattern stopwordRE = null;
-  private static Pattern stopwordsRemovalRE = null;
-  private static Set<String> stopwords = null;
+  private static WordTrie stopwords = null;
+  /**
+   * removeAllStopwords的候选串，值是候选串的序号
+   */
+  private static WordTrie removals = null;
   private static Logger LOG = Logger.getAnonymousLogger();
   
   static {
-    // Initialize stopword list and pattern.
-    stopwords = new HashSet<String>();
-    String patternStr = loadStopwordsAsPattern(stopwords);
-    stopwordRE = Pattern.compile(patternStr,
-        Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
-    stopwordsRemovalRE = Pattern.compile(" " + patternStr + " ",
-        Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+    // Initialize stopword list and the removal trie.
+    stopwords = new WordTrie(false);
+    removals = new WordTrie(true);
+    List<String> words = loadStopwords();
+    List<String> alternatives = new ArrayList<String>();
+    for (String word : words) {
+      stopwords.add(word, 0);
+      alternatives.add(word.trim());
+    }
+    if (alternatives.isEmpty()) {
+      alternatives.add("");
+    }
+    alternatives.set(0, " " + alternatives.get(0));
+    int last = alternatives.size() - 1;
+    alternatives.set(last, alternatives.get(last) + " ");
+    for (int i = 0; i < alternatives.size(); i++) {
+      removals.add(alternatives.get(i), i);
+    }
   }
   
   public static boolean isStopword(String word) {
@@ -33,10 +55,37 @@ public class Stopwords {
   }
   
   public static String removeAllStopwords(String content) {
-    return stopwordsRemovalRE.matcher(content).replaceAll(" ");
+    StringBuilder sb = null;
+    int [] length = new int[1];
+    int copied = 0;
+    int i = 0;
+    while (i <= content.length()) {
+      if (removals.match(content, i, length) < 0) {
+        i++;
+        continue;
+      }
+      if (sb == null) {
+        sb = new StringBuilder(content.length());
+      }
+      sb.append(content, copied, i).append(' ');
+      if (length[0] > 0) {
+        i += length[0];
+        copied = i;
+      } else {
+        // 空串匹配之后从下一个位置继续找，和Matcher.find一致
+        copied = i;
+        i++;
+      }
+    }
+    if (sb == null) {
+      return content;
+    }
+    sb.append(content, Math.min(copied, content.length()), content.length());
+    return sb.toString();
   }
   
-  private static String loadStopwordsAsPattern(Set<String> wordset) {
+  private static List<String> loadStopwords() {
+    List<String> wordset = new ArrayList<String>();
     InputStream input = null;
     if (System.getProperties().containsKey("wordsegment.stopwords.en.file")) {
       try {
@@ -54,18 +103,12 @@ public class Stopwords {
       input = Stopwords.class.getClassLoader()
       .getResourceAsStream("org/thunlp/language/english/stopwords.en.txt");
     }
-    StringBuilder sb = new StringBuilder();
-    boolean first = true;
     try {
       BufferedReader reader = 
         new BufferedReader(new InputStreamReader(input, "UTF-8"));
       String line;
       while ((line = reader.readLine()) != null) {
         wordset.add(line);
-        if (!first)
-          sb.append("|");
-        sb.append(line.trim());
-        first = false;
       }
       reader.close();
     } catch (UnsupportedEncodingException e) {
@@ -76,6 +119,6 @@ public class Stopwords {
       LOG.warning("Cannot load stopwords, ignore stopwords.");
     }
     
-    return sb.toString();
+    return wordset;
   }
 }
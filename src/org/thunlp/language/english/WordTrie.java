@@ -0,0 +1,158 @@
+package org.thunlp.language.english;
+
+import java.util.Arrays;
+
+/**
+ * 停用词等小词表用的字典树。每个词对应一个非负的值，可以按完整的词查找，也可以从
+ * 文本中某个位置开始，一次扫描找出所有以这个位置开头的词。
+ *
+ * 节点的子节点放在一个以（节点，字符）为键的开放寻址哈希表中，每走一步只查一次表，
+ * 和词表大小无关。建好之后只读，可以被多个线程同时使用。
+ */
+public class WordTrie {
+  private static final int NONE = -1;
+
+  /**
+   * 每个节点上结束的词的值，没有词在这里结束时为NONE
+   */
+  private int [] values;
+  private int nodes;
+  /**
+   * 边表，键为节点 << 16 | 字符，空位为-1
+   */
+  private long [] keys;
+  private int [] children;
+  private int edges = 0;
+  private final boolean ignoreCase;
+  /**
+   * 单个字符的词，contains(char)对每个汉字都要调用，不用查边表
+   */
+  private final long [] singles = new long[(Character.MAX_VALUE + 1) / 64];
+
+  /**
+   * @param ignoreCase 是否忽略ASCII字母的大小写，和不带UNICODE_CASE的
+   * Pattern.CASE_INSENSITIVE相同
+   */
+  public WordTrie(boolean ignoreCase) {
+    this.ignoreCase = ignoreCase;
+    values = new int[16];
+    Arrays.fill(values, NONE);
+    nodes = 1;
+    keys = new long[64];
+    Arrays.fill(keys, -1);
+    children = new int[64];
+  }
+
+  private char fold(char c) {
+    return ignoreCase && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private static int slot(long key, int mask) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private int child(int node, char c) {
+    long key = (long) node << 16 | c;
+    int mask = keys.length - 1;
+    for ( int i = slot(key, mask) ; keys[i] != -1 ; i = (i + 1) & mask ) {
+      if ( keys[i] == key ) {
+        return children[i];
+      }
+    }
+    return NONE;
+  }
+
+  private void putChild(long key, int node) {
+    int mask = keys.length - 1;
+    int i = slot(key, mask);
+    while ( keys[i] != -1 ) {
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    children[i] = node;
+  }
+
+  /**
+   * 加入一个词。同一个词加入多次时保留最小的值
+   * @param value 非负的值
+   */
+  public void add(String word, int value) {
+    int node = 0;
+    for ( int i = 0 ; i < word.length() ; i++ ) {
+      char c = fold(word.charAt(i));
+      int next = child(node, c);
+      if ( next == NONE ) {
+        if ( nodes == values.length ) {
+          values = Arrays.copyOf(values, nodes * 2);
+          Arrays.fill(values, nodes, values.length, NONE);
+        }
+        next = nodes++;
+        if ( ++edges * 2 > keys.length ) {
+          long [] oldKeys = keys;
+          int [] oldChildren = children;
+          keys = new long[keys.length * 2];
+          Arrays.fill(keys, -1);
+          children = new int[keys.length];
+          for ( int j = 0 ; j < oldKeys.length ; j++ ) {
+            if ( oldKeys[j] != -1 ) {
+              putChild(oldKeys[j], oldChildren[j]);
+            }
+          }
+        }
+        putChild((long) node << 16 | c, next);
+      }
+      node = next;
+    }
+    if ( values[node] == NONE || value < values[node] ) {
+      values[node] = value;
+    }
+    if ( word.length() == 1 ) {
+      char c = fold(word.charAt(0));
+      singles[c >>> 6] |= 1L << c;
+    }
+  }
+
+  /**
+   * @return text中[start, end)这个词的值，不在词表中时返回-1
+   */
+  public int get(String text, int start, int end) {
+    int node = 0;
+    for ( int i = start ; i < end && node != NONE ; i++ ) {
+      node = child(node, fold(text.charAt(i)));
+    }
+    return node == NONE ? NONE : values[node];
+  }
+
+  public boolean contains(String word) {
+    return get(word, 0, word.length()) >= 0;
+  }
+
+  public boolean contains(char c) {
+    c = fold(c);
+    return ( singles[c >>> 6] & 1L << c ) != 0;
+  }
+
+  /**
+   * 找出text中从start开始的所有词里值最小的一个，start可以等于text的长度
+   * @param length 输出这个词的长度
+   * @return 这个词的值，没有词时返回-1
+   */
+  public int match(String text, int start, int [] length) {
+    int best = values[0];
+    length[0] = 0;
+    int node = 0;
+    for ( int i = start ; i < text.length() ; i++ ) {
+      node = child(node, fold(text.charAt(i)));
+      if ( node == NONE ) {
+        break;
+      }
+      int value = values[node];
+      if ( value >= 0 && ( best < 0 || value < best ) ) {
+        best = value;
+        length[0] = i + 1 - start;
+      }
+    }
+    return best;
+  }
+}
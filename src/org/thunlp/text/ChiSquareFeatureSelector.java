@@ -0,0 +1,242 @@
+package org.thunlp.text;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 利用chi-square统计量进行特征选择。特征可以是词典中的词，也可以是FeatureHasher的桶。
+ *
+ * 每个特征的得分是它在各个类别上chi-square值的最大值（chimax），公式和原来
+ * selectFeaturesByChiSquare中的相同。计数来自FeatureStatistics，只取计数不为0的
+ * 类别，其他类别的计数按0计算。各个特征的得分互不相关，用fork-join分段并行计算。
+ *
+ * 选出得分最高的kept个特征用的是存放在两个基本类型数组中的最小堆，不再为每个特征
+ * 构造Term对象。得分相同时选id小的特征，也就是先加入词典的词，选中哪些特征只取决于
+ * 得分和词的先后顺序：设置了词典预算（见Lexicon.pruneLossy）时，没有被去掉过的词
+ * 得分和先后顺序都不变，选出的特征也不变。结果是一个int数组，下标是原来的词id，值是
+ * 新的特征id，没有选中的为-1，新的特征id按原来的id顺序从0开始编号。
+ *
+ * 词典经过lossy counting紧缩时，被去掉过的词的df会少计，df + Lexicon.getDelta是
+ * 真实df的上界。只有这个上界为1的词才确定只出现在一篇文档中，不参加选择；得分仍然
+ * 按实际的计数计算。
+ */
+public class ChiSquareFeatureSelector {
+	/**
+	 * 每个fork-join任务至少处理的特征数
+	 */
+	private static final int GRAIN = 4096;
+
+	private final FeatureStatistics stats;
+	private final Lexicon lexicon;
+	private int threads = 1;
+
+	/**
+	 * @param stats 训练集的统计
+	 * @param lexicon 特征选择前的词典，用来去掉只出现在一篇文档中的词（df + delta为1）
+	 * 和过长的词；使用特征哈希时为null，去掉df不超过1的桶
+	 */
+	public ChiSquareFeatureSelector( FeatureStatistics stats, Lexicon lexicon ) {
+		this.stats = stats;
+		this.lexicon = lexicon;
+	}
+
+	/**
+	 * 设置计算得分的线程数，为1时在调用者的线程中计算
+	 */
+	public void setThreads( int threads ) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * 计算所有特征的chimax
+	 * @param featureSize 特征的总数，特征应该是从0到featureSize编号的
+	 * @return 每个特征的chimax，不参加选择的特征为NaN
+	 */
+	public double [] score( int featureSize ) {
+		double [] scores = new double[featureSize];
+		ScoreTask task = new ScoreTask(scores, 0, featureSize);
+		if ( threads > 1 && featureSize > GRAIN ) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(task);
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			task.compute();
+		}
+		return scores;
+	}
+
+	/**
+	 * 选出chimax最高的kept个特征
+	 * @param featureSize 特征的总数
+	 * @param kept 要保留的特征数
+	 * @return 原来的词id到新特征id的对应表，没有选中的为-1
+	 */
+	public int [] select( int featureSize, int kept ) {
+		return selectTop(score(featureSize), kept);
+	}
+
+	/**
+	 * 计算[from, to)中特征的chimax
+	 */
+	private class ScoreTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double [] scores;
+		private final int from;
+		private final int to;
+
+		ScoreTask( double [] scores, int from, int to ) {
+			this.scores = scores;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if ( to - from > GRAIN && threads > 1 ) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ScoreTask(scores, from, mid),
+						new ScoreTask(scores, mid, to));
+				return;
+			}
+			int nclasses = stats.getNumClasses();
+			long ndocs = stats.getNumDocuments();
+			long [] classSize = new long[nclasses];
+			for ( int j = 0 ; j < nclasses ; j++ ) {
+				classSize[j] = stats.getClassSize(j);
+			}
+			int [] labels = new int[nclasses];
+			int [] counts = new int[nclasses];
+			long [] a = new long[nclasses];
+			long A, B, C, D;
+			for ( int i = from ; i < to ; i++ ) {
+				if ( lexicon == null ) {
+					if ( stats.getDocumentFrequency(i) <= 1 ) {
+						scores[i] = Double.NaN;
+						continue;
+					}
+				} else if ( lexicon.contains(i)
+						&& ( lexicon.getDocumentFrequency(i) + lexicon.getDelta(i) == 1
+						|| lexicon.getNameLength(i) > 50 ) ) {
+					scores[i] = Double.NaN;
+					continue;
+				}
+				int n = stats.getClassCounts(i, labels, counts);
+				for ( int k = 0 ; k < n ; k++ ) {
+					a[labels[k]] = counts[k];
+				}
+				long df = stats.getDocumentFrequency(i);
+				double chisqr;
+				double chimax = -1;
+				for ( int j = 0 ; j < nclasses ; j++ ) {
+					A = a[j];
+					B = df - A;
+					C = classSize[j] - A;
+					D = ndocs - A - B - C;
+					double fractorBase = (double)( (A+C) * (B+D) * (A+B) * (C+D) );
+					if ( Double.compare(fractorBase, 0.0 ) == 0 ) {
+						chisqr = 0;
+					} else {
+						// 不乘ndocs，因为所有特征的ndocs都一样
+						chisqr = ( A*D -B*C) / fractorBase * (A*D - B*C);
+					}
+					if ( chisqr > chimax ) {
+						chimax = chisqr;
+					}
+				}
+				for ( int k = 0 ; k < n ; k++ ) {
+					a[labels[k]] = 0;
+				}
+				scores[i] = chimax;
+			}
+		}
+	}
+
+	/**
+	 * 比较两个特征在选择中的先后，得分低的、得分相同时id大的排在前面，先被淘汰
+	 */
+	private static int compare( double x, int xId, double y, int yId ) {
+		int c = Double.compare(x, y);
+		return c != 0 ? c : ( xId > yId ? -1 : ( xId < yId ? 1 : 0 ) );
+	}
+
+	/**
+	 * 选出得分最高的kept个特征，得分相同时选id小的，得分为NaN的特征不参加选择
+	 * @return 原来的id到新id的对应表，没有选中的为-1
+	 */
+	public static int [] selectTop( double [] scores, int kept ) {
+		// 最小堆，堆顶是已选中的特征中得分最低、得分相同时id最大的
+		int [] heapId = new int[kept + 1];
+		double [] heapScore = new double[kept + 1];
+		int size = 0;
+		for ( int i = 0 ; i < scores.length ; i++ ) {
+			if ( Double.isNaN(scores[i]) ) {
+				continue;
+			}
+			// offer
+			int k = size++;
+			double x = scores[i];
+			while ( k > 0 ) {
+				int parent = (k - 1) >>> 1;
+				if ( compare(x, i, heapScore[parent], heapId[parent]) >= 0 ) {
+					break;
+				}
+				heapId[k] = heapId[parent];
+				heapScore[k] = heapScore[parent];
+				k = parent;
+			}
+			heapId[k] = i;
+			heapScore[k] = x;
+			if ( size > kept ) {
+				// poll
+				size--;
+				int lastId = heapId[size];
+				double last = heapScore[size];
+				k = 0;
+				int half = size >>> 1;
+				while ( k < half ) {
+					int child = 2 * k + 1;
+					int right = child + 1;
+					if ( right < size && compare(heapScore[child], heapId[child],
+							heapScore[right], heapId[right]) > 0 ) {
+						child = right;
+					}
+					if ( compare(last, lastId, heapScore[child], heapId[child]) <= 0 ) {
+						break;
+					}
+					heapId[k] = heapId[child];
+					heapScore[k] = heapScore[child];
+					k = child;
+				}
+				heapId[k] = lastId;
+				heapScore[k] = last;
+			}
+		}
+
+		int [] selected = Arrays.copyOf(heapId, size);
+		Arrays.sort(selected);
+		int [] remap = new int[scores.length];
+		Arrays.fill(remap, -1);
+		for ( int i = 0 ; i < selected.length ; i++ ) {
+			remap[selected[i]] = i;
+		}
+		return remap;
+	}
+
+	/**
+	 * 把对应表转换成原来的selectFeaturesByChiSquare返回的Map
+	 */
+	public static Map<Integer, Integer> toMap( int [] remap ) {
+		Map<Integer, Integer> fidmap = new Hashtable<Integer, Integer>();
+		for ( int i = 0 ; i < remap.length ; i++ ) {
+			if ( remap[i] >= 0 ) {
+				fidmap.put(i, remap[i]);
+			}
+		}
+		return fidmap;
+	}
+}
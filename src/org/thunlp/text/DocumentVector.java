@@ -2,8 +2,6 @@ package org.thunlp.text;
 
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.Hashtable;
 
 import org.thunlp.language.chinese.WordSegment;
 import org.thunlp.text.Lexicon.Word;
@@ -23,41 +21,73 @@ public class DocumentVector implements Serializable {
 	}
 	
 	public Term [] build( Word [] doc, boolean normalized) {
-		Hashtable<Integer, Term> terms = new Hashtable<Integer, Term>();
-		for ( Word w : doc ) {
-			Term t = terms.get(w.id);
-			if ( t == null ) {
-				t = new Term();
-				t.id = w.id;
-				t.weight = 0;
-				terms.put(t.id, t);
-			}
-			t.weight += 1;
+		return build(doc, normalized, new SparseVector(doc.length)).toTerms();
+	}
+	
+	/**
+	 * 由词的id序列构造特征向量，结果和build(Word[], boolean)相同。
+	 * @param ids 词的id，前n个有效，会被原地排序
+	 */
+	public Term [] build( int [] ids, int n, boolean normalized ) {
+		return build(ids, n, normalized, new SparseVector(n)).toTerms();
+	}
+	
+	/**
+	 * 构造特征向量，结果写入out（先清空）。词的id先放进out的id数组，排序后相同的id
+	 * 在原地合并，不使用Hashtable，也不为每个词构造Integer和Term
+	 * @return out
+	 */
+	public SparseVector build( Word [] doc, boolean normalized, SparseVector out ) {
+		out.clear();
+		out.ensureCapacity(doc.length);
+		int [] ids = out.getIds();
+		for ( int i = 0 ; i < doc.length ; i++ ) {
+			ids[i] = doc[i].id;
 		}
-		
-		
-		Term [] vec = new Term[terms.size()];
-		Enumeration<Term> en = terms.elements();
-		int i = 0;
+		Arrays.sort(ids, 0, doc.length);
+		return merge(ids, doc.length, normalized, out);
+	}
+	
+	/**
+	 * 由词的id序列构造特征向量，结果写入out（先清空）
+	 * @param ids 词的id，前n个有效，会被原地排序
+	 * @return out
+	 */
+	public SparseVector build( int [] ids, int n, boolean normalized, SparseVector out ) {
+		Arrays.sort(ids, 0, n);
+		out.clear();
+		out.ensureCapacity(n);
+		return merge(ids, n, normalized, out);
+	}
+	
+	/**
+	 * 把排好序的id中相同的合并成一个特征，tf是出现次数。out的容量至少为n；ids可以是
+	 * out自己的id数组，写入的位置不会超过正在读的位置
+	 */
+	private SparseVector merge( int [] ids, int n, boolean normalized, SparseVector out ) {
+		int [] outIds = out.getIds();
+		double [] outValues = out.getValues();
 		double normalizer = 0;
-		while ( en.hasMoreElements() ) {
-			vec[i] = en.nextElement();
-			vec[i].weight = 
-				weighter.weight( vec[i].id, vec[i].weight, doc.length);
-			normalizer += vec[i].weight * vec[i].weight;
-			i++;
+		int k = 0;
+		for ( int i = 0 ; i < n ; ) {
+			int id = ids[i];
+			int j = i + 1;
+			while ( j < n && ids[j] == id ) {
+				j++;
+			}
+			double weight = weighter.weight( id, j - i, n );
+			normalizer += weight * weight;
+			outIds[k] = id;
+			outValues[k] = weight;
+			k++;
+			i = j;
 		}
+		out.setSize(k);
 		
 		if ( normalized ) { 
-			normalizer = Math.sqrt(normalizer);
-			for ( Term t : vec ) {
-				t.weight /= normalizer;
-			}
+			out.normalize(normalizer);
 		}
-		
-		Arrays.sort(vec, idcomp);
-		
-		return vec;
+		return out;
 	}
 	
 	public double dotProduct( Term [] v1, Term[] v2 ) {
@@ -77,5 +107,9 @@ public class DocumentVector implements Serializable {
 		return product;
 	}
 	
+	public double dotProduct( SparseVector v1, SparseVector v2 ) {
+		return v1.dot(v2);
+	}
+	
 
 }
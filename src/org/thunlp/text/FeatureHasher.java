@@ -0,0 +1,258 @@
+package org.thunlp.text;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.thunlp.language.chinese.TokenBuffer;
+
+/**
+ * 特征哈希，代替词典把词转换成特征id。
+ *
+ * 每个词（打包的bigram直接用它的int，其他的词用字符）哈希到2^bits个桶中的一个，桶的
+ * 编号就是特征id，不需要保存任何词，内存只和桶数有关，和语料的词汇量无关。词的id只由
+ * 词本身决定，和加入训练文档的顺序无关，分成几部分处理的语料得到的id是一致的。
+ *
+ * 哈希值的最高位决定词的符号，一篇文档中一个桶的计数是落在这个桶里的词的出现次数按
+ * 符号相加，不同的词冲突时在期望上互相抵消。计数为0的桶不出现在文档向量中。
+ *
+ * 训练时每个桶的df由FeatureStatistics统计，哈希器本身不保存任何计数。特征选择之后
+ * 用map生成只保留选中的桶的哈希器，和Lexicon.map一样，之后的特征id是选中的桶按编号
+ * 排列的序号，没有选中的桶里的词被丢掉，同时记下选中的特征的df，用来计算idf。
+ */
+public class FeatureHasher implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private static final int DEFAULT_SEED = 0x5bd1e995;
+
+	private final int bits;
+	private final int mask;
+	private final int seed;
+	/**
+	 * map之后每个特征的df，map之前为null
+	 */
+	private int [] df = null;
+	private long numDocs = 0;
+	/**
+	 * map之后桶到特征id的对应表，没有选中的为-1；map之前为null，特征id就是桶的编号
+	 */
+	private int [] featureOf = null;
+
+	/**
+	 * @param bits 桶数的以2为底的对数，1到30之间
+	 */
+	public FeatureHasher( int bits ) {
+		this(bits, DEFAULT_SEED);
+	}
+
+	public FeatureHasher( int bits, int seed ) {
+		if ( bits < 1 || bits > 30 ) {
+			throw new IllegalArgumentException("bits must be in [1, 30]: " + bits);
+		}
+		this.bits = bits;
+		this.mask = (1 << bits) - 1;
+		this.seed = seed;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return 特征id的上界，map之前是桶数，之后是选中的桶数
+	 */
+	public int getSize() {
+		return df != null ? df.length : 1 << bits;
+	}
+
+	public long getNumDocs() {
+		return numDocs;
+	}
+
+	/**
+	 * @return map之后特征id的df
+	 */
+	public int getDocumentFrequency( int id ) {
+		return df[id];
+	}
+
+	/**
+	 * murmur3的finalizer，每一位输入影响每一位输出
+	 */
+	private static int mix( int h ) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int hash( int code ) {
+		return mix(code ^ seed);
+	}
+
+	/**
+	 * 一两个字符的词按打包后的int哈希，和TokenBuffer中打包的词得到相同的结果
+	 */
+	private int hash( String token ) {
+		int length = token.length();
+		if ( length == 1 ) {
+			return hash(TokenBuffer.pack(token.charAt(0)));
+		}
+		if ( length == 2 && token.charAt(0) != 0 ) {
+			return hash(TokenBuffer.pack(token.charAt(0), token.charAt(1)));
+		}
+		int h = seed;
+		for ( int i = 0 ; i < length ; i++ ) {
+			h = 31 * h + token.charAt(i);
+		}
+		return mix(h * 0x9e3779b1 + length);
+	}
+
+	/**
+	 * 把文档转换成特征的计数
+	 * @param doc 分词结果
+	 * @param ids 输出按升序排列、不重复的特征id，长度至少为doc.size()
+	 * @param tfs 输出对应的计数（按符号相加，不为0），长度至少为doc.size()
+	 * @return 特征个数
+	 */
+	public int count( TokenBuffer doc, int [] ids, int [] tfs ) {
+		int n = 0;
+		for ( int i = 0 ; i < doc.size() ; i++ ) {
+			int h = doc.isPacked(i) ? hash(doc.getCode(i)) : hash(doc.get(i));
+			int id = h & mask;
+			if ( featureOf != null ) {
+				id = featureOf[id];
+				if ( id < 0 ) {
+					continue;
+				}
+			}
+			// 最低位放符号，排序后同一个特征的词排在一起
+			ids[n++] = (id << 1) | (h >>> 31);
+		}
+		Arrays.sort(ids, 0, n);
+		int k = 0;
+		for ( int i = 0 ; i < n ; ) {
+			int id = ids[i] >>> 1;
+			int tf = 0;
+			for ( ; i < n && (ids[i] >>> 1) == id ; i++ ) {
+				tf += (ids[i] & 1) == 0 ? 1 : -1;
+			}
+			if ( tf != 0 ) {
+				ids[k] = id;
+				tfs[k] = tf;
+				k++;
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * 根据特征选择的结果生成新的哈希器
+	 * @param selected 原来的特征id到新特征id的对应表，没有选中的为-1，新的id从0开始
+	 * @param stats 以原来的特征id统计的训练集
+	 */
+	public FeatureHasher map( int [] selected, FeatureStatistics stats ) {
+		FeatureHasher h = new FeatureHasher(bits, seed);
+		h.numDocs = stats.getNumDocuments();
+		h.featureOf = new int[1 << bits];
+		Arrays.fill(h.featureOf, -1);
+		int size = 0;
+		for ( int id = 0 ; id < selected.length ; id++ ) {
+			size = Math.max(size, selected[id] + 1);
+		}
+		h.df = new int[size];
+		for ( int bucket = 0 ; bucket <= mask ; bucket++ ) {
+			int id = featureOf != null ? featureOf[bucket] : bucket;
+			if ( id < 0 || id >= selected.length || selected[id] < 0 ) {
+				continue;
+			}
+			h.featureOf[bucket] = selected[id];
+			h.df[selected[id]] = stats.getDocumentFrequency(id);
+		}
+		return h;
+	}
+
+	/**
+	 * 保存为文本文件：第一行是bits、seed和文档数，之后每行是“桶:特征id:df”。
+	 * 只能保存map之后的哈希器
+	 */
+	public boolean saveToFile( File f ) {
+		if ( featureOf == null ) {
+			return false;
+		}
+		try {
+			Writer out = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+			try {
+				out.write(bits + " " + seed + " " + numDocs + "\n");
+				for ( int bucket = 0 ; bucket <= mask ; bucket++ ) {
+					int id = featureOf[bucket];
+					if ( id < 0 ) {
+						continue;
+					}
+					out.write(bucket + ":" + id + ":" + df[id] + "\n");
+				}
+			} finally {
+				out.close();
+			}
+		} catch ( IOException e ) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 读入saveToFile保存的文件，只有文件中列出的桶里的词会被保留
+	 * @return 读入的哈希器；文件不能读取或者格式错误时返回null
+	 */
+	public static FeatureHasher loadFromFile( File f ) {
+		try {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			try {
+				String [] header = in.readLine().trim().split(" ");
+				FeatureHasher h = new FeatureHasher(Integer.parseInt(header[0]),
+						Integer.parseInt(header[1]));
+				h.numDocs = Long.parseLong(header[2]);
+				h.featureOf = new int[1 << h.bits];
+				Arrays.fill(h.featureOf, -1);
+				int [] df = new int[1024];
+				int size = 0;
+				String line;
+				while ( ( line = in.readLine() ) != null ) {
+					if ( line.length() == 0 ) {
+						continue;
+					}
+					String [] cols = line.split(":");
+					int bucket = Integer.parseInt(cols[0]);
+					int id = Integer.parseInt(cols[1]);
+					if ( id >= df.length ) {
+						df = Arrays.copyOf(df, Math.max(df.length * 2, id + 1));
+					}
+					h.featureOf[bucket] = id;
+					df[id] = Integer.parseInt(cols[2]);
+					size = Math.max(size, id + 1);
+				}
+				h.df = Arrays.copyOf(df, size);
+				return h;
+			} finally {
+				in.close();
+			}
+		} catch ( IOException e ) {
+			return null;
+		} catch ( RuntimeException e ) {
+			// 格式错误
+			return null;
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package org.thunlp.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 训练集中每个词在每个类别的文档频率，以及每个类别的文档数，是chi-square等特征选择
+ * 方法需要的全部计数。
+ *
+ * 分类器在addTrainingText时逐篇文档累加，特征选择不用再把磁盘上的训练集cache读一遍。
+ * 绝大多数词（特别是bigram）只出现在一两个类别中，所以不按词数*类别数分配计数，只
+ * 记录不为0的计数：每个词第一次出现的类别和计数直接放在按词id索引的数组里，其他类别
+ * 的计数放在一个以（词id，类别）为键的开放寻址哈希表中。内存占用和非0计数的个数成正比，
+ * 和类别数无关。
+ *
+ * 特征选择需要按词取出所有类别的计数，第一次调用getClassCounts时把哈希表整理成按
+ * 词id排列的压缩数组，之后可以在多个线程中同时读取。
+ */
+public class FeatureStatistics {
+	private final int nclasses;
+	/**
+	 * 每个词第一次出现的类别，-1表示还没有出现过
+	 */
+	private int [] firstLabel;
+	private int [] firstCount;
+	/**
+	 * 含有词id的文档数
+	 */
+	private int [] df;
+	/**
+	 * 其他类别的计数，键为id * nclasses + label，空位为-1
+	 */
+	private long [] keys;
+	private int [] values;
+	private int nkeys = 0;
+	private int [] classSize;
+	private int idLimit = 0;
+	private int ndocs = 0;
+
+	/**
+	 * 按词id排列的其他类别的计数，词id的计数在[offsets[id], offsets[id + 1])中
+	 */
+	private volatile int [] offsets = null;
+	private int [] otherLabels;
+	private int [] otherCounts;
+
+	public FeatureStatistics( int nclasses ) {
+		this.nclasses = nclasses;
+		this.firstLabel = new int[1024];
+		Arrays.fill(firstLabel, -1);
+		this.firstCount = new int[1024];
+		this.df = new int[1024];
+		this.keys = new long[1024];
+		Arrays.fill(keys, -1);
+		this.values = new int[1024];
+		this.classSize = new int[nclasses];
+	}
+
+	private void ensureCapacity( int id ) {
+		if ( id < df.length ) {
+			return;
+		}
+		int size = df.length;
+		while ( size <= id ) {
+			size *= 2;
+		}
+		int old = firstLabel.length;
+		firstLabel = Arrays.copyOf(firstLabel, size);
+		Arrays.fill(firstLabel, old, size, -1);
+		firstCount = Arrays.copyOf(firstCount, size);
+		df = Arrays.copyOf(df, size);
+	}
+
+	private static int slot( long key, int mask ) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * 哈希表中键key的计数加1
+	 */
+	private void increment( long key ) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while ( keys[i] != -1 ) {
+			if ( keys[i] == key ) {
+				values[i]++;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		put(key, 1);
+	}
+
+	/**
+	 * 在哈希表中加入一个还不存在的键
+	 */
+	private void put( long key, int value ) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while ( keys[i] != -1 ) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		nkeys++;
+		if ( nkeys * 2 > keys.length ) {
+			rehash(keys.length * 2);
+		}
+	}
+
+	private void rehash( int size ) {
+		long [] oldKeys = keys;
+		int [] oldValues = values;
+		keys = new long[size];
+		Arrays.fill(keys, -1);
+		values = new int[size];
+		int mask = size - 1;
+		for ( int j = 0 ; j < oldKeys.length ; j++ ) {
+			if ( oldKeys[j] == -1 ) {
+				continue;
+			}
+			int i = slot(oldKeys[j], mask);
+			while ( keys[i] != -1 ) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	private void add( int id, int label ) {
+		ensureCapacity(id);
+		if ( firstLabel[id] == label ) {
+			firstCount[id]++;
+		} else if ( firstLabel[id] < 0 ) {
+			firstLabel[id] = label;
+			firstCount[id] = 1;
+		} else {
+			increment((long) id * nclasses + label);
+		}
+		df[id]++;
+		if ( id >= idLimit ) {
+			idLimit = id + 1;
+		}
+	}
+
+	/**
+	 * 加入一篇文档，terms中的id不能重复
+	 * @param label 类别编号，从0开始
+	 */
+	public void addDocument( int label, Term [] terms ) {
+		for ( Term t : terms ) {
+			add(t.id, label);
+		}
+		classSize[label]++;
+		ndocs++;
+		offsets = null;
+	}
+
+	/**
+	 * 加入一篇文档，ids的前n个元素不能重复
+	 * @param label 类别编号，从0开始
+	 */
+	public void addDocument( int label, int [] ids, int n ) {
+		for ( int i = 0 ; i < n ; i++ ) {
+			add(ids[i], label);
+		}
+		classSize[label]++;
+		ndocs++;
+		offsets = null;
+	}
+
+	/**
+	 * 按新的词id重新编号，用于词典紧缩之后
+	 * @param translation 原来的词id到新id的对应表，小于0或者超出长度的词被去掉
+	 * @return 新的统计，文档数和各类别的文档数不变
+	 */
+	public FeatureStatistics map( int [] translation ) {
+		FeatureStatistics stats = new FeatureStatistics(nclasses);
+		int limit = Math.min(translation.length, idLimit);
+		for ( int id = 0 ; id < limit ; id++ ) {
+			int to = translation[id];
+			if ( to < 0 || firstLabel[id] < 0 ) {
+				continue;
+			}
+			stats.ensureCapacity(to);
+			stats.firstLabel[to] = firstLabel[id];
+			stats.firstCount[to] = firstCount[id];
+			stats.df[to] = df[id];
+			if ( to >= stats.idLimit ) {
+				stats.idLimit = to + 1;
+			}
+		}
+		for ( int j = 0 ; j < keys.length ; j++ ) {
+			if ( keys[j] == -1 ) {
+				continue;
+			}
+			int id = (int) (keys[j] / nclasses);
+			if ( id < limit && translation[id] >= 0 ) {
+				long key = (long) translation[id] * nclasses + keys[j] % nclasses;
+				stats.put(key, values[j]);
+			}
+		}
+		stats.classSize = classSize.clone();
+		stats.ndocs = ndocs;
+		return stats;
+	}
+
+	/**
+	 * 把哈希表中的计数按词id整理成压缩数组
+	 */
+	private synchronized int [] buildOffsets() {
+		if ( offsets != null ) {
+			return offsets;
+		}
+		int [] start = new int[idLimit + 1];
+		for ( int j = 0 ; j < keys.length ; j++ ) {
+			if ( keys[j] != -1 ) {
+				start[(int) (keys[j] / nclasses) + 1]++;
+			}
+		}
+		for ( int i = 0 ; i < idLimit ; i++ ) {
+			start[i + 1] += start[i];
+		}
+		int [] next = Arrays.copyOf(start, idLimit);
+		otherLabels = new int[nkeys];
+		otherCounts = new int[nkeys];
+		for ( int j = 0 ; j < keys.length ; j++ ) {
+			if ( keys[j] != -1 ) {
+				int k = next[(int) (keys[j] / nclasses)]++;
+				otherLabels[k] = (int) (keys[j] % nclasses);
+				otherCounts[k] = values[j];
+			}
+		}
+		offsets = start;
+		return start;
+	}
+
+	/**
+	 * 从addTrainingText写出的训练集cache中统计
+	 * @return 统计结果；读取出错时返回null
+	 */
+	public static FeatureStatistics readCache( File cacheFile, int nclasses ) {
+		final FeatureStatistics stats = new FeatureStatistics(nclasses);
+		TrainingCache cache = null;
+		try {
+			cache = TrainingCache.open(cacheFile);
+			cache.scan(0, cache.size(), new TrainingCache.Handler() {
+				public void document( int index, TrainingCache.Document doc ) {
+					stats.addDocument(doc.label, doc.ids, doc.nterms);
+				}
+			});
+		} catch ( IOException e ) {
+			return null;
+		} finally {
+			if ( cache != null ) {
+				try {
+					cache.close();
+				} catch ( IOException e ) {
+				}
+			}
+		}
+		return stats;
+	}
+
+	public int getNumClasses() {
+		return nclasses;
+	}
+
+	/**
+	 * @return 出现过的最大词id加1
+	 */
+	public int getIdLimit() {
+		return idLimit;
+	}
+
+	public int getNumDocuments() {
+		return ndocs;
+	}
+
+	public int getClassSize( int label ) {
+		return classSize[label];
+	}
+
+	/**
+	 * @return 含有词id的文档数
+	 */
+	public int getDocumentFrequency( int id ) {
+		return id < idLimit ? df[id] : 0;
+	}
+
+	/**
+	 * @return 类别label中含有词id的文档数
+	 */
+	public int getDocumentFrequency( int id, int label ) {
+		if ( id >= idLimit || firstLabel[id] < 0 ) {
+			return 0;
+		}
+		if ( firstLabel[id] == label ) {
+			return firstCount[id];
+		}
+		long key = (long) id * nclasses + label;
+		int mask = keys.length - 1;
+		for ( int i = slot(key, mask) ; keys[i] != -1 ; i = (i + 1) & mask ) {
+			if ( keys[i] == key ) {
+				return values[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * 取出词id计数不为0的类别，不能和addDocument同时调用
+	 * @param labels 输出类别，长度至少为类别数
+	 * @param counts 输出对应类别中含有词id的文档数
+	 * @return 计数不为0的类别个数
+	 */
+	public int getClassCounts( int id, int [] labels, int [] counts ) {
+		if ( id >= idLimit || firstLabel[id] < 0 ) {
+			return 0;
+		}
+		int [] start = offsets;
+		if ( start == null ) {
+			start = buildOffsets();
+		}
+		labels[0] = firstLabel[id];
+		counts[0] = firstCount[id];
+		int n = 1;
+		for ( int k = start[id] ; k < start[id + 1] ; k++ ) {
+			labels[n] = otherLabels[k];
+			counts[n] = otherCounts[k];
+			n++;
+		}
+		return n;
+	}
+}
@@ -1,5 +1,7 @@
 package org.thunlp.text;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -8,8 +10,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -30,73 +38,488 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;*/
 import org.thunlp.io.TextFileWriter;
+import org.thunlp.language.chinese.TokenBuffer;
 import org.thunlp.misc.IntPair;
 //import org.thunlp.tool.FolderReader;
 
+/**
+ * 词典。为了在百万乃至千万量级的bigram上节省内存，词条不再以Word对象的形式保存，
+ * 而是按id存放在若干平行的基本类型数组中（tf、df、名称在字符池中的位置），名称到
+ * id的查找使用一个开放寻址的int数组哈希表。Word只在调用getWord时临时构造。
+ *
+ * 锁定词典时按当时的文档频率算好每个词的idf，分类时的tf-idf权重直接查表，见getIdf。
+ */
 public class Lexicon implements Serializable {
   private static final long serialVersionUID = 1L;
 
+  /**
+   * Java序列化（saveToString/loadFromString）的格式，和以前用Hashtable保存词条的版本
+   * 相同：以前保存的模型可以直接读入，新保存的模型以前的版本也能读。词条在writeObject
+   * 和readObject中和数组互相转换
+   */
+  private static final ObjectStreamField [] serialPersistentFields = {
+    new ObjectStreamField("idHash", Hashtable.class),
+    new ObjectStreamField("nameHash", Hashtable.class),
+    new ObjectStreamField("locked", boolean.class),
+    new ObjectStreamField("numDocs", long.class),
+    new ObjectStreamField("termSet", HashSet.class),
+  };
+
   protected static String COLON_REPLACER = "~CLN~";
 
-  protected Hashtable<Integer, Word> idHash;
-  protected Hashtable<String, Word> nameHash;
+  private static final int INITIAL_CAPACITY = 50000;
+  private static final int EMPTY = -1;
+
+  // 以下数组都以词的id为下标，nameOffset为EMPTY表示该id未被使用
+  protected int [] tf;
+  protected int [] df;
+  protected int [] nameOffset;
+  protected int [] nameLength;
+  protected int [] nameHash;
+  // 所有词的名称首尾相接存放在这里
+  protected char [] namePool;
+  protected int poolSize;
+  // 名称到id的开放寻址哈希表，长度总是2的幂，空位为EMPTY
+  protected int [] index;
+  // 词的个数，以及已用id的上界（最大id + 1）
+  protected int size;
+  protected int idLimit;
   protected boolean locked;
   protected long numDocs;
+
+  // addDocument时用来判断一个词在当前文档中是否已经出现过，保存最后出现的文档序号
+  private transient int [] lastSeen;
+  private transient int docSerial;
+
+  // 锁定时算好的idf，以及计算时的文档数和词数，统计变了之后在getIdf中重新计算
+  private transient volatile double [] idf;
+  private transient long idfNumDocs;
+  private transient int idfLimit;
+  private transient int idfSize;
+
+  // lossy counting（见pruneLossy）中每个词的df可能少计的次数，df + delta是真实df的
+  // 上界；从来没有去掉过词时为null。evicted按名称的哈希值记录已经去掉的词去掉时的
+  // df + delta，同一个位置取最大值，新加入的词的delta取它所在位置的值
+  private int [] delta;
+  private int [] evicted;
   
   public static String NUM_DOCS_STR = "";
 
   public Lexicon () {
-    idHash = new Hashtable<Integer, Word>(50000);
-    nameHash = new Hashtable<String, Word>(50000);
+    this(INITIAL_CAPACITY);
+  }
+
+  protected Lexicon(int capacity) {
+    allocate(capacity);
     locked = false;
     numDocs = 0;
   }
   
   public Lexicon(File f) {
-    idHash = new Hashtable<Integer, Word>(50000);
-    nameHash = new Hashtable<String, Word>(50000);
-    locked = false;
-    numDocs = 0;
+    this();
     loadFromFile(f);
   }
 
+  private void allocate(int capacity) {
+    capacity = Math.max(capacity, 16);
+    tf = new int[capacity];
+    df = new int[capacity];
+    nameOffset = new int[capacity];
+    Arrays.fill(nameOffset, EMPTY);
+    nameLength = new int[capacity];
+    nameHash = new int[capacity];
+    namePool = new char[capacity * 2];
+    poolSize = 0;
+    int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+    index = new int[slots];
+    Arrays.fill(index, EMPTY);
+    size = 0;
+    idLimit = 0;
+    lastSeen = null;
+  }
+
+  /**
+   * 清空词典，保留已分配的空间
+   */
+  protected void clearEntries() {
+    idf = null;
+    Arrays.fill(nameOffset, 0, idLimit, EMPTY);
+    Arrays.fill(tf, 0, idLimit, 0);
+    Arrays.fill(df, 0, idLimit, 0);
+    Arrays.fill(index, EMPTY);
+    poolSize = 0;
+    size = 0;
+    idLimit = 0;
+    lastSeen = null;
+    delta = null;
+    evicted = null;
+  }
+
+  private void ensureIdCapacity(int capacity) {
+    if (capacity <= tf.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, tf.length + (tf.length >> 1));
+    tf = Arrays.copyOf(tf, newCapacity);
+    df = Arrays.copyOf(df, newCapacity);
+    int oldLength = nameOffset.length;
+    nameOffset = Arrays.copyOf(nameOffset, newCapacity);
+    Arrays.fill(nameOffset, oldLength, newCapacity, EMPTY);
+    nameLength = Arrays.copyOf(nameLength, newCapacity);
+    nameHash = Arrays.copyOf(nameHash, newCapacity);
+    if (lastSeen != null) {
+      lastSeen = Arrays.copyOf(lastSeen, newCapacity);
+    }
+    if (delta != null) {
+      delta = Arrays.copyOf(delta, newCapacity);
+    }
+  }
+
+  private void ensurePoolCapacity(int capacity) {
+    if (capacity > namePool.length) {
+      namePool = Arrays.copyOf(namePool,
+          Math.max(capacity, namePool.length + (namePool.length >> 1)));
+    }
+  }
+
+  /**
+   * 名称的哈希值。不用String.hashCode，因为两个汉字的31*c0+c1只有十万左右个取值，
+   * 大量bigram会落在同一个位置上，线性探测时连成很长的聚集。这里的乘数大于任何
+   * char，保证两个字符以内的名称哈希值互不相同，放入哈希表前再乘一个奇数常数打散。
+   */
+  static int hash(CharSequence name) {
+    int h = 0;
+    for (int i = 0; i < name.length(); i++) {
+      h = h * 65599 + name.charAt(i);
+    }
+    return h;
+  }
+
+  /**
+   * 打包的名称（见TokenBuffer）的哈希值，和hash(CharSequence)对同样的名称结果相同
+   */
+  static int hash(int code) {
+    int c0 = code >>> 16;
+    if ( c0 == 0 ) {
+      return code;
+    }
+    return c0 * 65599 + (code & 0xFFFF);
+  }
+
+  private static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private void rehash(int slots) {
+    index = new int[slots];
+    Arrays.fill(index, EMPTY);
+    int mask = slots - 1;
+    for (int id = 0; id < idLimit; id++) {
+      if (nameOffset[id] == EMPTY) {
+        continue;
+      }
+      int slot = mix(nameHash[id]) & mask;
+      while (index[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      index[slot] = id;
+    }
+  }
+
+  private boolean nameEquals(int id, String name) {
+    int len = nameLength[id];
+    if (len != name.length()) {
+      return false;
+    }
+    int offset = nameOffset[id];
+    for (int i = 0; i < len; i++) {
+      if (namePool[offset + i] != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean nameEquals(int id, int code) {
+    int offset = nameOffset[id];
+    int c0 = code >>> 16;
+    if ( c0 == 0 ) {
+      return nameLength[id] == 1 && namePool[offset] == code;
+    }
+    return nameLength[id] == 2 && namePool[offset] == c0
+        && namePool[offset + 1] == (char) code;
+  }
+
+  /**
+   * 查找一个词的id
+   * @return 词的id，不存在时返回-1
+   */
+  public int getId(String name) {
+    int h = hash(name);
+    int mask = index.length - 1;
+    int slot = mix(h) & mask;
+    int id;
+    while ((id = index[slot]) != EMPTY) {
+      if (nameHash[id] == h && nameEquals(id, name)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return EMPTY;
+  }
+
+  /**
+   * 查找一个打包的词（一个或两个字符，见TokenBuffer）的id，不用构造String
+   * @return 词的id，不存在时返回-1
+   */
+  public int getId(int code) {
+    int h = hash(code);
+    int mask = index.length - 1;
+    int slot = mix(h) & mask;
+    int id;
+    while ((id = index[slot]) != EMPTY) {
+      if (nameHash[id] == h && nameEquals(id, code)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return EMPTY;
+  }
+
+  /**
+   * 以指定的id加入一个新词，调用者保证该词和该id都还未被使用
+   */
+  protected void put(int id, String name, int tf, int df) {
+    int len = name.length();
+    ensurePoolCapacity(poolSize + len);
+    name.getChars(0, len, namePool, poolSize);
+    put(id, len, hash(name), tf, df);
+  }
+
+  private void put(int id, int code, int tf, int df) {
+    ensurePoolCapacity(poolSize + 2);
+    int c0 = code >>> 16;
+    if ( c0 == 0 ) {
+      namePool[poolSize] = (char) code;
+      put(id, 1, code, tf, df);
+    } else {
+      namePool[poolSize] = (char) c0;
+      namePool[poolSize + 1] = (char) code;
+      put(id, 2, hash(code), tf, df);
+    }
+  }
+
+  /**
+   * 登记一个名称已经写在namePool[poolSize]处的新词
+   */
+  private void put(int id, int len, int h, int tf, int df) {
+    ensureIdCapacity(id + 1);
+    nameOffset[id] = poolSize;
+    nameLength[id] = len;
+    nameHash[id] = h;
+    poolSize += len;
+    this.tf[id] = tf;
+    this.df[id] = df;
+    size++;
+    if (id >= idLimit) {
+      idLimit = id + 1;
+    }
+    if (size * 2 > index.length) {
+      rehash(index.length * 2);
+    } else {
+      int mask = index.length - 1;
+      int slot = mix(nameHash[id]) & mask;
+      while (index[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      index[slot] = id;
+    }
+  }
+
+  /**
+   * 加入一个新词，使用下一个可用的id
+   */
+  protected int add(String name, int tf, int df) {
+    int id = idLimit;
+    put(id, name, tf, df);
+    setNewWordDelta(id);
+    return id;
+  }
+
+  private int addPacked(int code, int tf, int df) {
+    int id = idLimit;
+    put(id, code, tf, df);
+    setNewWordDelta(id);
+    return id;
+  }
+
+  /**
+   * 锁定或解锁词典。锁定之后convertDocument和addDocument不再加入新词，同时算好
+   * getIdf返回的表
+   */
   public void setLock( boolean locked ) {
     this.locked = locked;
+    idf = locked ? computeIdf() : null;
+  }
+
+  /**
+   * 锁定词典，直接使用已经算好的idf（例如二进制模型中保存的），不重新计算
+   * @param idf 和getIdf的公式相同，长度不小于getIdLimit()，之后不能再修改
+   */
+  public void lock( double [] idf ) {
+    if ( idf.length < idLimit ) {
+      throw new IllegalArgumentException("expect " + idLimit + 
+          " idf values, got " + idf.length);
+    }
+    this.locked = true;
+    idfNumDocs = numDocs;
+    idfLimit = idLimit;
+    idfSize = size;
+    this.idf = idf;
   }
 
   public boolean getLock() {
     return this.locked;
   }
 
+  public boolean contains( int id ) {
+    return id >= 0 && id < idLimit && nameOffset[id] != EMPTY;
+  }
+
   public Word getWord( int id ) {
-    return idHash.get ( id );
+    if ( ! contains(id) ) {
+      return null;
+    }
+    return new Word(this, id, null, tf[id], df[id]);
   }
 
   public Word getWord( String name ) {
-    return nameHash.get ( name );
+    int id = getId(name);
+    if ( id == EMPTY ) {
+      return null;
+    }
+    return new Word(this, id, name, tf[id], df[id]);
+  }
+
+  public String getName( int id ) {
+    return new String(namePool, nameOffset[id], nameLength[id]);
+  }
+
+  public int getNameLength( int id ) {
+    return nameLength[id];
+  }
+
+  public int getFrequency( int id ) {
+    return tf[id];
+  }
+
+  public int getDocumentFrequency( int id ) {
+    return df[id];
+  }
+
+  /**
+   * lossy counting中这个词的df可能少计的次数，getDocumentFrequency(id) + getDelta(id)
+   * 是它真实df的上界。没有用pruneLossy去掉过词时总是0
+   */
+  public int getDelta( int id ) {
+    return delta == null ? 0 : delta[id];
+  }
+
+  /**
+   * 每个词的idf = log10(numDocs / df + 1)，和TfIdfTermWeighter一致，以词的id为下标，
+   * 长度为getIdLimit()，没有使用的id为0。锁定的词典返回锁定时算好的表，锁定之后
+   * 文档数或者词变了时重新计算一次；没有锁定时每次都重新计算。返回的数组不会再被
+   * 修改，调用者也不能修改
+   */
+  public double [] getIdf() {
+    double [] table = idf;
+    if ( table != null && idfNumDocs == numDocs && idfLimit == idLimit 
+        && idfSize == size ) {
+      return table;
+    }
+    table = computeIdf();
+    if ( locked ) {
+      idf = table;
+    }
+    return table;
+  }
+
+  private double [] computeIdf() {
+    double [] table = new double[idLimit];
+    for ( int id = 0 ; id < idLimit ; id++ ) {
+      if ( nameOffset[id] != EMPTY ) {
+        table[id] = Math.log10( (double) numDocs / df[id] + 1 );
+      }
+    }
+    idfNumDocs = numDocs;
+    idfLimit = idLimit;
+    idfSize = size;
+    return table;
+  }
+
+  /**
+   * 已用id的上界，所有词的id都小于这个值
+   */
+  public int getIdLimit() {
+    return idLimit;
+  }
+
+  private int beginDocument() {
+    if ( lastSeen == null || lastSeen.length < tf.length ) {
+      lastSeen = lastSeen == null ?
+          new int[tf.length] : Arrays.copyOf(lastSeen, tf.length);
+    }
+    return ++docSerial;
+  }
+
+  private void count(int id, int serial) {
+    tf[id] += 1;
+    if ( lastSeen[id] != serial ) {
+      lastSeen[id] = serial;
+      df[id]++;
+    }
   }
 
-  private Set<Integer> termSet = new HashSet<Integer>(256);
   public void addDocument ( String [] doc ) {
-    termSet.clear();
+    int serial = beginDocument();
     for ( String token : doc ) {
-      Word t = nameHash.get(token);
-      if ( t == null ) {
+      int id = getId(token);
+      if ( id == EMPTY ) {
         if ( locked )
           continue;
-        t = new Word();
-        t.name = token;
-        t.id = nameHash.size();
-        t.tf = 0;
-        t.df = 0;
-        nameHash.put(t.name, t);
-        idHash.put(t.id, t);
+        id = add(token, 0, 0);
       }
-      t.tf += 1;
-      if ( ! termSet.contains(t.id) ) {
-        termSet.add(t.id);
-        t.df++;
+      count(id, serial);
+    }
+    numDocs ++ ;
+  }
+
+  /**
+   * 和addDocument(String[])相同，打包的词直接用int查找
+   */
+  public void addDocument ( TokenBuffer doc ) {
+    int serial = beginDocument();
+    for ( int i = 0 ; i < doc.size() ; i++ ) {
+      int id;
+      if ( doc.isPacked(i) ) {
+        int code = doc.getCode(i);
+        id = getId(code);
+        if ( id == EMPTY ) {
+          if ( locked )
+            continue;
+          id = addPacked(code, 0, 0);
+        }
+      } else {
+        String token = doc.get(i);
+        id = getId(token);
+        if ( id == EMPTY ) {
+          if ( locked )
+            continue;
+          id = add(token, 0, 0);
+        }
       }
+      count(id, serial);
     }
     numDocs ++ ;
   }
@@ -106,32 +529,54 @@ public class Lexicon implements Serializable {
     int n = 0;
     for ( int i = 0 ; i < doc.length ; i++ ) {
       String token = doc[i];
-      Word t = nameHash.get( token );
-      if ( t == null ) {
+      int id = getId( token );
+      if ( id == EMPTY ) {
         if ( locked ) 
           continue;
-        t = new Word ();
-        t.name = token;
-        t.tf = 1;
-        t.df = 1;
-        t.id = nameHash.size();
-        nameHash.put(t.name, t);
-        idHash.put(t.id, t);
+        id = add(token, 1, 1);
       }
-      terms[n++] = t;
+      terms[n++] = new Word(this, id, token, tf[id], df[id]);
     }
     if ( n < terms.length ) {
-      Word [] finalterms = new Word[n];
-      for ( int i = 0 ; i < n ; i++ ) {
-        finalterms[i] = terms[i];
-      }
-      terms = finalterms;
+      terms = Arrays.copyOf(terms, n);
     }
     return terms;
   }
 
+  /**
+   * 把文档转换成词的id序列，不构造Word。词典锁定时丢掉不在词典中的词，否则把它们
+   * 加入词典，和convertDocument(String[])相同。
+   * @param ids 存放结果，长度至少为doc.size()
+   * @return 写入ids的个数
+   */
+  public int convertDocument ( TokenBuffer doc, int [] ids ) {
+    int n = 0;
+    for ( int i = 0 ; i < doc.size() ; i++ ) {
+      int id;
+      if ( doc.isPacked(i) ) {
+        int code = doc.getCode(i);
+        id = getId(code);
+        if ( id == EMPTY ) {
+          if ( locked )
+            continue;
+          id = addPacked(code, 1, 1);
+        }
+      } else {
+        String token = doc.get(i);
+        id = getId(token);
+        if ( id == EMPTY ) {
+          if ( locked )
+            continue;
+          id = add(token, 1, 1);
+        }
+      }
+      ids[n++] = id;
+    }
+    return n;
+  }
+
   public int getSize() {
-    return idHash.size();
+    return size;
   }
 
   public long getNumDocs() {
@@ -140,13 +585,15 @@ public class Lexicon implements Serializable {
 
   public boolean saveToFile( File f ) {
     try {
-      FileOutputStream fos = new FileOutputStream( f );
-      Enumeration<Word> e = nameHash.elements();
+      OutputStream fos = new BufferedOutputStream(new FileOutputStream( f ));
       String numDocsStr = numDocs + "\n";
       fos.write( numDocsStr.getBytes() );
-      while ( e.hasMoreElements() ) {
-        Word t = e.nextElement();
-        String termString = t.toString() + "\n";
+      for ( int id = 0 ; id < idLimit ; id++ ) {
+        if ( nameOffset[id] == EMPTY )
+          continue;
+        String termString = id + ":" + 
+          getName(id).replace(":", COLON_REPLACER) + ":" + 
+          tf[id] + ":" + df[id] + "\n";
         fos.write( termString.getBytes("utf8") );
       }
       fos.close();
@@ -161,8 +608,7 @@ public class Lexicon implements Serializable {
   }
 
   public boolean loadFromInputStream(InputStream input) {
-    nameHash.clear();
-    idHash.clear();
+    clearEntries();
     try {
       BufferedReader reader =
         new BufferedReader( new InputStreamReader( input, "UTF-8") );
@@ -172,8 +618,7 @@ public class Lexicon implements Serializable {
       while ( (termString = reader.readLine()) != null ) {
         Word t = buildWord( termString );
         if ( t != null ) {
-          nameHash.put( t.name, t);
-          idHash.put( t.id, t);
+          put( t.id, t.name, t.tf, t.df );
         }
       }
       reader.close();
@@ -192,7 +637,79 @@ public class Lexicon implements Serializable {
     } catch (FileNotFoundException e) {
       return false;
     }
-    return loadFromInputStream(fis);
+    return loadFromInputStream(new BufferedInputStream(fis));
+  }
+
+  /**
+   * writeTo写出的字节数
+   */
+  public long binarySize() {
+    return 8 + 4 * 4 + 4L * (5L * idLimit + index.length) + 2L * poolSize;
+  }
+
+  /**
+   * 把词典的内部数组原样写入out（字节序由out决定），readFrom读入时不需要重新
+   * 解析名称，也不需要重建哈希表。
+   */
+  public void writeTo( ByteBuffer out ) {
+    out.putLong(numDocs);
+    out.putInt(size);
+    out.putInt(idLimit);
+    out.putInt(poolSize);
+    out.putInt(index.length);
+    putInts(out, tf, idLimit);
+    putInts(out, df, idLimit);
+    putInts(out, nameOffset, idLimit);
+    putInts(out, nameLength, idLimit);
+    putInts(out, nameHash, idLimit);
+    putInts(out, index, index.length);
+    out.asCharBuffer().put(namePool, 0, poolSize);
+    out.position(out.position() + 2 * poolSize);
+  }
+
+  private static void putInts( ByteBuffer out, int [] a, int n ) {
+    out.asIntBuffer().put(a, 0, n);
+    out.position(out.position() + 4 * n);
+  }
+
+  private static int [] getInts( ByteBuffer in, int n ) {
+    int [] a = new int[n];
+    in.asIntBuffer().get(a);
+    in.position(in.position() + 4 * n);
+    return a;
+  }
+
+  /**
+   * 读入writeTo写出的词典，读入后in的position在词典数据之后
+   * @return 读入的词典；数据不完整或者不一致时返回null
+   */
+  public static Lexicon readFrom( ByteBuffer in ) {
+    try {
+      Lexicon l = new Lexicon(0);
+      l.numDocs = in.getLong();
+      l.size = in.getInt();
+      l.idLimit = in.getInt();
+      l.poolSize = in.getInt();
+      int slots = in.getInt();
+      if ( l.size < 0 || l.size > l.idLimit || l.poolSize < 0
+          || slots < 2 * l.size || Integer.bitCount(slots) != 1 ) {
+        return null;
+      }
+      l.tf = getInts(in, l.idLimit);
+      l.df = getInts(in, l.idLimit);
+      l.nameOffset = getInts(in, l.idLimit);
+      l.nameLength = getInts(in, l.idLimit);
+      l.nameHash = getInts(in, l.idLimit);
+      l.index = getInts(in, slots);
+      l.namePool = new char[l.poolSize];
+      in.asCharBuffer().get(l.namePool);
+      in.position(in.position() + 2 * l.poolSize);
+      return l;
+    } catch (BufferUnderflowException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
   }
 
   protected Word buildWord ( String termString ) {
@@ -209,23 +726,21 @@ public class Lexicon implements Serializable {
   }
 
   public void mergeFrom(Lexicon another) {
-    for (int i = 0; i < another.getSize(); i++) {
-      Word other = another.getWord(i);
-      Word local = this.getWord(other.name);
-      if (local == null) {
-        local = new Word();
-        local.name = other.name;
-        local.df = other.df;
-        local.tf = other.tf;
-        local.id = idHash.size();
-        idHash.put(local.id, local);
-        nameHash.put(local.name, local);
+    for (int i = 0; i < another.idLimit; i++) {
+      if (another.nameOffset[i] == EMPTY) {
+        continue;
+      }
+      String name = another.getName(i);
+      int local = getId(name);
+      if (local == EMPTY) {
+        add(name, another.tf[i], another.df[i]);
       } else {
-        local.df += other.df;
-        local.tf += other.tf;
+        df[local] += another.df[i];
+        tf[local] += another.tf[i];
       }
     }
     this.numDocs += another.numDocs;
+    idf = null;
   }
   
   /**
@@ -234,23 +749,128 @@ public class Lexicon implements Serializable {
    * @param translation 影射表
    */
   public Lexicon map( Map<Integer, Integer> translation ) {
-    Lexicon newlex = new Lexicon();
-    Hashtable<Integer, Word> newIdHash = new Hashtable<Integer, Word>();
-    Hashtable<String, Word> newNameHash = new Hashtable<String, Word>();
-
+    Lexicon newlex = new Lexicon(translation.size());
     for ( Entry<Integer, Integer> e : translation.entrySet()){
-      Word w = idHash.get(e.getKey());
-      Word nw = (Word) w.clone();
-      nw.id = e.getValue();
-      newIdHash.put(nw.id, nw);
-      newNameHash.put(nw.getName(), nw);
-    }
-    newlex.idHash = newIdHash;
-    newlex.nameHash = newNameHash;
+      int id = e.getKey();
+      newlex.put(e.getValue(), getName(id), tf[id], df[id]);
+      newlex.copyDelta(this, id, e.getValue());
+    }
     newlex.numDocs = this.numDocs;
+    newlex.evicted = evicted == null ? null : evicted.clone();
     return newlex;
   }
 
+  /**
+   * 紧缩词典，原来编号为i的word变为编号为translation[i]的word，去掉translation[i]
+   * 小于0的word。名字直接从namePool复制，不构造String
+   * @param translation 影射表，长度可以小于getIdLimit()，超出部分的word都去掉
+   */
+  public Lexicon map( int [] translation ) {
+    int limit = Math.min(translation.length, idLimit);
+    int n = 0;
+    for ( int i = 0 ; i < limit ; i++ ) {
+      if ( translation[i] >= 0 && nameOffset[i] != EMPTY ) {
+        n++;
+      }
+    }
+    Lexicon newlex = new Lexicon(n);
+    for ( int i = 0 ; i < limit ; i++ ) {
+      if ( translation[i] < 0 || nameOffset[i] == EMPTY ) {
+        continue;
+      }
+      int len = nameLength[i];
+      newlex.ensurePoolCapacity(newlex.poolSize + len);
+      System.arraycopy(namePool, nameOffset[i], newlex.namePool, newlex.poolSize, len);
+      newlex.put(translation[i], len, nameHash[i], tf[i], df[i]);
+      newlex.copyDelta(this, i, translation[i]);
+    }
+    newlex.numDocs = this.numDocs;
+    newlex.evicted = evicted == null ? null : evicted.clone();
+    return newlex;
+  }
+
+  private void setNewWordDelta(int id) {
+    if (evicted != null) {
+      int d = evicted[mix(nameHash[id]) & (evicted.length - 1)];
+      if (d > 0) {
+        setDelta(id, d);
+      }
+    }
+  }
+
+  private void setDelta(int id, int d) {
+    if (delta == null) {
+      delta = new int[tf.length];
+    }
+    delta[id] = d;
+  }
+
+  private void copyDelta(Lexicon from, int fromId, int id) {
+    if (from.delta != null && from.delta[fromId] > 0) {
+      setDelta(id, from.delta[fromId]);
+    }
+  }
+
+  /**
+   * lossy counting（Manku and Motwani, 2002）的一次紧缩，在第bucket个桶结束时调用，
+   * 计算去掉词用的映射表。
+   *
+   * 只有df + getDelta(id)不超过bucket的词可以去掉，按df从低到高（先去掉只出现过一次
+   * 的词），df相同时先去掉id小、也就是更早加入词典的词，剩下maxSize个词时停止。
+   * 可以去掉的词不够时词典会超过maxSize，而不去掉上界超过bucket的词。被去掉的词
+   * 到去掉时为止真实的df不超过df + delta，这个值按名称的哈希值记在一张长度约为
+   * maxSize的表中，同一个位置取最大值；以后加入的词的delta取它所在位置的值，没有
+   * 去掉过同一位置的词时为0，所以df + delta始终是真实df的上界。新的id按原来的顺序
+   * 从0开始编号，可以直接传给map(int[])
+   * @param bucket 当前的桶号，从1开始
+   * @param maxSize 紧缩后希望保留的词数
+   * @return 原来的id到新id的对应表，去掉的词为-1；没有可以去掉的词时返回null
+   */
+  public int [] pruneLossy( int bucket, int maxSize ) {
+    // 可以去掉的词按df的直方图，df不会超过bucket
+    int [] histogram = new int[bucket + 1];
+    int candidates = 0;
+    for ( int i = 0 ; i < idLimit ; i++ ) {
+      if ( nameOffset[i] != EMPTY && df[i] + getDelta(i) <= bucket ) {
+        histogram[df[i]]++;
+        candidates++;
+      }
+    }
+    int excess = Math.min(size - maxSize, candidates);
+    if ( excess <= 0 ) {
+      return null;
+    }
+    // df小于threshold的候选都去掉，df等于threshold的候选去掉最早的ties个
+    int threshold = 0;
+    while ( excess > histogram[threshold] ) {
+      excess -= histogram[threshold];
+      threshold++;
+    }
+    int ties = excess;
+    if ( evicted == null ) {
+      evicted = new int[Integer.highestOneBit(Math.max(maxSize, 16) * 2 - 1)];
+    }
+    int mask = evicted.length - 1;
+    int [] translation = new int[idLimit];
+    int id = 0;
+    for ( int i = 0 ; i < idLimit ; i++ ) {
+      if ( nameOffset[i] == EMPTY ) {
+        translation[i] = EMPTY;
+        continue;
+      }
+      int bound = df[i] + getDelta(i);
+      if ( bound <= bucket && ( df[i] < threshold
+          || ( df[i] == threshold && ties-- > 0 ) ) ) {
+        translation[i] = EMPTY;
+        int slot = mix(nameHash[i]) & mask;
+        evicted[slot] = Math.max(evicted[slot], bound);
+      } else {
+        translation[i] = id++;
+      }
+    }
+    return translation;
+  }
+
   /**
    * Remove words cover less than certain proportion of the whole corpus.
    * @param coverage A float number in [0, 1]
@@ -269,12 +889,11 @@ public class Lexicon implements Serializable {
   public Lexicon removeLowDfWords(int minDf) {
     int id = 0;
     Hashtable<Integer, Integer> translation = new Hashtable<Integer, Integer>();
-    for (Entry<Integer, Word> e : idHash.entrySet()) {
-      Word w = e.getValue();
-      if (w.df < minDf) {
+    for (int i = 0; i < idLimit; i++) {
+      if (nameOffset[i] == EMPTY || df[i] < minDf) {
         continue;
       }
-      translation.put(w.id, id);
+      translation.put(i, id);
       ++id;
     }
     return map(translation);
@@ -288,12 +907,11 @@ public class Lexicon implements Serializable {
   public Lexicon removeLowFreqWords(int minFreq) {
     int id = 0;
     Hashtable<Integer, Integer> translation = new Hashtable<Integer, Integer>();
-    for (Entry<Integer, Word> e : idHash.entrySet()) {
-      Word w = e.getValue();
-      if (w.tf < minFreq) {
+    for (int i = 0; i < idLimit; i++) {
+      if (nameOffset[i] == EMPTY || tf[i] < minFreq) {
         continue;
       }
-      translation.put(w.id, id);
+      translation.put(i, id);
       ++id;
     }
     return map(translation);
@@ -302,10 +920,9 @@ public class Lexicon implements Serializable {
   public Lexicon removeStopwords(Set<String> stopwords) {
     int id = 0;
     Hashtable<Integer, Integer> translation = new Hashtable<Integer, Integer>();
-    for (Entry<Integer, Word> e : idHash.entrySet()) {
-      Word w = e.getValue();
-      if (!stopwords.contains(w.name)) {
-        translation.put(w.id, id);
+    for (int i = 0; i < idLimit; i++) {
+      if (nameOffset[i] != EMPTY && !stopwords.contains(getName(i))) {
+        translation.put(i, id);
         ++id;
       }
     }
@@ -313,10 +930,13 @@ public class Lexicon implements Serializable {
   }
   
   public Lexicon reorderWordsByFreq() {
-    IntPair [] freq = new IntPair[idHash.size()];
+    IntPair [] freq = new IntPair[size];
     int n = 0;
-    for (Entry<Integer, Word> e : idHash.entrySet()) {
-      freq[n] = new IntPair(e.getKey(), e.getValue().tf);
+    for (int i = 0; i < idLimit; i++) {
+      if (nameOffset[i] == EMPTY) {
+        continue;
+      }
+      freq[n] = new IntPair(i, tf[i]);
       n++;
     }
     
@@ -340,7 +960,7 @@ public class Lexicon implements Serializable {
   public String [] removeOov(String [] words) {
     List<String> output = new LinkedList<String>();
     for (String w : words) {
-      if (this.getWord(w) != null) {
+      if (this.getId(w) != EMPTY) {
         output.add(w);
       }
     }
@@ -408,12 +1028,58 @@ public class Lexicon implements Serializable {
     writer.close();
   }*/
   
+  private void writeObject( ObjectOutputStream out ) throws IOException {
+    Hashtable<Integer, Word> idHash = new Hashtable<Integer, Word>(Math.max(size * 2, 16));
+    Hashtable<String, Word> nameHash = new Hashtable<String, Word>(Math.max(size * 2, 16));
+    for ( int id = 0 ; id < idLimit ; id++ ) {
+      if ( nameOffset[id] == EMPTY ) {
+        continue;
+      }
+      Word w = new Word(id, getName(id));
+      w.tf = tf[id];
+      w.df = df[id];
+      idHash.put(id, w);
+      nameHash.put(w.name, w);
+    }
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("idHash", idHash);
+    fields.put("nameHash", nameHash);
+    fields.put("locked", locked);
+    fields.put("numDocs", numDocs);
+    fields.put("termSet", new HashSet<Integer>());
+    out.writeFields();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject( ObjectInputStream in ) 
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    Hashtable<Integer, Word> idHash = 
+      (Hashtable<Integer, Word>) fields.get("idHash", null);
+    int limit = 0;
+    if ( idHash != null ) {
+      for ( Word w : idHash.values() ) {
+        limit = Math.max(limit, w.id + 1);
+      }
+    }
+    allocate(Math.max(limit, idHash == null ? 0 : idHash.size()));
+    if ( idHash != null ) {
+      for ( Word w : idHash.values() ) {
+        put(w.id, w.name, w.tf, w.df);
+      }
+    }
+    locked = fields.get("locked", false);
+    numDocs = fields.get("numDocs", 0L);
+  }
+
   public static class Word implements Serializable {
     private static final long serialVersionUID = 1L;
     protected int id;
     protected String name;
     protected int tf;  // global term frequency
     protected int df;  // global document frequency
+    // 名称为null时从这个词典中取，这样只需要id和频率时不用构造字符串
+    private transient Lexicon lexicon;
 
     protected Word () {}
 
@@ -422,8 +1088,16 @@ public class Lexicon implements Serializable {
       this.name = name;
     }
 
+    protected Word ( Lexicon lexicon, int id, String name, int tf, int df ) {
+      this.lexicon = lexicon;
+      this.id = id;
+      this.name = name;
+      this.tf = tf;
+      this.df = df;
+    }
+
     public String toString() {
-      return id + ":" + name.replace(":", COLON_REPLACER) 
+      return id + ":" + getName().replace(":", COLON_REPLACER) 
       + ":" + tf + ":" + df; 
     }
 
@@ -432,6 +1106,9 @@ public class Lexicon implements Serializable {
     }
 
     public String getName() {
+      if ( name == null && lexicon != null ) {
+        name = lexicon.getName(id);
+      }
       return name;
     }
 
@@ -449,7 +1126,7 @@ public class Lexicon implements Serializable {
         return false;
       }
       Word ot = ( Word ) other;
-      if ( ! ot.name.equals(name))
+      if ( ! ot.getName().equals(getName()))
         return false;
       if ( ot.id != id )
         return false;
@@ -458,12 +1135,17 @@ public class Lexicon implements Serializable {
 
     protected Object clone() {
       Word t = new Word();
-      t.name = name;
+      t.name = getName();
       t.id = id;
       t.tf = tf;
       t.df = df;
       return (Object) t;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      getName();
+      out.defaultWriteObject();
+    }
+
   }  
 }
@@ -0,0 +1,140 @@
+package org.thunlp.text;
+
+import java.util.Arrays;
+
+/**
+ * 稀疏向量，特征id和值分别放在两个平行的数组中，前size()个有效，id按升序排列、不重复。
+ * 由DocumentVector.build填写，可以在多篇文档之间重复使用，数组只在文档变长时扩大，
+ * 每个特征不分配对象。需要Term[]的地方用toTerms转换。
+ *
+ * 不是线程安全的，每个线程使用自己的SparseVector。
+ */
+public class SparseVector {
+	private int [] ids;
+	private double [] values;
+	private int size = 0;
+
+	public SparseVector() {
+		this(256);
+	}
+
+	public SparseVector( int capacity ) {
+		ids = new int[Math.max(capacity, 1)];
+		values = new double[ids.length];
+	}
+
+	/**
+	 * 由按id升序排列、id不重复的Term构造
+	 */
+	public static SparseVector fromTerms( Term [] terms ) {
+		SparseVector v = new SparseVector(terms.length);
+		for ( Term t : terms ) {
+			v.add(t.id, t.weight);
+		}
+		return v;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * 特征id，前size()个有效，调用者不能修改
+	 */
+	public int [] getIds() {
+		return ids;
+	}
+
+	/**
+	 * 特征值，前size()个有效，调用者不能修改
+	 */
+	public double [] getValues() {
+		return values;
+	}
+
+	public int getId( int i ) {
+		return ids[i];
+	}
+
+	public double getValue( int i ) {
+		return values[i];
+	}
+
+	/**
+	 * 在末尾加入一个特征，id要大于已有的特征
+	 */
+	public void add( int id, double value ) {
+		if ( size == ids.length ) {
+			ensureCapacity(size * 2);
+		}
+		ids[size] = id;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * 保证至少能放下capacity个特征，已有的特征保留
+	 */
+	public void ensureCapacity( int capacity ) {
+		if ( ids.length < capacity ) {
+			ids = Arrays.copyOf(ids, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+	/**
+	 * 由DocumentVector在原地合并特征之后设置长度
+	 */
+	void setSize( int size ) {
+		this.size = size;
+	}
+
+	/**
+	 * 每个值除以向量的长度，和DocumentVector.build的normalized相同
+	 * @param squares 各个值的平方和，由调用者在计算值时累加
+	 */
+	void normalize( double squares ) {
+		double normalizer = Math.sqrt(squares);
+		for ( int i = 0 ; i < size ; i++ ) {
+			values[i] /= normalizer;
+		}
+	}
+
+	/**
+	 * 两个向量的内积，按id归并
+	 */
+	public double dot( SparseVector v ) {
+		int p1 = 0, p2 = 0;
+		double product = 0.0;
+		while ( p1 < size && p2 < v.size ) {
+			if ( ids[p1] < v.ids[p2] ) {
+				p1++;
+			} else if ( v.ids[p2] < ids[p1] ) {
+				p2++;
+			} else {
+				product += values[p1] * v.values[p2];
+				p1++;
+				p2++;
+			}
+		}
+		return product;
+	}
+
+	/**
+	 * 转换成按id升序排列的Term数组
+	 */
+	public Term [] toTerms() {
+		Term [] terms = new Term[size];
+		for ( int i = 0 ; i < size ; i++ ) {
+			Term t = new Term();
+			t.id = ids[i];
+			t.weight = values[i];
+			terms[i] = t;
+		}
+		return terms;
+	}
+}
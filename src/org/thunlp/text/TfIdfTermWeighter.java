@@ -1,7 +1,5 @@
 package org.thunlp.text;
 
-import org.thunlp.text.Lexicon.Word;
-
 public class TfIdfTermWeighter extends TermWeighter {
 
 	public TfIdfTermWeighter(Lexicon l) {
@@ -11,9 +9,13 @@ public class TfIdfTermWeighter extends TermWeighter {
 	@Override
 	public double weight(int id, double tf, int doclen) {
 		// default tf* idf implementation, can be overrided
+		// 锁定的词典直接查锁定时算好的idf
+		if ( lexicon.getLock() ) {
+			return Math.log10(tf + 1) * lexicon.getIdf()[id];
+		}
 		long n = lexicon.getNumDocs();
-		Word w = lexicon.getWord( id );
-		return Math.log10(tf + 1) * ( Math.log10( (double) n / w.df + 1 ));
+		int df = lexicon.getDocumentFrequency( id );
+		return Math.log10(tf + 1) * ( Math.log10( (double) n / df + 1 ));
 	}
 
 }
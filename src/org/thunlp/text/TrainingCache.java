@@ -0,0 +1,541 @@
+package org.thunlp.text;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 存放在磁盘上的训练集cache，分类器在addTrainingText时写入，训练时读出。
+ *
+ * 每篇文档的格式为：
+ * <pre>
+ *   varint label
+ *   varint nterms
+ *   nterms * (varint id差值, varint zigzag(tf))
+ * </pre>
+ * 文档中的词按id递增排列，第一个词存id本身，之后存和前一个词的id之差。tf是词在文档中
+ * 出现的次数，使用特征哈希时是按符号相加的计数，可以是负数，按zigzag编码
+ * （0, -1, 1, -2 ...编码为0, 1, 2, 3 ...）。varint每个字节存7位，低位在前，最高位为1
+ * 表示后面还有字节。大多数的差值和tf只需要一个字节，原来每个词固定要12字节（int id
+ * 和double tf）。
+ *
+ * 写入的同时在内存中记录每篇文档的起始位置（每篇8字节），读的时候可以直接定位到任意
+ * 一篇文档，也可以把文档分成几段，由多个线程同时读取。
+ *
+ * 读取时用FileChannel.map把文件映射到内存，直接从映射中解码到Document的两个int数组，
+ * 不经过InputStream的缓冲区，也不为每个词创建对象，重复的扫描由操作系统的页缓存
+ * 提供数据。单个映射不能超过2G，大文件按文档的边界分成几段映射。
+ */
+public class TrainingCache {
+	/**
+	 * 一篇文档，读取时重复使用
+	 */
+	public static class Document {
+		public int label;
+		public int nterms;
+		public int [] ids = new int[256];
+		public int [] tfs = new int[256];
+
+		void ensureCapacity( int n ) {
+			if ( ids.length < n ) {
+				ids = new int[n];
+				tfs = new int[n];
+			}
+		}
+	}
+
+	/**
+	 * 处理读出的文档。多线程读取时会在多个线程中同时调用，但每篇文档只调用一次
+	 */
+	public interface Handler {
+		/**
+		 * @param index 文档在cache中的序号，从0开始
+		 * @param doc 文档内容，调用返回后会被覆盖
+		 */
+		void document( int index, Document doc );
+	}
+
+	/**
+	 * 每段映射的最大字节数
+	 */
+	private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+
+	private final File file;
+	private OutputStream out = null;
+	private byte [] record = new byte[1024];
+	/**
+	 * offsets[i]是第i篇文档的起始位置，offsets[ndocs]是文件的长度
+	 */
+	private long [] offsets = new long[1024];
+	private int ndocs = 0;
+	private int longestDoc = 0;
+	/**
+	 * 文件的映射，segmentFirstDoc[k]是第k段中的第一篇文档，写入新文档时置为null
+	 */
+	private volatile MappedByteBuffer [] segments = null;
+	private int [] segmentFirstDoc;
+
+	private TrainingCache( File file ) {
+		this.file = file;
+	}
+
+	/**
+	 * 创建一个新的cache文件用于写入，已有的文件会被覆盖
+	 */
+	public static TrainingCache create( File file ) throws IOException {
+		TrainingCache cache = new TrainingCache(file);
+		cache.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		return cache;
+	}
+
+	/**
+	 * 打开一个已经写好的cache文件，顺序扫描一遍重建文档的位置
+	 */
+	public static TrainingCache open( File file ) throws IOException {
+		TrainingCache cache = new TrainingCache(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long position = 0;
+			while ( position < size ) {
+				// 从position开始映射一段，最后一篇文档不完整时从它的开头重新映射
+				long length = Math.min(size - position, MAX_SEGMENT);
+				ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				int end = 0;
+				try {
+					while ( buf.hasRemaining() ) {
+						getVarint(buf);
+						long nterms = getVarint(buf);
+						// 每个词两个varint
+						for ( long i = 0 ; i < 2 * nterms ; i++ ) {
+							while ( (buf.get() & 0x80) != 0 ) {
+							}
+						}
+						cache.addOffset(position + end);
+						end = buf.position();
+						if ( nterms > cache.longestDoc ) {
+							cache.longestDoc = (int) nterms;
+						}
+					}
+				} catch ( BufferUnderflowException e ) {
+					if ( end == 0 || position + length == size ) {
+						throw new EOFException("truncated training cache: " + file);
+					}
+				}
+				position += end;
+			}
+			cache.offsets[cache.ndocs] = position;
+		} finally {
+			raf.close();
+		}
+		return cache;
+	}
+
+	private void addOffset( long position ) {
+		if ( ndocs + 1 >= offsets.length ) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[ndocs++] = position;
+	}
+
+	private int putVarint( int pos, int value ) {
+		while ( (value & ~0x7f) != 0 ) {
+			record[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		record[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * 写入一篇文档
+	 * @param label 类别
+	 * @param terms 按id递增排列、id不重复的词，weight是词在文档中出现的次数（整数）
+	 */
+	public void add( int label, Term [] terms ) throws IOException {
+		if ( record.length < 10 + 10 * terms.length ) {
+			record = new byte[10 + 10 * terms.length];
+		}
+		int pos = putVarint(0, label);
+		pos = putVarint(pos, terms.length);
+		int last = 0;
+		for ( int i = 0 ; i < terms.length ; i++ ) {
+			int id = terms[i].id;
+			int tf = (int) terms[i].weight;
+			if ( ( i > 0 && id <= last ) || id < 0 || tf != terms[i].weight ) {
+				throw new IllegalArgumentException(
+						"terms must have increasing ids and integer tf");
+			}
+			pos = putVarint(pos, id - last);
+			pos = putVarint(pos, (tf << 1) ^ (tf >> 31));
+			last = id;
+		}
+		out.write(record, 0, pos);
+		segments = null;
+		long start = offsets[ndocs];
+		addOffset(start);
+		offsets[ndocs] = start + pos;
+		if ( terms.length > longestDoc ) {
+			longestDoc = terms.length;
+		}
+	}
+
+	/**
+	 * 写入一篇文档
+	 * @param label 类别
+	 * @param v 特征值是词在文档中出现的次数（整数）
+	 */
+	public void add( int label, SparseVector v ) throws IOException {
+		int n = v.size();
+		int [] ids = v.getIds();
+		double [] values = v.getValues();
+		if ( record.length < 10 + 10 * n ) {
+			record = new byte[10 + 10 * n];
+		}
+		int pos = putVarint(0, label);
+		pos = putVarint(pos, n);
+		int last = 0;
+		for ( int i = 0 ; i < n ; i++ ) {
+			int id = ids[i];
+			int tf = (int) values[i];
+			if ( ( i > 0 && id <= last ) || id < 0 || tf != values[i] ) {
+				throw new IllegalArgumentException(
+						"terms must have increasing ids and integer tf");
+			}
+			pos = putVarint(pos, id - last);
+			pos = putVarint(pos, (tf << 1) ^ (tf >> 31));
+			last = id;
+		}
+		out.write(record, 0, pos);
+		segments = null;
+		long start = offsets[ndocs];
+		addOffset(start);
+		offsets[ndocs] = start + pos;
+		if ( n > longestDoc ) {
+			longestDoc = n;
+		}
+	}
+
+	/**
+	 * 写入一篇文档
+	 * @param label 类别
+	 * @param ids 按递增排列、不重复的词id，前n个有效
+	 * @param tfs 对应的词在文档中出现的次数
+	 */
+	public void add( int label, int [] ids, int [] tfs, int n ) throws IOException {
+		if ( record.length < 10 + 10 * n ) {
+			record = new byte[10 + 10 * n];
+		}
+		int pos = putVarint(0, label);
+		pos = putVarint(pos, n);
+		int last = 0;
+		for ( int i = 0 ; i < n ; i++ ) {
+			int id = ids[i];
+			int tf = tfs[i];
+			if ( ( i > 0 && id <= last ) || id < 0 ) {
+				throw new IllegalArgumentException("terms must have increasing ids");
+			}
+			pos = putVarint(pos, id - last);
+			pos = putVarint(pos, (tf << 1) ^ (tf >> 31));
+			last = id;
+		}
+		out.write(record, 0, pos);
+		segments = null;
+		long start = offsets[ndocs];
+		addOffset(start);
+		offsets[ndocs] = start + pos;
+		if ( n > longestDoc ) {
+			longestDoc = n;
+		}
+	}
+
+	/**
+	 * 按新的词id重写cache，用于词典紧缩之后。新的cache写在同一个目录下的临时文件中，
+	 * 可以继续写入，原来的cache不变
+	 * @param translation 原来的词id到新id的对应表，新id的顺序要和原来的相同；小于0
+	 * 或者超出长度的词从文档中去掉，文档本身保留
+	 * @return 新的cache
+	 */
+	public TrainingCache map( int [] translation ) throws IOException {
+		return map(new int [] { 0, ndocs }, new int [][] { translation }, 1);
+	}
+
+	/**
+	 * 按新的词id重写cache，不同段的文档使用不同的对应表，用于多次词典紧缩之后一次重写。
+	 * 第k段是[firstDocs[k], firstDocs[k + 1])中的文档，使用translations[k]；
+	 * firstDocs[count]之后的文档保持原样。其他和map(int[])相同
+	 * @param firstDocs 各段的第一篇文档，递增排列，共count + 1个
+	 * @param translations 各段的对应表
+	 * @param count 段数
+	 * @return 新的cache
+	 */
+	public TrainingCache map( int [] firstDocs, int [][] translations, int count )
+			throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		TrainingCache cache = create(File.createTempFile("tctscache", "data", dir));
+		try {
+			Document doc = new Document();
+			int [] ids = new int[longestDoc];
+			int [] tfs = new int[longestDoc];
+			int k = 0;
+			for ( int i = 0 ; i < ndocs ; i++ ) {
+				read(i, doc);
+				while ( k < count && i >= firstDocs[k + 1] ) {
+					k++;
+				}
+				if ( k == count ) {
+					cache.add(doc.label, doc.ids, doc.tfs, doc.nterms);
+					continue;
+				}
+				int [] translation = translations[k];
+				int n = 0;
+				for ( int j = 0 ; j < doc.nterms ; j++ ) {
+					int id = doc.ids[j];
+					if ( id < translation.length && translation[id] >= 0 ) {
+						ids[n] = translation[id];
+						tfs[n] = doc.tfs[j];
+						n++;
+					}
+				}
+				cache.add(doc.label, ids, tfs, n);
+			}
+		} catch ( IOException e ) {
+			cache.delete();
+			throw e;
+		}
+		return cache;
+	}
+
+	/**
+	 * 结束写入
+	 */
+	public void close() throws IOException {
+		if ( out != null ) {
+			out.close();
+			out = null;
+		}
+		segments = null;
+	}
+
+	/**
+	 * 关闭并删除cache文件
+	 */
+	public void delete() {
+		try {
+			close();
+		} catch ( IOException e ) {
+		}
+		file.delete();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return 文档数
+	 */
+	public int size() {
+		return ndocs;
+	}
+
+	/**
+	 * @return 最长文档的词数
+	 */
+	public int getLongestDoc() {
+		return longestDoc;
+	}
+
+	/**
+	 * @return cache文件的字节数
+	 */
+	public long getByteSize() {
+		return offsets[ndocs];
+	}
+
+	/**
+	 * 把已经写入的文档映射到内存。映射在写入新的文档之前一直有效，之后再读时重新映射
+	 */
+	private MappedByteBuffer [] map() throws IOException {
+		MappedByteBuffer [] mapped = segments;
+		return mapped != null ? mapped : remap();
+	}
+
+	private synchronized MappedByteBuffer [] remap() throws IOException {
+		if ( segments != null ) {
+			return segments;
+		}
+		if ( out != null ) {
+			out.flush();
+		}
+		// 按文档的边界分段，每段不超过MAX_SEGMENT字节
+		int [] first = new int[16];
+		int nsegments = 0;
+		for ( int i = 0 ; i < ndocs ; ) {
+			if ( offsets[i + 1] - offsets[i] > MAX_SEGMENT ) {
+				throw new IOException("document " + i + " is too large");
+			}
+			if ( nsegments == first.length ) {
+				first = Arrays.copyOf(first, nsegments * 2);
+			}
+			first[nsegments++] = i;
+			int j = i + 1;
+			while ( j < ndocs && offsets[j + 1] - offsets[i] <= MAX_SEGMENT ) {
+				j++;
+			}
+			i = j;
+		}
+		MappedByteBuffer [] mapped = new MappedByteBuffer[nsegments];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			for ( int k = 0 ; k < nsegments ; k++ ) {
+				long from = offsets[first[k]];
+				long to = offsets[k + 1 < nsegments ? first[k + 1] : ndocs];
+				mapped[k] = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+			}
+		} finally {
+			// 映射在文件关闭之后仍然有效
+			raf.close();
+		}
+		segmentFirstDoc = Arrays.copyOf(first, nsegments);
+		segments = mapped;
+		return mapped;
+	}
+
+	/**
+	 * @return 第index篇文档所在的段
+	 */
+	private int segmentOf( int index ) {
+		int k = Arrays.binarySearch(segmentFirstDoc, index);
+		return k >= 0 ? k : -k - 2;
+	}
+
+	private static int getVarint( ByteBuffer buf ) {
+		int b = buf.get();
+		int value = b & 0x7f;
+		int shift = 7;
+		while ( (b & 0x80) != 0 ) {
+			b = buf.get();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		}
+		return value;
+	}
+
+	private static void decode( ByteBuffer buf, Document doc ) {
+		doc.label = getVarint(buf);
+		int n = getVarint(buf);
+		doc.ensureCapacity(n);
+		int id = 0;
+		for ( int i = 0 ; i < n ; i++ ) {
+			id += getVarint(buf);
+			doc.ids[i] = id;
+			int tf = getVarint(buf);
+			doc.tfs[i] = (tf >>> 1) ^ -(tf & 1);
+		}
+		doc.nterms = n;
+	}
+
+	/**
+	 * 读出第index篇文档，可以在多个线程中同时调用
+	 */
+	public void read( int index, Document doc ) throws IOException {
+		MappedByteBuffer [] mapped = map();
+		int k = segmentOf(index);
+		ByteBuffer buf = mapped[k].duplicate();
+		buf.position((int) (offsets[index] - offsets[segmentFirstDoc[k]]));
+		decode(buf, doc);
+	}
+
+	/**
+	 * 按顺序读出[from, to)中的文档
+	 */
+	public void scan( int from, int to, Handler handler ) throws IOException {
+		if ( from >= to ) {
+			return;
+		}
+		MappedByteBuffer [] mapped = map();
+		Document doc = new Document();
+		int i = from;
+		for ( int k = segmentOf(from) ; i < to ; k++ ) {
+			// 每个线程使用自己的duplicate，共享映射的内容
+			ByteBuffer buf = mapped[k].duplicate();
+			buf.position((int) (offsets[i] - offsets[segmentFirstDoc[k]]));
+			int end = k + 1 < mapped.length ? Math.min(to, segmentFirstDoc[k + 1]) : to;
+			for ( ; i < end ; i++ ) {
+				decode(buf, doc);
+				handler.document(i, doc);
+			}
+		}
+	}
+
+	/**
+	 * 读出所有文档。threads大于1时把文档分成若干段，由多个线程同时读取和处理，
+	 * handler必须能在多个线程中同时调用
+	 */
+	public void scan( int threads, final Handler handler ) throws IOException {
+		if ( threads <= 1 || ndocs < 2 ) {
+			scan(0, ndocs, handler);
+			return;
+		}
+		// 分成比线程数多的段，各个线程的工作量更平均
+		int nparts = Math.min(ndocs, 4 * threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					public Thread newThread( Runnable r ) {
+						Thread t = new Thread(r, "training-cache");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>(nparts);
+			for ( int p = 0 ; p < nparts ; p++ ) {
+				final int from = (int) ((long) ndocs * p / nparts);
+				final int to = (int) ((long) ndocs * (p + 1) / nparts);
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						scan(from, to, handler);
+						return null;
+					}
+				}));
+			}
+			for ( Future<Object> f : results ) {
+				f.get();
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new IOException("reading training cache interrupted");
+		} catch ( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException) cause;
+			}
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -16,12 +16,13 @@ import java.io.ObjectOutputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 import libsvm.svm;
 import libsvm.svm_model;
@@ -30,11 +31,18 @@ import libsvm.svm_parameter;
 import libsvm.svm_problem;
 
 import org.apache.commons.codec.binary.Base64;
-import org.thunlp.language.chinese.LangUtils;
+import org.thunlp.language.chinese.PackedWordSegment;
+import org.thunlp.language.chinese.TextNormalizer;
+import org.thunlp.language.chinese.TokenBuffer;
 import org.thunlp.language.chinese.WordSegment;
+import org.thunlp.text.ChiSquareFeatureSelector;
 import org.thunlp.text.DocumentVector;
+import org.thunlp.text.FeatureHasher;
+import org.thunlp.text.FeatureStatistics;
 import org.thunlp.text.Lexicon;
+import org.thunlp.text.SparseVector;
 import org.thunlp.text.Term;
+import org.thunlp.text.TrainingCache;
 import org.thunlp.text.TfIdfTermWeighter;
 import org.thunlp.text.TfOnlyTermWeighter;
 import org.thunlp.text.Lexicon.Word;
@@ -43,9 +51,13 @@ import de.bwaldvogel.liblinear.FeatureNode;
 
 public abstract class AbstractTextClassifier implements TextClassifier {
 	/**
-	 * 词典
+	 * 词典，使用特征哈希时为null
 	 */
 	public  Lexicon lexicon; 
+	/**
+	 * 不为null时用特征哈希代替词典
+	 */
+	private FeatureHasher hasher;
 	/**
 	 * 用来构造训练特征向量
 	 */
@@ -55,6 +67,16 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	 */
 	private DocumentVector testVectorBuilder; // 
 	private WordSegment seg;
+	/**
+	 * 训练时分词和转换id重复使用的缓冲区
+	 */
+	private TokenBuffer tokens;
+	private int [] ids;
+	private int [] tfs;
+	/**
+	 * 训练文档的特征向量，在addTrainingTokens之间重复使用
+	 */
+	private SparseVector trainingVector = new SparseVector();
 	/**
 	 * 训练好的模型
 	 */
@@ -75,6 +97,60 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	 * 训练集的大小
 	 */
 	private int ndocs; //
+	/**
+	 * libsvm同时训练的子问题数
+	 */
+	private int trainingThreads = 1;
+	/**
+	 * 训练时词典的最大词数，为0时不限制
+	 */
+	private int lexiconBudget = 0;
+	/**
+	 * lossy counting每个桶的文档数，词典第一次超过预算时确定
+	 */
+	private int bucketWidth = 0;
+	/**
+	 * 紧缩词典时还没有写入训练集cache的词id对应表
+	 */
+	private CacheTranslation pendingTranslation = new CacheTranslation();
+	/**
+	 * classifyBatch使用的线程池，为null时在调用线程中分类
+	 */
+	private ExecutorService classifyExecutor = null;
+	/**
+	 * 分类时每个线程重复使用的缓冲区
+	 */
+	private static class Scratch {
+		TokenBuffer tokens = new TokenBuffer();
+		int [] ids = new int[256];
+		int [] tfs = new int[256];
+		svm_node [] nodes = new svm_node[256];
+		SparseVector vector = new SparseVector();
+		double [] probs;
+	}
+
+	private static final ThreadLocal<Scratch> scratch =
+		new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+	};
+
+	/**
+	 * topN结果的顺序，概率从大到小，概率相差不超过1e-20时保持类别编号的顺序
+	 */
+	private static final Comparator<ClassifyResult> PROB_ORDER = 
+		new Comparator<ClassifyResult>() {
+			public int compare(ClassifyResult o1, ClassifyResult o2){
+				if(o1.prob > o2.prob + 1e-20) return -1;
+				else if(o1.prob < o2.prob - 1e-20) return 1;
+				else return 0;
+			}
+	};
+	/**
+	 * 训练集中每个词在每个类别的文档频率，在addTrainingText时累加，用于特征选择
+	 */
+	private FeatureStatistics featureStats;
 	/**
 	 * 类别标签
 	 */
@@ -86,7 +162,7 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	/**
 	 * 训练集的cache输出流
 	 */
-	public DataOutputStream tsCache = null; // 
+	public TrainingCache tsCache = null; // 
 	
 	public void init ( int nclasses, WordSegment seg) {
 		lexicon = new Lexicon();
@@ -96,6 +172,8 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 		model = null;
 		this.nclasses = nclasses;
 		ndocs = 0;
+		featureStats = new FeatureStatistics(nclasses);
+		hasher = null;
 		this.seg = seg;
 		
 	}
@@ -115,12 +193,56 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	}
 	
 	/**
-	 * 返回字典
+	 * 返回字典，使用特征哈希时为null
 	 */
 	public Lexicon getLexicon()
 	{
 		return lexicon;
 	}
+
+	/**
+	 * 返回训练和分类时使用的分词器
+	 */
+	public WordSegment getWordSegment() {
+		return seg;
+	}
+
+	/**
+	 * 使用特征哈希代替词典，必须在加入训练文档之前调用。词被哈希到2^bits个桶中，
+	 * 特征选择在桶上进行，见FeatureHasher
+	 * @param bits 桶数的以2为底的对数，为0时使用词典
+	 */
+	public void setFeatureHashing( int bits ) {
+		if ( ndocs > 0 ) {
+			throw new IllegalStateException("feature hashing must be set before training");
+		}
+		if ( bits > 0 ) {
+			hasher = new FeatureHasher(bits);
+			lexicon = null;
+			trainingVectorBuilder = null;
+		} else {
+			hasher = null;
+			lexicon = new Lexicon();
+			trainingVectorBuilder =
+			  new DocumentVector(lexicon, new TfOnlyTermWeighter());
+		}
+	}
+
+	/**
+	 * 返回特征哈希器，使用词典时为null
+	 */
+	public FeatureHasher getFeatureHasher() {
+		return hasher;
+	}
+
+	/**
+	 * 设置训练时词典的最大词数，必须在加入训练文档之前调用。这是一个软上限：词典
+	 * 超过这个大小之后用lossy counting去掉df低的词，见pruneLexicon，不能去掉的词
+	 * 保留，词典可以超过预算；为0时不限制。使用特征哈希时不起作用
+	 */
+	public void setLexiconBudget( int maxWords ) {
+		this.lexiconBudget = maxWords;
+	}
 	
 	/**
 	 * 利用Scalable Term Selection方法进行特征选择
@@ -135,55 +257,37 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	 */
 	public Map<Integer, Integer> selectFeatureBySTS(File cacheFile,
 			int featureSize, int kept, int ndocs, int nclasses, int longestDoc) {
+		FeatureStatistics stats = FeatureStatistics.readCache(cacheFile, nclasses);
+		if ( stats == null ) {
+			return null;
+		}
+		return selectFeatureBySTS(stats, featureSize, kept);
+	}
+
+	/**
+	 * 利用Scalable Term Selection方法进行特征选择，计数来自addTrainingText时累加的统计，
+	 * 不读取训练集cache
+	 * @param stats 训练集的统计
+	 * @param featureSize 数据集中特征的总数，特征应该是从0到featureSize编号
+	 * @param kept 需要保留的特征数
+	 * @return 选择前特征到选择后特征的id对应表
+	 */
+	public Map<Integer, Integer> selectFeatureBySTS(FeatureStatistics stats,
+			int featureSize, int kept) {
+		int ndocs = stats.getNumDocuments();
+		int nclasses = stats.getNumClasses();
 
 		// lamda初始值
 		double lamda = 0.5;
-		int[][] featureStats = new int[featureSize][nclasses];
-		int[] featureFreq = new int[featureSize];
 		double[] prValues = new double[featureSize];
 		PriorityQueue<Term> selectedFeatures;
-		int[] classSize = new int[nclasses];
 
-		// 统计chi-square需要的计数
-		int label = 0;
-		int nterms = 0;
+		// 去掉只在一篇文档中出现的词以后，训练集的总词数。df取自stats而不是词典，
+		// 使用特征哈希时没有词典
 		double sum = 0;
-		Term[] terms = new Term[longestDoc + 1];
-		for (int i = 0; i < terms.length; i++) {
-			terms[i] = new Term();
-		}
-		int ndocsread = 0;
-		try {
-			DataInputStream dis = new DataInputStream(new BufferedInputStream(
-					new FileInputStream(cacheFile)));
-			while (true) {
-				int ncut = 0;
-				try {
-					label = dis.readInt();
-					nterms = dis.readInt();
-					sum += nterms;
-					for (int i = 0; i < nterms; i++) {
-						terms[i].id = dis.readInt();
-						terms[i].weight = dis.readDouble();
-						if ( lexicon.getWord(terms[i].id).getDocumentFrequency()
-								== 1 ) 
-							ncut++;
-					}
-				} catch (EOFException e) {
-					break;
-				}
-				sum -= ncut;
-
-				classSize[label]++;
-				for (int i = 0; i < nterms; i++) {
-					Term t = terms[i];
-					featureStats[t.id][label]++;
-					featureFreq[t.id]++;
-				}				
-			}
-			dis.close();
-		} catch (IOException e) {
-			return null;
+		for (int i = 0; i < featureSize; i++) {
+			if ( stats.getDocumentFrequency(i) != 1 )
+				sum += stats.getDocumentFrequency(i);
 		}
 
 		System.err.println("start STS calculation");
@@ -202,9 +306,9 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 			double pr = -1;
 			double prmax = -1;
 			for (int j = 0; j < nclasses; j++) {
-				A = featureStats[i][j];
-				B = featureFreq[i] - A;
-				C = classSize[j];
+				A = stats.getDocumentFrequency(i, j);
+				B = stats.getDocumentFrequency(i) - A;
+				C = stats.getClassSize(j);
 				D = ndocs - C;
 
 				double fractorBase = (double) (B * C);
@@ -230,12 +334,13 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 		while (true) {
 			selectedFeatures.clear();
 			for (int i = 0; i < featureSize; i++) {
-				if ( lexicon.getWord(i).getDocumentFrequency() == 1 )
+				// 特征哈希中没有词落入的桶df为0，也不参加选择
+				if ( stats.getDocumentFrequency(i) <= 1 )
 					continue;
 				Term t = new Term();
 				t.id = i;
 				t.weight = 1.0 / (lamda / Math.log(prValues[i]) + (1 - lamda)
-						/ Math.log(featureFreq[i]));
+						/ Math.log(stats.getDocumentFrequency(i)));
 				selectedFeatures.add(t);
 				if (selectedFeatures.size() > kept) {
 					selectedFeatures.poll();
@@ -247,7 +352,7 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 				Term t = selectedFeatures.poll();
 				featuresToSort[n] = t;
 				n++;
-				AVL += featureFreq[t.id];
+				AVL += stats.getDocumentFrequency(t.id);
 			}
 			Arrays.sort(featuresToSort, new Term.TermIdComparator());
 			AVL /= ndocs;
@@ -315,125 +420,60 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 			int nclasses,
 			int longestDoc,
 			double [] chimaxValues ) {
-		
-		int [][] featureStats = new int[featureSize][nclasses];
-		int [] featureFreq = new int[featureSize];
-		PriorityQueue<Term> selectedFeatures;
-		int [] classSize = new int[nclasses];
-		
-		// 统计chi-square需要的计数
-		int label = 0;
-		int nterms = 0;
-		Term [] terms = new Term[longestDoc + 1];
-		for ( int i = 0 ; i < terms.length ; i++ ) {
-			terms[i] = new Term();
-		}
-		int ndocsread = 0;
-		try {
-			DataInputStream dis = new DataInputStream(new BufferedInputStream(
-					new FileInputStream(cacheFile)));
-			while ( true ) {
-				try {
-					label = dis.readInt();
-					nterms = dis.readInt();
-					for ( int i = 0 ; i < nterms ; i++ ) { 
-						terms[i].id = dis.readInt();
-						terms[i].weight = dis.readDouble();
-					}
-				} catch ( EOFException e ) {
-					break;
-				}
-				
-				classSize[label] ++;
-				for ( int i = 0 ; i < nterms ; i++ ) { 
-					Term t = terms[i];
-					featureStats[t.id][label] ++;
-					featureFreq[t.id] ++;
-				}
-				if ( ndocsread++ % 1000 == 0) {
-					System.err.println("scanned " + ndocsread);
-				}
-			}
-			dis.close();
-		} catch ( IOException e ) {
+		FeatureStatistics stats = FeatureStatistics.readCache(cacheFile, nclasses);
+		if ( stats == null ) {
 			return null;
 		}
-		
-		
+		return ChiSquareFeatureSelector.toMap(
+				selectFeatureIdsByChiSquare(stats, featureSize, kept, chimaxValues));
+	}
+
+	/**
+	 * 利用chi-square统计量来进行特征选择，计数来自addTrainingText时累加的统计，
+	 * 不读取训练集cache。各个特征的得分用trainingThreads个线程计算，见
+	 * ChiSquareFeatureSelector
+	 * @param stats 训练集的统计
+	 * @param featureSize 数据集中特征的总数，特征应该是从0到featureSize编号的
+	 * @param kept 要保留的特征数
+	 * @param chimaxValues 每个特征的chimax值，如果为null则不记录
+	 * @return 选择前特征到选择后特征的id对应表，没有选中的特征为-1，保证选择后特征的
+	 * 排序和选择前一样
+	 */
+	public int [] selectFeatureIdsByChiSquare(
+			FeatureStatistics stats,
+			int featureSize,
+			int kept,
+			double [] chimaxValues ) {
 		System.err.println("start chi-square calculation");
-		
-		// 计算chi^2_avg(t)，这里利用一个优先级队列来选择chi^2最高的特征
-		selectedFeatures = new PriorityQueue<Term>( kept + 1, 
-				new Comparator<Term>() {
-					public int compare(Term t0, Term t1) {
-						return Double.compare(t0.weight, t1.weight);
-					}			
-		});
-		
-		long A, B, C, D;
-		
-		for ( int i = 0 ; i < featureSize ; i++ ) {
-			Word w = lexicon.getWord(i);
-			if (w != null) {
-			  if ( w.getDocumentFrequency() == 1 || w.getName().length() > 50 )
-			    continue;
-			}
-			double chisqr = -1;
-			double chimax = -1;
-			for ( int j = 0 ; j < nclasses ; j++ ) {
-				A = featureStats[i][j];
-				B = featureFreq[i] - A;
-				C = classSize[j] - A;
-				D = ndocs - A - B - C;
-				
-				//System.out.println("A:"+A+" B:"+B+" C:"+C+" D:"+D);
-				double fractorBase = (double)( (A+C) * (B+D) * (A+B) * (C+D) );
-				if ( Double.compare(fractorBase, 0.0 ) == 0 ) {
-					chisqr = 0;
-				} else {
-					// 我们不用ndocs，因为所有特征的ndocs都一样
-					//chisqr = ndocs * ( A*D -B*C) * (A*D - B*C) / fractorBase  ;
-					chisqr = ( A*D -B*C) / fractorBase * (A*D - B*C)   ;
-				}
-				if ( chisqr > chimax ) {
-					chimax = chisqr;
+		ChiSquareFeatureSelector selector = new ChiSquareFeatureSelector(stats, lexicon);
+		selector.setThreads(trainingThreads);
+		double [] scores = selector.score(featureSize);
+		if ( chimaxValues != null ) {
+			for ( int i = 0 ; i < featureSize ; i++ ) {
+				if ( ! Double.isNaN(scores[i]) ) {
+					chimaxValues[i] = scores[i];
 				}
-
-//				被注释的方法是计算chi^2_avg即概率加权平均的卡方值。我们实际用的是chimax
-//				chisqr += (classSize[j] / (double) ndocs) * 
-//						ndocs * ( A*D -B*C) * (A*D - B*C) 
-//						/ (double)( (A+C) * (B+D) * (A+B) * (C+D) ) ;
-			}
-			if ( chimaxValues != null ) {
-				chimaxValues[i] = chimax;
-			}
-			Term t = new Term();
-			t.id = i;
-			t.weight = chimax;
-			selectedFeatures.add(t);
-			if ( selectedFeatures.size() > kept ) {
-				selectedFeatures.poll();
 			}
 		}
-		
 		System.err.println("generating feature map");
-		
-		// 生成旧id和新选择的id的对应表
-		Map<Integer, Integer> fidmap = new Hashtable<Integer, Integer>(kept);
-		Term [] featuresToSort = new Term[selectedFeatures.size()];
-		int n = 0;
-		while ( selectedFeatures.size() > 0 ) {
-			Term t = selectedFeatures.poll();
-			featuresToSort[n] = t;
-			n++;
-		}
-		Arrays.sort(featuresToSort, new Term.TermIdComparator());
-		for ( int i = 0 ; i < featuresToSort.length ; i++ ) {
-			fidmap.put(featuresToSort[i].id, i);
-		}
-		return fidmap;
+		int [] remap = ChiSquareFeatureSelector.selectTop(scores, kept);
+		return remap;
 	}
 	
+	/**
+	 * 设置libsvm训练的线程数。大于1时两两类别之间的子问题同时训练，见ParallelSvmTrainer
+	 */
+	public void setTrainingThreads( int threads ) {
+		this.trainingThreads = threads;
+	}
+
+	/**
+	 * 设置classifyBatch使用的线程池，线程池由调用者负责关闭；设为null时在调用线程中分类
+	 */
+	public void setClassifyExecutor( ExecutorService executor ) {
+		this.classifyExecutor = executor;
+	}
+
 	public void setMaxFeatures( int max ) {
 		maxFeatures = max;
 	}
@@ -443,6 +483,131 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	}
 	
 
+	/**
+	 * 分词并构造归一化的tf-idf特征向量，放在s.nodes的前若干个元素中，特征的index按升序
+	 * 排列。分词器能打包输出汉字bigram时走int的路径，不为每个bigram构造String，也不
+	 * 构造Word、Term和svm_node
+	 * @return 特征个数
+	 */
+	private int vectorize( String text, Scratch s ) {
+		if ( hasher != null ) {
+			s.tokens.segment(seg, text);
+			int n = vectorizeHashed(s);
+			s.tokens.clear();
+			return n;
+		}
+		if ( seg instanceof PackedWordSegment ) {
+			((PackedWordSegment) seg).segment(text, s.tokens);
+			if ( s.ids.length < s.tokens.size() ) {
+				s.ids = new int[s.tokens.size()];
+			}
+			int n = lexicon.convertDocument(s.tokens, s.ids);
+			s.tokens.clear();
+			return weigh(n, s);
+		}
+		String [] bigrams = seg.segment(text);
+		Word [] words = lexicon.convertDocument(bigrams);
+		SparseVector v = testVectorBuilder.build(words, true, s.vector);
+		for ( int i = 0 ; i < v.size() ; i++ ) {
+			setNode(s, i, v.getId(i) + 1, v.getValue(i));
+		}
+		return v.size();
+	}
+
+	/**
+	 * 把s.ids中的n个词id合并成tf-idf特征，和TfIdfTermWeighter一致，idf查词典锁定时
+	 * 算好的表
+	 */
+	private int weigh( int n, Scratch s ) {
+		int [] ids = s.ids;
+		Arrays.sort(ids, 0, n);
+		double [] idf = lexicon.getIdf();
+		double normalizer = 0;
+		int k = 0;
+		for ( int i = 0 ; i < n ; ) {
+			int j = i + 1;
+			while ( j < n && ids[j] == ids[i] ) {
+				j++;
+			}
+			double w = Math.log10( (double) (j - i) + 1 ) * idf[ids[i]];
+			normalizer += w * w;
+			setNode(s, k++, ids[i] + 1, w);
+			i = j;
+		}
+		normalize(s, k, normalizer);
+		return k;
+	}
+
+	/**
+	 * 用特征哈希构造tf-idf特征向量，和TfIdfTermWeighter一样，特征值为
+	 * sign(tf) * log10(|tf| + 1) * log10(n / df + 1)，tf是按符号相加的计数
+	 */
+	private int vectorizeHashed( Scratch s ) {
+		int size = s.tokens.size();
+		if ( s.ids.length < size ) {
+			s.ids = new int[size];
+		}
+		if ( s.tfs.length < size ) {
+			s.tfs = new int[size];
+		}
+		int n = hasher.count(s.tokens, s.ids, s.tfs);
+		long numDocs = hasher.getNumDocs();
+		double normalizer = 0;
+		for ( int i = 0 ; i < n ; i++ ) {
+			int tf = s.tfs[i];
+			double w = Math.log10( Math.abs(tf) + 1 ) 
+				* Math.log10( (double) numDocs / hasher.getDocumentFrequency(s.ids[i]) + 1 );
+			if ( tf < 0 ) {
+				w = -w;
+			}
+			normalizer += w * w;
+			setNode(s, i, s.ids[i] + 1, w);
+		}
+		normalize(s, n, normalizer);
+		return n;
+	}
+
+	private static void normalize( Scratch s, int n, double normalizer ) {
+		normalizer = Math.sqrt(normalizer);
+		for ( int i = 0 ; i < n ; i++ ) {
+			s.nodes[i].value /= normalizer;
+		}
+	}
+
+	private static void setNode( Scratch s, int i, int index, double value ) {
+		if ( i == s.nodes.length ) {
+			s.nodes = Arrays.copyOf(s.nodes, Math.max(256, i * 2));
+		}
+		svm_node node = s.nodes[i];
+		if ( node == null ) {
+			node = s.nodes[i] = new svm_node();
+		}
+		node.index = index;
+		node.value = value;
+	}
+
+	/**
+	 * 用特征哈希计数，结果在ids和tfs的前若干个元素中
+	 * @return 特征个数
+	 */
+	private int countHashed( TokenBuffer tokens ) {
+		if ( tfs == null || tfs.length < tokens.size() ) {
+			ids = new int[Math.max(tokens.size(), 256)];
+			tfs = new int[ids.length];
+		}
+		return hasher.count(tokens, ids, tfs);
+	}
+
+	/**
+	 * 训练文本的预处理和分词，结果写入tokens（先清空）。只读取分词器，分词器能被并发
+	 * 调用时（PackedWordSegment和系统自带的分词器都可以），可以在多个线程中同时调用，
+	 * 再按文档顺序调用addTrainingTokens。
+	 */
+	public void segmentTrainingText(String text, TokenBuffer tokens) {
+		text = TextNormalizer.WHITESPACE.normalize(text);
+		tokens.segment(seg, text);
+	}
+
 	/**
 	 * 加入一篇训练文档。要求label是小于总类别数的整数，从0开始。
 	 * @param text 训练文本
@@ -450,72 +615,138 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	 * @return 加入是否成功。不成功可能是由于不能在磁盘上创建临时文件
 	 */
 	public boolean addTrainingText(String text, int label) {
+		if ( label >= nclasses || label < 0 ) {
+			return false;
+		}
+		if ( tokens == null ) {
+			tokens = new TokenBuffer();
+		}
+		segmentTrainingText(text, tokens);
+		return addTrainingTokens(tokens, label);
+	}
+
+	/**
+	 * 加入一篇已经由segmentTrainingText分好词的训练文档，更新词典的统计并写入训练集
+	 * 的cache。要求label是小于总类别数的整数，从0开始。
+	 * @param tokens 分词结果
+	 * @param label 类别编号
+	 * @return 加入是否成功。不成功可能是由于不能在磁盘上创建临时文件
+	 */
+	public boolean addTrainingTokens(TokenBuffer tokens, int label) {
 		if ( label >= nclasses || label < 0 ) {
 			return false;
 		}
 		if ( tsCache == null ) {
 			try {
 				tsCacheFile = File.createTempFile("tctscache", "data");
-				tsCache = new DataOutputStream(
-								new BufferedOutputStream(
-								new FileOutputStream(tsCacheFile)));
+				tsCache = TrainingCache.create(tsCacheFile);
 				longestDoc = 0;
+				pendingTranslation.clear();
+				bucketWidth = 0;
 			} catch (IOException e) {
 				return false;
 			}
 		}
-		text = LangUtils.removeEmptyLines(text);
-		text = LangUtils.removeExtraSpaces(text);
-		String [] bigrams = seg.segment(text);
-		lexicon.addDocument(bigrams);
-		Word [] words = lexicon.convertDocument(bigrams);
-		bigrams = null;
-		Term [] terms = trainingVectorBuilder.build( words, false );
-		try {
-			tsCache.writeInt(label);
-			tsCache.writeInt(terms.length);
-			if ( terms.length > longestDoc ) {
-				longestDoc = terms.length;
+		SparseVector v = trainingVector;
+		if ( hasher != null ) {
+			// 特征值是按符号相加的计数
+			int n = countHashed(tokens);
+			v.clear();
+			for ( int i = 0 ; i < n ; i++ ) {
+				v.add(ids[i], tfs[i]);
 			}
-			for ( int i = 0 ; i < terms.length ; i++ ) {
-				tsCache.writeInt(terms[i].id);
-				tsCache.writeDouble(terms[i].weight);
+		} else {
+			lexicon.addDocument(tokens);
+			if ( ids == null || ids.length < tokens.size() ) {
+				ids = new int[Math.max(tokens.size(), 256)];
+			}
+			int n = lexicon.convertDocument(tokens, ids);
+			trainingVectorBuilder.build(ids, n, false, v);
+		}
+		try {
+			tsCache.add(label, v);
+			if ( v.size() > longestDoc ) {
+				longestDoc = v.size();
 			}
 		} catch (IOException e) {
 			return false;
 		}
+		featureStats.addDocument(label, v.getIds(), v.size());
 		if ( ! labelIndex.contains(label) ) {
 			labelIndex.add(label);
 		}
 		ndocs++;
+		if ( lexiconBudget > 0 && lexicon != null ) {
+			if ( bucketWidth == 0 && lexicon.getSize() > lexiconBudget ) {
+				bucketWidth = ndocs;
+			}
+			if ( bucketWidth > 0 && ndocs % bucketWidth == 0
+					&& lexicon.getSize() > lexiconBudget ) {
+				return pruneLexicon(ndocs / bucketWidth);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 用lossy counting（见Lexicon.pruneLossy）限制训练时的词典大小。文档按顺序分成
+	 * 宽度相同的桶，宽度是词典第一次超过预算时读入的文档数；每个桶结束时如果词典超过
+	 * 预算，去掉df + delta不超过当前桶号的词，先去掉只出现过一次的、最早加入的词，
+	 * 直到回到预算以内。df + delta超过桶号的词不去掉，这时词典会超过预算。被去掉的词
+	 * 以后再出现时从0重新计数，少计的次数不超过delta，df + delta是真实df的上界，
+	 * 特征选择用这个上界判断只出现过一次的词，见ChiSquareFeatureSelector。预算足够
+	 * 容纳df大于1的词时，被去掉的基本上都是以后不再出现的词，选出的特征和不设预算时
+	 * 相同，可以用LexiconBudgetCheck检查。featureStats同时换成新的词id。
+	 * 训练集的cache不在这里重写，对应表记录在pendingTranslation中，train时一次重写；
+	 * 积累的对应表达到CacheTranslation.MAX_SEGMENTS个时提前重写一次
+	 * @param bucket 刚结束的桶的编号，从1开始
+	 * @return 是否成功。不成功可能是由于不能重写cache文件
+	 */
+	private boolean pruneLexicon(int bucket) {
+		int before = lexicon.getSize();
+		int [] translation = lexicon.pruneLossy(bucket, lexiconBudget);
+		if ( translation == null ) {
+			return true;
+		}
+		pendingTranslation.add(tsCache.size(), translation);
+		if ( pendingTranslation.isFull() && ! applyPendingTranslation() ) {
+			return false;
+		}
+		lexicon = lexicon.map(translation);
+		featureStats = featureStats.map(translation);
+		trainingVectorBuilder =
+		  new DocumentVector(lexicon, new TfOnlyTermWeighter());
+		System.err.println("lexicon pruned at bucket " + bucket + ": " + before + " -> "
+				+ lexicon.getSize() + " words");
 		return true;
 	}
 
 	/**
-	 * 分类一篇文档
+	 * 计算文本属于每个类别的概率，结果在s.probs的前svm_get_nr_class(model)个元素中
+	 */
+	private double [] score( String text, Scratch s ) {
+		int m = vectorize(text, s);
+		// libsvm按数组的长度读取特征，数组不能比特征多，svm_node本身可以重复使用
+		svm_node [] x = Arrays.copyOf(s.nodes, m);
+		int nr = svm.svm_get_nr_class(model);
+		if ( s.probs == null || s.probs.length < nr ) {
+			s.probs = new double[nr];
+		}
+		svm.svm_predict_probability(model, x, s.probs);
+		return s.probs;
+	}
+
+	/**
+	 * 分类一篇文档。缓冲区放在ThreadLocal里，模型训练或加载完成后可以在多个线程中同时调用
 	 * @param text 待分类文档
 	 * @return 分类结果，其中包含分类标签和概率，对于svm分类器，概率无意义
 	 */
 	public ClassifyResult classify(String text) {
-		String [] bigrams = seg.segment(text);
-		Word [] words = lexicon.convertDocument(bigrams);
-		
-		Term [] terms = testVectorBuilder.build(words, true);
-		
-		int m = terms.length;
-		svm_node[] x = new svm_node[m];
-		for(int j = 0; j < m; j++)
-		{
-			x[j] = new svm_node();
-			x[j].index = terms[j].id + 1;
-			x[j].value = terms[j].weight;
-		}
+		double [] probs = score(text, scratch.get());
+		int nr = svm.svm_get_nr_class(model);
 		
 		ClassifyResult cr = new ClassifyResult(-1, 0.0);
-		double [] probs = new double[svm.svm_get_nr_class(model)];
-		
-		svm.svm_predict_probability(model, x, probs);
-		for (int i = 0; i < probs.length; i++) {
+		for (int i = 0; i < nr; i++) {
 		  if (probs[i] > cr.prob) {
 		    cr.prob = probs[i];
 		    cr.label = i;
@@ -525,48 +756,27 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	}
 	
 	public ClassifyResult[] classify(String text, int topN){
+		double [] probs = score(text, scratch.get());
+		int nr = svm.svm_get_nr_class(model);
 		
-		String [] bigrams = seg.segment(text);
-		Word [] words = lexicon.convertDocument(bigrams);
-		
-		Term [] terms = testVectorBuilder.build(words, true);
-		
-		int m = terms.length;
-		svm_node[] x = new svm_node[m];
-		for(int j = 0; j < m; j++)
-		{
-			x[j] = new svm_node();
-			x[j].index = terms[j].id + 1;
-			x[j].value = terms[j].weight;
+		ClassifyResult [] cr = new ClassifyResult[nr];
+		for(int i=0; i<nr; i++){
+			cr[i] = new ClassifyResult(i, probs[i]);
 		}
+		Arrays.sort(cr, PROB_ORDER);
+		return Arrays.copyOf(cr, Math.min(topN, nr));
+	}
 
-		ArrayList<ClassifyResult> cr = new ArrayList<ClassifyResult>();
-		double [] probs = new double[svm.svm_get_nr_class(model)];
-		svm.svm_predict_probability(model, x, probs);
-		
-		for(int i=0; i<probs.length; i++){
-			cr.add(new ClassifyResult(i, probs[i]));
-		}
-		
-		Comparator com = new Comparator() {
-			public int compare(Object obj1, Object obj2){
-				ClassifyResult o1 = (ClassifyResult)obj1;
-				ClassifyResult o2 = (ClassifyResult)obj2;
-				if(o1.prob > o2.prob + 1e-20) return -1;
-				else if(o1.prob < o2.prob - 1e-20) return 1;
-				else return 0;
-			}
-		};
-		
-		Collections.sort(cr,com);
-		
-		//java.text.DecimalFormat dcmFmt = new DecimalFormat("0.0000");
-		ClassifyResult result[] = new ClassifyResult[Math.min(topN, probs.length)];
-		for(int i=0; i<result.length; i++){
-			result[i] = new ClassifyResult(cr.get(i).label, cr.get(i).prob);
-		}
-		cr.clear();
-		return result;
+	/**
+	 * 分批分类，各线程的缓冲区和classify共用
+	 */
+	public ClassifyResult[][] classifyBatch(List<? extends CharSequence> texts, int topN) {
+		return BatchClassification.run(texts, topN, classifyExecutor, 
+				new BatchClassification.Task() {
+					public ClassifyResult[] classify(String text, int topN) {
+						return AbstractTextClassifier.this.classify(text, topN);
+					}
+				});
 	}
 
 	/**
@@ -581,10 +791,26 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 		
 		File lexiconFile = new File( modelPath, "lexicon");
 		File modelFile = new File( modelPath, "model");
+		File hasherFile = new File( modelPath, "hasher");
 		
 		try { 
+			if ( hasherFile.exists() ) {
+				FeatureHasher h = FeatureHasher.loadFromFile(hasherFile);
+				if ( h == null || ! modelFile.exists() ) {
+					return false;
+				}
+				this.model = svm.svm_load_model(modelFile.getAbsolutePath());
+				this.hasher = h;
+				this.lexicon = null;
+				trainingVectorBuilder = null;
+				return true;
+			}
 			if ( lexiconFile.exists() ) {
+				if ( lexicon == null ) {
+					lexicon = new Lexicon();
+				}
 				lexicon.loadFromFile(lexiconFile);
+				hasher = null;
 			} else {
 				return false;
 			}
@@ -607,7 +833,8 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	/**
 	 * 将训练好的模型保存到磁盘
 	 * @param filename 保存的文件名(实际是一个目录)
-	 * @return 保存是否成功
+	 * @return 保存是否成功。目录中已经有另一种模型（使用特征哈希时的lexicon，否则是
+	 *   hasher）时不覆盖也不删除，返回false
 	 */
 	public boolean  saveModel(String filename) {
 		File modelPath = new File(filename);
@@ -617,9 +844,26 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 		
 		File lexiconFile = new File( modelPath, "lexicon");
 		File modelFile = new File( modelPath, "model");
+		File hasherFile = new File( modelPath, "hasher");
 		
 		try {
-			lexicon.saveToFile(lexiconFile);
+			// 使用特征哈希时用hasher代替lexicon，加载时hasher优先，两种模型不能放在
+			// 同一个目录中
+			if ( hasher != null ) {
+				if ( lexiconFile.exists() ) {
+					System.err.println(modelPath + " already contains a lexicon model, not saved");
+					return false;
+				}
+				if ( ! hasher.saveToFile(hasherFile) ) {
+					return false;
+				}
+			} else {
+				if ( hasherFile.exists() ) {
+					System.err.println(modelPath + " already contains a hashed model, not saved");
+					return false;
+				}
+				lexicon.saveToFile(lexiconFile);
+			}
 			svm.svm_save_model(modelFile.getAbsolutePath(), model);
 		} catch (IOException e ) {
 			return false;
@@ -627,36 +871,66 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 		return true;
 	}
 	
+	/**
+	 * 按紧缩词典时记录的对应表重写训练集的cache
+	 * @return 是否成功。不成功可能是由于不能重写cache文件
+	 */
+	private boolean applyPendingTranslation() {
+		TrainingCache cache;
+		try {
+			cache = pendingTranslation.apply(tsCache);
+		} catch (IOException e) {
+			return false;
+		}
+		if ( cache != tsCache ) {
+			tsCache.delete();
+			tsCache = cache;
+			tsCacheFile = cache.getFile();
+			longestDoc = cache.getLongestDoc();
+		}
+		return true;
+	}
+
 	/**
 	 * 训练模型
 	 * @return 训练是否成功。不成功可能是由于不能正确地读写临时文件造成的
 	 */
 	public boolean train() {
+		if ( ! applyPendingTranslation() ) {
+			return false;
+		}
 		try {
 			tsCache.close();
 		} catch (IOException e) {
 			return false;
 		}
 		
-		Map<Integer, Integer> selectedFeatures = selectFeaturesByChiSquare(
-				tsCacheFile, lexicon.getSize(), maxFeatures);
+		int featureSize = hasher != null ? hasher.getSize() : lexicon.getSize();
+		int [] selectedFeatures = selectFeatureIdsByChiSquare(
+				featureStats, featureSize, maxFeatures, null);
 		
 		//以下注释的代码为用李景阳论文Scalable Term Selection方法选择特征，目前未经完全测试通过！！
 //		Map<Integer, Integer> selectedFeatures = selectFeatureBySTS(
-//				tsCacheFile, lexicon.getSize(), maxFeatures, ndocs, nclasses,
-//				longestDoc);
+//				featureStats, lexicon.getSize(), maxFeatures);
 		if ( selectedFeatures == null ) {
 			return false;
 		}
-		System.err.println("feature selection complete: " + maxFeatures + " selected from " + lexicon.getSize() + " features");
-		svm_problem problem = createLibSVMProblem(tsCacheFile, selectedFeatures);
+		if ( hasher != null ) {
+			// 特征哈希的df来自featureStats，要在释放之前取出
+			hasher = hasher.map( selectedFeatures, featureStats );
+		}
+		featureStats = null;
+		System.err.println("feature selection complete: " + maxFeatures + " selected from " + featureSize + " features");
+		svm_problem problem = createLibSVMProblem(tsCache, selectedFeatures);
 		System.err.println("problem created");
 		
-		lexicon = lexicon.map( selectedFeatures );
-		lexicon.setLock( true );
-		tsCacheFile.delete();
+		if ( hasher == null ) {
+			lexicon = lexicon.map( selectedFeatures );
+			lexicon.setLock( true );
+			testVectorBuilder = new DocumentVector(lexicon, new TfIdfTermWeighter(lexicon));
+		}
+		tsCache.delete();
 		trainingVectorBuilder = null;
-		testVectorBuilder = new DocumentVector(lexicon, new TfIdfTermWeighter(lexicon));
 		
 		svm_parameter param = new svm_parameter();
 		
@@ -685,7 +959,12 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 			return false;
 		}
 		
-		svm_model classifier = svm.svm_train(problem, param);
+		svm_model classifier;
+		if ( trainingThreads > 1 ) {
+			classifier = new ParallelSvmTrainer(trainingThreads).train(problem, param);
+		} else {
+			classifier = svm.svm_train(problem, param);
+		}
 		this.model = classifier;
 		return true;
 	}
@@ -701,83 +980,88 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	}
 	
 	/**
-	 * 根据特征选择的结果来生成一个用于训练的SVM problem
-	 * @param cacheFile 存放训练集的缓存文件
-	 * @param selectedFeatures 特征选择的结果
+	 * 训练特征的idf = log((ndocs + 1) / df)，以特征选择后的特征id为下标，在构造problem
+	 * 之前算好，每篇文档的每个词只查表。公式和分类时词典的idf（Lexicon.getIdf）不同，
+	 * 保持原来训练时的权重
+	 * @param selectedFeatures 原来的词id到新特征id的对应表，没有选中的为-1
+	 */
+	private double [] trainingIdf( int [] selectedFeatures ) {
+		int size = 0;
+		for ( int id : selectedFeatures ) {
+			size = Math.max(size, id + 1);
+		}
+		double [] idf = new double[size];
+		for ( int tid = 0 ; tid < selectedFeatures.length ; tid++ ) {
+			int id = selectedFeatures[tid];
+			if ( id >= 0 ) {
+				// 特征哈希的df在特征选择后按新的特征id保存
+				int df = hasher != null ? hasher.getDocumentFrequency(id)
+					: lexicon.getDocumentFrequency(tid);
+				idf[id] = Math.log( (double) ( ndocs + 1 ) / df );
+			}
+		}
+		return idf;
+	}
+	
+	/**
+	 * 根据特征选择的结果来生成一个用于训练的SVM problem。trainingThreads大于1时
+	 * 多个线程同时读取cache的不同部分
+	 * @param cache 存放训练集的缓存
+	 * @param selectedFeatures 特征选择的结果，原来的词id到新特征id的对应表，没有选中的为-1
 	 * @return 构造好的svm_problem数据结构
 	 */
-	private svm_problem createLibSVMProblem( File cacheFile, 
-			Map<Integer, Integer> selectedFeatures) {
+	private svm_problem createLibSVMProblem( TrainingCache cache, 
+			final int [] selectedFeatures) {
 
-		Vector<Double> vy = new Vector<Double>();
-		Vector<svm_node[]> vx = new Vector<svm_node[]>();
-		
-		DataNode [] datanodes = new DataNode[this.ndocs];
+		final DataNode [] datanodes = new DataNode[cache.size()];
 
-		int label, nterms;
-		Term [] terms = new Term[longestDoc + 1];
-		for ( int i = 0 ; i < terms.length ; i++ ) {
-			terms[i] = new Term();
-		}
-		int ndocsread = 0;
+		final double [] idf = trainingIdf(selectedFeatures);
 		try {
-			DataInputStream dis = new DataInputStream(new BufferedInputStream(
-					new FileInputStream(cacheFile)));
-			while ( true ) {
-				int n = 0;
-				try {
-					label = dis.readInt();
-					nterms = dis.readInt();
-					for ( int i = 0 ; i < nterms ; i++ ) { 
-						int tid = dis.readInt();
-						double tweight = dis.readDouble();
-						Integer id = selectedFeatures.get(tid);
-						if ( id != null ) {
-							terms[n].id = id;
-							Word w = lexicon.getWord(tid);
-							int df = w.getDocumentFrequency();
-							terms[n].weight = Math.log( tweight + 1 ) 
-								* ( Math.log( (double) ( ndocs + 1 ) / df ) );
+			cache.scan(trainingThreads, new TrainingCache.Handler() {
+				public void document( int index, TrainingCache.Document doc ) {
+					int [] ids = new int[doc.nterms];
+					double [] weights = new double[doc.nterms];
+					int n = 0;
+					for ( int i = 0 ; i < doc.nterms ; i++ ) { 
+						int tid = doc.ids[i];
+						int id = tid < selectedFeatures.length ? selectedFeatures[tid] : -1;
+						if ( id >= 0 ) {
+							ids[n] = id;
+							int tf = doc.tfs[i];
+							// 特征哈希的计数可以是负数
+							weights[n] = Math.log( Math.abs(tf) + 1 ) * idf[id];
+							if ( tf < 0 ) {
+								weights[n] = -weights[n];
+							}
 							n++;
-							//System.err.println("doc " + id + " " + w);
 						}
 					}
-				} catch ( EOFException e ) {
-					break;
-				}
-				
-				// 归一化向量
-				double normalizer = 0;
-				for ( int i = 0 ; i < n ; i++ ) { 
-					normalizer += terms[i].weight * terms[i].weight;
-				}
-				normalizer = Math.sqrt(normalizer);
-				for ( int i = 0 ; i < n ; i++ ) { 
-					terms[i].weight /= normalizer;
-				}
-				
-				datanodes[ndocsread] = new DataNode();
-				// 放入svm problem中
-				datanodes[ndocsread].label = label;
-	
-				svm_node[] x = new svm_node[n];
-				for ( int i = 0; i < n ; i++ ) {
-					x[i] = new svm_node();
-					x[i].index = terms[i].id + 1;
-					x[i].value = terms[i].weight;				
-				}
-				datanodes[ndocsread].nodes = x;
-				
-				if ( ndocsread++ % 1000 == 0) {
-					System.err.println("scanned " + ndocsread);
+					
+					// 归一化向量
+					double normalizer = 0;
+					for ( int i = 0 ; i < n ; i++ ) { 
+						normalizer += weights[i] * weights[i];
+					}
+					normalizer = Math.sqrt(normalizer);
+					
+					DataNode node = new DataNode();
+					// 放入svm problem中
+					node.label = doc.label;
+					svm_node[] x = new svm_node[n];
+					for ( int i = 0; i < n ; i++ ) {
+						x[i] = new svm_node();
+						x[i].index = ids[i] + 1;
+						x[i].value = weights[i] / normalizer;
+					}
+					node.nodes = x;
+					datanodes[index] = node;
 				}
-			}
-			dis.close();
+			});
 		} catch ( IOException e ) {
 			return null;
 		}
-		
-		assert( this.ndocs == ndocsread );
+		System.err.println("scanned " + datanodes.length + " documents ("
+				+ cache.getByteSize() + " bytes)");
 		
 		Arrays.sort( datanodes );
 		
@@ -797,7 +1081,8 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	  ByteArrayOutputStream baos = new ByteArrayOutputStream();
 	  try {
 	    ObjectOutputStream oos = new ObjectOutputStream(baos);
-	    oos.writeObject(this.lexicon);
+	    // 使用特征哈希时以哈希器代替词典
+	    oos.writeObject(this.hasher != null ? this.hasher : this.lexicon);
 	    oos.writeObject(this.model);
 	    oos.close();
 	  } catch (IOException e) {
@@ -814,7 +1099,14 @@ public abstract class AbstractTextClassifier implements TextClassifier {
 	  ObjectInputStream ois;
     try {
       ois = new ObjectInputStream(bais);
-      this.lexicon = (Lexicon) ois.readObject();
+      Object features = ois.readObject();
+      if ( features instanceof FeatureHasher ) {
+        this.hasher = (FeatureHasher) features;
+        this.lexicon = null;
+      } else {
+        this.hasher = null;
+        this.lexicon = (Lexicon) features;
+      }
       this.model = (svm_model) ois.readObject();
       ois.close();
     } catch (IOException e) {
@@ -824,7 +1116,9 @@ public abstract class AbstractTextClassifier implements TextClassifier {
       // TODO Auto-generated catch block
       e.printStackTrace();
     }
-    testVectorBuilder = 
-      new DocumentVector(lexicon, new TfIdfTermWeighter(lexicon));
+    if ( lexicon != null ) {
+      testVectorBuilder = 
+        new DocumentVector(lexicon, new TfIdfTermWeighter(lexicon));
+    }
 	}
 }
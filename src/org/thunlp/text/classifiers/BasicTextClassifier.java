@@ -7,10 +7,16 @@ import java.io.Serializable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 
+import org.thunlp.io.DocumentReader;
 import org.thunlp.io.TextFileReader;
 import org.thunlp.io.TextFileWriter;
-import org.thunlp.language.chinese.LangUtils;
+import org.thunlp.language.chinese.BigramWordSegment;
+import org.thunlp.language.chinese.ChineseStopwords;
+import org.thunlp.language.chinese.TextNormalizer;
+import org.thunlp.language.chinese.TokenBuffer;
+import org.thunlp.language.english.BilingualBigramWordSegment;
 
 public class BasicTextClassifier{
 
@@ -92,6 +98,32 @@ public class BasicTextClassifier{
 	 * 是否打印细节
 	 */
 	protected boolean printDetail = false;
+	/**
+	 * 读入训练语料时每个阶段的线程数，为1时逐个文件读入
+	 */
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * liblinear同时训练的类别数、libsvm同时训练的子问题数。默认为1，用Linear.train
+	 * 或svm.svm_train逐个训练；大于1时用ParallelLinearTrainer或ParallelSvmTrainer，
+	 * 这时liblinear的模型和逐个训练的不同，分类结果也可能不同
+	 */
+	protected int trainingThreads = 1;
+	/**
+	 * 流式训练的epoch数，大于0时liblinear分类器在磁盘上的训练集cache上用SGD训练
+	 */
+	protected int streamingEpochs = 0;
+	/**
+	 * 特征哈希的桶数的以2为底的对数，大于0时用特征哈希代替词典
+	 */
+	protected int hashBits = 0;
+	/**
+	 * 训练时词典的最大词数，大于0时词典超过这个大小就去掉df最低的词
+	 */
+	protected int lexiconBudget = 0;
+	/**
+	 * 是否在生成bigram时去掉含有中文停用字和停用词的bigram
+	 */
+	protected boolean chineseStopwords = false;
 	/**
 	 * 分类编号索引
 	 */
@@ -324,39 +356,77 @@ public class BasicTextClassifier{
 		return sum / array.length;
 	}
 	
+	/**
+	 * trainerfilter的预处理：全角字符和中文标点换成ASCII字符，去掉空行和多余的空格，
+	 * 只保留汉字和ASCII可打印字符，转换成简体
+	 */
+	static final TextNormalizer TRAINER_FILTER = new TextNormalizer(true, true, true);
+	/**
+	 * trainerfilter只用到文本的前6001个字符，只要知道文本是否超过6003个字符，所以读文件
+	 * 时只需要解码前6004个字符，结果和读入整个文件相同
+	 */
+	static final int TRAINER_FILTER_CHARS = 6004;
+
+	/**
+	 * 读入训练和测试文件，在addTrainingText、classifyFile和testfiles之间重复使用
+	 */
+	private DocumentReader documentReader = null;
+	private String documentReaderEncoding = null;
+	/**
+	 * 分类器的分词器是BilingualBigramWordSegment时，直接把文件切分成词，不构造String
+	 */
+	private DocumentTokenizer documentTokenizer = null;
+	private TextClassifier documentTokenizerOwner = null;
+	private String documentTokenizerEncoding = null;
+	private TokenBuffer documentTokens = null;
+
 	/**
 	 * 对训练文件中的文本进行预处理，整理成标准格式
 	 */
-	public String trainerfilter(String text){
+	public String trainerfilter(CharSequence text){
 		if(text.length() > 6003){
-			text = text.substring(0, 6001);
-		}
-		char[] chs = new char[text.length()];
-		text = LangUtils.mapFullWidthLetterToHalfWidth(text);
-		text = LangUtils.mapChineseMarksToAnsi(text);
-		text = LangUtils.mapFullWidthNumberToHalfWidth(text);
-		text = LangUtils.removeEmptyLines(text);
-		text = LangUtils.removeExtraSpaces(text);
-		int id = 0;
-		for(int i=0;i<text.length();i++){
-			char c = text.charAt(i);
-			if(LangUtils.isChinese(c)
-					 || ((int)c >31&& (int)c<128)
-					){
-				chs[id]=c;
-				id++;
-			}
+			text = text.subSequence(0, 6001);
 		}
-		return LangUtils.T2S(new String(chs).trim());//否则后面会有空格
+		return TRAINER_FILTER.normalize(text);
 	}
+
 	/**
-	 * 给定类别，添加训练文本
+	 * 读入文件中trainerfilter用到的部分，并进行预处理
 	 */
-	public boolean addTrainingText(String category, String filename) {
+	private String readFilteredText(String filename) throws IOException {
+		if (documentReader == null || !encoding.equals(documentReaderEncoding)) {
+			documentReader = new DocumentReader(encoding);
+			documentReaderEncoding = encoding;
+		}
+		return trainerfilter(documentReader.read(new File(filename), TRAINER_FILTER_CHARS));
+	}
+
+	/**
+	 * 分类器的分词器能由DocumentTokenizer直接处理时，读入文件并切分，结果在documentTokens中
+	 * @return 是否已经切分；返回false时应该用readFilteredText读入文本
+	 */
+	private boolean tokenizeDocument(String filename) throws IOException {
+		if (documentTokenizerOwner != classifier || !encoding.equals(documentTokenizerEncoding)) {
+			documentTokenizer = DocumentTokenizer.create(classifier, encoding);
+			documentTokenizerOwner = classifier;
+			documentTokenizerEncoding = encoding;
+		}
+		if (documentTokenizer == null)
+			return false;
+		if (documentTokens == null)
+			documentTokens = new TokenBuffer();
+		documentTokenizer.tokenize(new File(filename), documentTokens);
+		return true;
+	}
+	/**
+	 * 检查训练文件的类别
+	 * @return 类别编号，出错时返回-1
+	 */
+	private int trainingLabel(String category, String filename) {
 		int label = -1;
 		if (filename == null) {
 			System.err.println("ERROR : AddTrainingText()  filename is NULL !");
-			return false;
+			return -1;
 		}
 		if (category == null || !categoryToInt.containsKey(category) || (label = categoryToInt.get(category)) < 0) {
 			System.err.println("ERROR : AddTrainingText()  Can't find category: " 
@@ -364,13 +434,22 @@ public class BasicTextClassifier{
 					+ categoryToInt.keySet().contains(category) + " " 
 					+ categoryToInt.toString() + " " 
 					+ categoryToInt.get(category));
-			return false;
+			return -1;
 		}
-		String content;
+		return label;
+	}
+	/**
+	 * 给定类别，添加训练文本
+	 */
+	public boolean addTrainingText(String category, String filename) {
+		int label = trainingLabel(category, filename);
+		if (label < 0)
+			return false;
 		try {
-			content = TextFileReader.readAll(filename, encoding);
-			content = trainerfilter(content);
-			classifier.addTrainingText(content, label);
+			if (tokenizeDocument(filename))
+				classifier.addTrainingTokens(documentTokens, label);
+			else
+				classifier.addTrainingText(readFilteredText(filename), label);
 		} catch (IOException e) {
 			System.err.println("ERROR : AddTrainingText()  Can't read content from " + filename);
 			return false;
@@ -378,9 +457,44 @@ public class BasicTextClassifier{
 		return true;
 	}
 	/**
-	 * 自动添加训练文件
+	 * 添加已经由TrainingPipeline读入并分好词的训练文件，和addTrainingText(category, filename)
+	 * 的结果相同
+	 */
+	protected boolean addTrainingTokens(String category, String filename, TokenBuffer tokens) {
+		int label = trainingLabel(category, filename);
+		if (label < 0)
+			return false;
+		classifier.addTrainingTokens(tokens, label);
+		return true;
+	}
+	/**
+	 * 一个训练文件处理完毕
+	 */
+	protected void trainingFileAdded() {
+		index++;
+		if (printDetail && index % 1000 == 0)
+			printDetail();
+	}
+	/**
+	 * 自动添加训练文件。threads大于1时用TrainingPipeline多线程读入，结果和逐个读入相同
 	 */
 	public void addfiles(String filename) {
+		ArrayList<String> categories = new ArrayList<String>();
+		ArrayList<String> files = new ArrayList<String>();
+		collectTrainingFiles(filename, categories, files);
+		if (threads > 1 && files.size() > 1) {
+			new TrainingPipeline(this, threads).run(categories, files);
+			return;
+		}
+		for (int i = 0; i < files.size(); ++i) {
+			addTrainingText(categories.get(i), files.get(i));
+			trainingFileAdded();
+		}
+	}
+	/**
+	 * 按addfiles处理的顺序列出训练文件和它们的类别
+	 */
+	protected void collectTrainingFiles(String filename, List<String> categories, List<String> files) {
 		if(filename == null)
 			return;
 		File file = new File(filename);
@@ -393,13 +507,13 @@ public class BasicTextClassifier{
 			for (int i = 0; i < listFiles.length; ++i) {
 				if (listFiles[i].isDirectory()) {
 					if (trainingPathIndex >= 0)
-						addfiles(listFiles[i].getAbsolutePath());
+						collectTrainingFiles(listFiles[i].getAbsolutePath(), categories, files);
 					else {
 						trainingPathIndex = categoryToInt.get(listFiles[i].getName());
 						if (trainingPathIndex < 0)
 							System.err.println("Can't map " + listFiles[i].getName() + " to any category.");
 						else
-							addfiles(listFiles[i].getAbsolutePath());
+							collectTrainingFiles(listFiles[i].getAbsolutePath(), categories, files);
 						trainingPathIndex = -1;
 					}
 				} else if (listFiles[i].isFile() && trainingPathIndex >= 0) {
@@ -419,10 +533,8 @@ public class BasicTextClassifier{
 		for (int i = 0; i < filteredName.size(); ++i) {
 			if((double)i / (double)filteredName.size() > ratio1)
 				break;
-			addTrainingText(categoryList.get(trainingPathIndex), filteredName.get(i));
-			index++;
-  			if (printDetail && index % 1000 == 0)
-  				printDetail();
+			categories.add(categoryList.get(trainingPathIndex));
+			files.add(filteredName.get(i));
 		}
 	}
 
@@ -453,13 +565,17 @@ public class BasicTextClassifier{
 			return new ClassifyResult[]{};
 		}
 		String content = "";
+		ClassifyResult[] result = null;
 		try {
-			content = TextFileReader.readAll(filepath, encoding);
-			content = trainerfilter(content);
+			if (classifier instanceof LiblinearTextClassifier && tokenizeDocument(filepath))
+				result = ((LiblinearTextClassifier) classifier).classify(documentTokens, topN);
+			else
+				content = readFilteredText(filepath);
 		} catch (IOException e) {
 			System.err.println("ERROR : classifyFile()  Can't read content from " + filepath);
 		}
-		ClassifyResult[] result = classifier.classify(content, topN);
+		if (result == null)
+			result = classifier.classify(content, topN);
 		System.out.print("Classifying " + filepath + " :  ");
 		this.printClassifyResult(result);
 		return result;
@@ -476,6 +592,18 @@ public class BasicTextClassifier{
 		}
 		return classifier.classify(text, topN);
 	}
+
+	/**
+	 * 
+	 * 对一批文本进行分类，按输入的顺序返回每个文本的前topN个分类结果
+	 * 
+	 */
+	public ClassifyResult[][] classifyTexts(List<? extends CharSequence> texts, int topN){
+		if(topN > categoryList.size()){
+			topN = categoryList.size();
+		}
+		return classifier.classifyBatch(texts, topN);
+	}
 	
 	/**
 	 * 对文件进行自动分类测试
@@ -522,14 +650,16 @@ public class BasicTextClassifier{
 			
 			if (filteredName.get(i).endsWith("eng")) continue;
 				
-			String content = null;
+			ClassifyResult result;
 			try {
-				content = TextFileReader.readAll(filteredName.get(i), encoding);
+				if (classifier instanceof LiblinearTextClassifier && tokenizeDocument(filteredName.get(i)))
+					result = ((LiblinearTextClassifier) classifier).classify(documentTokens);
+				else
+					result = classifier.classify(readFilteredText(filteredName.get(i)));
 			} catch (IOException e) {
 				System.err.println("ERROR : testfiles()  Can't read content from " + filteredName.get(i));
+				continue;
 			}
-			content = trainerfilter(content);
-			ClassifyResult result = classifier.classify(content);
 			if(result != null){
 				tester.predict[result.label]++;
 				tester.answer[testingPathIndex]++;
@@ -580,6 +710,12 @@ public class BasicTextClassifier{
 			+ " [-d2 RATIO]\t设置测试集占总文件数比例，默认为0.2。\n"
 			+ " [-e ENCODING]\t设置训练及测试文件编码，默认为UTF-8。\n"
 			+ " [-filter SUFFIX]\t设置文件后缀过滤。例如设置“-filter .txt”，则训练和测试时仅考虑文件名后缀为.txt的文件。\n"
+			+ " [-threads N]\t设置读入训练语料的线程数，默认为CPU核数。为1时逐个文件读入。\n"
+			+ " [-trainthreads N]\t设置liblinear同时训练的类别数、libsvm同时训练的子问题数，默认为1，即逐个训练。大于1时训练更快，但liblinear的模型和逐个训练的不同，分类结果也可能不同。\n"
+			+ " [-stream EPOCHS]\t不把训练集读入内存，直接在磁盘上的训练集cache上训练EPOCHS轮，适用于大规模语料，仅支持liblinear。\n"
+			+ " [-hash BITS]\t用特征哈希代替词典，词被哈希到2^BITS个桶中，特征选择在桶上进行。模型中不保存词典。\n"
+			+ " [-budget WORDS]\t训练时词典的软上限，超过时用lossy counting去掉df低的词，限制读入训练语料时的内存。\n"
+			+ " [-cnstop]\t生成bigram时去掉含有中文停用字（的、了、是等）的bigram和两个字的停用词，训练和分类时都要指定。\n"
 			;
 		if (args.length == 0)
 			exit(usage);
@@ -676,6 +812,55 @@ public class BasicTextClassifier{
 					exit("loading -filter SUFFIX Error!");
 				suffix = args[i + 1];
 				i ++;
+			} else if ("-threads".equals(args[i])) {
+				if (i + 1 >= args.length)
+					exit("loading -threads N Error!");
+				try {
+					threads = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					exit("-threads N  needs an INTEGER input!");
+				}
+				i ++;
+			} else if ("-trainthreads".equals(args[i])) {
+				if (i + 1 >= args.length)
+					exit("loading -trainthreads N Error!");
+				try {
+					trainingThreads = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					exit("-trainthreads N  needs an INTEGER input!");
+				}
+				i ++;
+			} else if ("-stream".equals(args[i])) {
+				if (i + 1 >= args.length)
+					exit("loading -stream EPOCHS Error!");
+				try {
+					streamingEpochs = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					exit("-stream EPOCHS  needs an INTEGER input!");
+				}
+				i ++;
+			} else if ("-hash".equals(args[i])) {
+				if (i + 1 >= args.length)
+					exit("loading -hash BITS Error!");
+				try {
+					hashBits = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					exit("-hash BITS  needs an INTEGER input!");
+				}
+				if (hashBits < 0 || hashBits > 30)
+					exit("-hash BITS  must be between 0 and 30!");
+				i ++;
+			} else if ("-budget".equals(args[i])) {
+				if (i + 1 >= args.length)
+					exit("loading -budget WORDS Error!");
+				try {
+					lexiconBudget = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					exit("-budget WORDS  needs an INTEGER input!");
+				}
+				i ++;
+			} else if ("-cnstop".equals(args[i])) {
+				chineseStopwords = true;
 			} else if ("-print".equals(args[i])) {
 				printDetail = true;
 			} 
@@ -687,10 +872,38 @@ public class BasicTextClassifier{
 		
 		if (categoryList.size() == 0 && (testingFolder != null || loadModelPath != null))
 			exit("Category list NOT LOADED !!! \nUse [-c CATEGORY_LIST_FILE_PATH] ");
-		if (linear)
-			setTextClassifier(new LinearBigramChineseTextClassifier(categoryList.size()));
-		else 
-			setTextClassifier(new BigramChineseTextClassifier(categoryList.size()));
+		ChineseStopwords stopwords = null;
+		if (chineseStopwords) {
+			stopwords = ChineseStopwords.getDefault();
+			if (stopwords == null)
+				exit("Cannot load Chinese stopwords!");
+		}
+		if (linear) {
+			LinearBigramChineseTextClassifier linearClassifier = stopwords == null
+				? new LinearBigramChineseTextClassifier(categoryList.size())
+				: new LinearBigramChineseTextClassifier(categoryList.size(),
+						new BilingualBigramWordSegment(false, stopwords));
+			linearClassifier.setTrainingThreads(trainingThreads);
+			if (hashBits > 0)
+				linearClassifier.setFeatureHashing(hashBits);
+			linearClassifier.setLexiconBudget(lexiconBudget);
+			if (streamingEpochs > 0) {
+				StreamingLinearTrainer trainer = new StreamingLinearTrainer();
+				trainer.setEpochs(streamingEpochs);
+				linearClassifier.setStreamingTrainer(trainer);
+			}
+			setTextClassifier(linearClassifier);
+		} else {
+			BigramChineseTextClassifier svmClassifier = stopwords == null
+				? new BigramChineseTextClassifier(categoryList.size())
+				: new BigramChineseTextClassifier(categoryList.size(),
+						new BigramWordSegment(stopwords));
+			svmClassifier.setTrainingThreads(trainingThreads);
+			if (hashBits > 0)
+				svmClassifier.setFeatureHashing(hashBits);
+			svmClassifier.setLexiconBudget(lexiconBudget);
+			setTextClassifier(svmClassifier);
+		}
 	}
 
 	/**
@@ -719,7 +932,8 @@ public class BasicTextClassifier{
 		
 		if (trainingFolder != null) {
 			addfiles(trainingFolder);
-			lexiconSize = classifier.getLexicon().getSize();
+			if (classifier.getLexicon() != null)
+				lexiconSize = classifier.getLexicon().getSize();
 			classifier.train();
 			modelLoaded = true;
 		} else if (loadModelPath != null) {
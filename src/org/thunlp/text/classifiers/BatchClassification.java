@@ -0,0 +1,79 @@
+package org.thunlp.text.classifiers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * TextClassifier.classifyBatch的公共部分：把一批文本按顺序切成若干段，每段作为一个
+ * 任务交给线程池，结果按输入的顺序写回。同一段的文本在同一个线程中分类，分类器可以
+ * 在线程自己的缓冲区中重复使用分词、特征向量和概率数组。
+ *
+ * 没有线程池或者文本不超过一段时在调用线程中逐个分类。调用线程等待所有任务完成，
+ * 所以不能在同一个线程池的任务中调用，否则线程池满时会死锁。
+ */
+public class BatchClassification {
+	/**
+	 * 每个任务分类的文本数
+	 */
+	public static final int CHUNK = 64;
+
+	/**
+	 * 对一篇文本分类，可以在多个线程中同时调用
+	 */
+	public interface Task {
+		public ClassifyResult [] classify( String text, int topN );
+	}
+
+	/**
+	 * @param executor 线程池，为null时在调用线程中分类
+	 * @return 第i个元素是第i篇文本的分类结果
+	 */
+	public static ClassifyResult [][] run( final List<? extends CharSequence> texts,
+			final int topN, ExecutorService executor, final Task task ) {
+		final ClassifyResult [][] results = new ClassifyResult[texts.size()][];
+		if ( executor == null || texts.size() <= CHUNK ) {
+			classify(texts, 0, texts.size(), topN, task, results);
+			return results;
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for ( int start = 0 ; start < texts.size() ; start += CHUNK ) {
+			final int from = start;
+			final int to = Math.min(start + CHUNK, texts.size());
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					classify(texts, from, to, topN, task, results);
+					return null;
+				}
+			}));
+		}
+		try {
+			for ( Future<?> f : futures ) {
+				f.get();
+			}
+		} catch ( InterruptedException e ) {
+			for ( Future<?> f : futures ) {
+				f.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("batch classification interrupted", e);
+		} catch ( ExecutionException e ) {
+			for ( Future<?> f : futures ) {
+				f.cancel(true);
+			}
+			throw new RuntimeException("batch classification failed", e.getCause());
+		}
+		return results;
+	}
+
+	private static void classify( List<? extends CharSequence> texts, int from, int to,
+			int topN, Task task, ClassifyResult [][] results ) {
+		for ( int i = from ; i < to ; i++ ) {
+			results[i] = task.classify(texts.get(i).toString(), topN);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package org.thunlp.text.classifiers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.thunlp.language.chinese.WordSegment;
+import org.thunlp.text.Lexicon;
+
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * liblinear分类器的单文件二进制模型，包含词典、每个特征的idf、类别列表和权重矩阵。
+ *
+ * 文件格式（little-endian）：
+ * <pre>
+ * 文件头，32字节：
+ *   "THUCTCBM"         8字节魔数
+ *   int version        格式版本，目前为1
+ *   int reserved       0
+ *   long bodyLength    文件头之后的字节数
+ *   long checksum      文件头之后全部字节的CRC32
+ * 正文：
+ *   int n, char[n]     solver type的名字
+ *   int k, int[k]      类别列表
+ *   int nrFeature
+ *   double bias
+ *   词典               Lexicon.writeTo的输出
+ *   补齐到8字节
+ *   int n, int 0, double[n]    idf
+ *   int n, int 0, double[n]    权重矩阵，布局和Model.getFeatureWeights()相同
+ * </pre>
+ *
+ * 读取时用FileChannel.map把文件映射到内存，词典的数组整块复制，权重矩阵不复制，
+ * 直接由LinearScorer在映射的内存上读，所以加载不需要解析文本，同一个模型文件在
+ * 多个进程中只占一份物理内存。
+ *
+ * 单个文件不能超过2G。
+ */
+public class BinaryModel {
+	public static final String FILE_NAME = "model.bin";
+	public static final int VERSION = 1;
+
+	private static final byte [] MAGIC = { 'T', 'H', 'U', 'C', 'T', 'C', 'B', 'M' };
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * 补齐到8字节之后的位置
+	 */
+	private static long align( long position ) {
+		return (position + 7) & ~7L;
+	}
+
+	private static void align( ByteBuffer buf ) {
+		while ( (buf.position() & 7) != 0 ) {
+			buf.put((byte) 0);
+		}
+	}
+
+	/**
+	 * 把分类器写入一个二进制模型文件
+	 */
+	public static void write( CompiledLinearClassifier classifier, File file )
+			throws IOException {
+		Lexicon lexicon = classifier.getLexicon();
+		if ( lexicon == null ) {
+			throw new IOException("binary model needs a lexicon, feature hashing is not supported");
+		}
+		LinearScorer scorer = classifier.getScorer();
+		double [] idf = classifier.getIdf();
+		DoubleBuffer w = scorer.getWeights();
+		String solver = scorer.getSolverType().name();
+		int [] labels = scorer.getLabels();
+
+		long size = HEADER_SIZE + 4 + 2 * solver.length() + 4 + 4 * labels.length
+			+ 4 + 8 + lexicon.binarySize();
+		size = align(size) + 8 + 8L * idf.length + 8 + 8L * w.remaining();
+		if ( size > Integer.MAX_VALUE ) {
+			throw new IOException("model too large: " + size + " bytes");
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+
+			buf.position(HEADER_SIZE);
+			buf.putInt(solver.length());
+			for ( int i = 0 ; i < solver.length() ; i++ ) {
+				buf.putChar(solver.charAt(i));
+			}
+			buf.putInt(labels.length);
+			for ( int label : labels ) {
+				buf.putInt(label);
+			}
+			buf.putInt(scorer.getNrFeature());
+			buf.putDouble(scorer.getBias());
+			lexicon.writeTo(buf);
+			align(buf);
+			buf.putInt(idf.length);
+			buf.putInt(0);
+			buf.asDoubleBuffer().put(idf);
+			buf.position(buf.position() + 8 * idf.length);
+			buf.putInt(w.remaining());
+			buf.putInt(0);
+			buf.asDoubleBuffer().put(w.duplicate());
+			buf.position(buf.position() + 8 * w.remaining());
+
+			CRC32 crc = new CRC32();
+			buf.position(HEADER_SIZE);
+			crc.update(buf);
+
+			buf.position(0);
+			buf.put(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(0);
+			buf.putLong(size - HEADER_SIZE);
+			buf.putLong(crc.getValue());
+			buf.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 读入二进制模型文件
+	 * @param seg 分类时使用的分词器，必须和训练时的相同
+	 * @throws IOException 文件不能读取，或者不是合法的模型文件
+	 */
+	public static CompiledLinearClassifier read( File file, WordSegment seg )
+			throws IOException {
+		MappedByteBuffer buf;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if ( size < HEADER_SIZE || size > Integer.MAX_VALUE ) {
+				throw new IOException("not a binary model: " + file);
+			}
+			// 映射在文件关闭之后仍然有效
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			raf.close();
+		}
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+
+		byte [] magic = new byte[MAGIC.length];
+		buf.get(magic);
+		for ( int i = 0 ; i < MAGIC.length ; i++ ) {
+			if ( magic[i] != MAGIC[i] ) {
+				throw new IOException("not a binary model: " + file);
+			}
+		}
+		int version = buf.getInt();
+		if ( version != VERSION ) {
+			throw new IOException("unsupported binary model version " + version
+					+ ": " + file);
+		}
+		buf.getInt();
+		long bodyLength = buf.getLong();
+		long checksum = buf.getLong();
+		if ( bodyLength != buf.capacity() - HEADER_SIZE ) {
+			throw new IOException("truncated binary model: " + file);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf);
+		if ( crc.getValue() != checksum ) {
+			throw new IOException("checksum mismatch: " + file);
+		}
+		buf.position(HEADER_SIZE);
+
+		try {
+			char [] solver = new char[buf.getInt()];
+			for ( int i = 0 ; i < solver.length ; i++ ) {
+				solver[i] = buf.getChar();
+			}
+			SolverType solverType = SolverType.valueOf(new String(solver));
+			int [] labels = new int[buf.getInt()];
+			for ( int i = 0 ; i < labels.length ; i++ ) {
+				labels[i] = buf.getInt();
+			}
+			int nrFeature = buf.getInt();
+			double bias = buf.getDouble();
+			Lexicon lexicon = Lexicon.readFrom(buf);
+			if ( lexicon == null ) {
+				throw new IOException("bad lexicon in binary model: " + file);
+			}
+			buf.position((int) align(buf.position()));
+			double [] idf = new double[buf.getInt()];
+			buf.getInt();
+			buf.asDoubleBuffer().get(idf);
+			buf.position(buf.position() + 8 * idf.length);
+			int nrWeights = buf.getInt();
+			buf.getInt();
+			ByteBuffer weights = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+			weights.limit(8 * nrWeights);
+			LinearScorer scorer = new LinearScorer(solverType, labels, nrFeature,
+					bias, weights.asDoubleBuffer());
+			return new CompiledLinearClassifier(lexicon, idf, scorer, seg);
+		} catch ( RuntimeException e ) {
+			// 校验和正确但内容不一致，例如由不兼容的程序写出
+			throw new IOException("bad binary model: " + file, e);
+		}
+	}
+
+	/**
+	 * 把saveModel保存的模型目录（包含lexicon和model两个文件）转换成二进制模型
+	 */
+	public static void convert( File modelDir, File file ) throws IOException {
+		File lexiconFile = new File(modelDir, "lexicon");
+		File modelFile = new File(modelDir, "model");
+		Lexicon lexicon = new Lexicon();
+		if ( ! lexiconFile.exists() || ! lexicon.loadFromFile(lexiconFile) ) {
+			throw new IOException("can't load lexicon: " + lexiconFile);
+		}
+		if ( ! modelFile.exists() ) {
+			throw new IOException("can't find model: " + modelFile);
+		}
+		Model model;
+		try {
+			model = Linear.loadModel(modelFile);
+		} catch ( RuntimeException e ) {
+			// libsvm的模型也叫model，但格式不同
+			throw new IOException("not a liblinear model: " + modelFile, e);
+		}
+		write(new CompiledLinearClassifier(lexicon, model, null), file);
+	}
+
+	/**
+	 * 用法：BinaryModel MODEL_DIR [OUTPUT_FILE]
+	 * 默认输出到MODEL_DIR/model.bin，它不比目录中的lexicon和model旧时
+	 * LiblinearTextClassifier.loadModel会读取它。
+	 */
+	public static void main( String [] args ) {
+		if ( args.length < 1 ) {
+			System.err.println("Usage: BinaryModel MODEL_DIR [OUTPUT_FILE]");
+			System.exit(1);
+		}
+		File modelDir = new File(args[0]);
+		File file = args.length > 1 ? new File(args[1]) : new File(modelDir, FILE_NAME);
+		try {
+			long start = System.currentTimeMillis();
+			convert(modelDir, file);
+			System.err.println("binary model written to " + file + " ("
+					+ file.length() + " bytes, "
+					+ (System.currentTimeMillis() - start) + " ms)");
+		} catch ( IOException e ) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.thunlp.text.classifiers;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.thunlp.text.TrainingCache;
+
+/**
+ * 训练时紧缩词典产生的、还没有写入训练集cache的词id对应表。
+ *
+ * 每次紧缩都重写整个cache的话，读入训练语料的总开销和紧缩次数成正比。这里紧缩时
+ * 只记录对应表，在训练之前调用apply一次重写。各次紧缩之前写入的文档使用的是当时的
+ * 词id，所以按紧缩时的文档数把cache分成若干段，每段保存从当时的词id到最新词id的
+ * 对应表，以后每次紧缩时和新的对应表复合。最后一次紧缩之后写入的文档已经是最新的
+ * 词id，不需要改写。
+ *
+ * 对应表的长度是紧缩时的词数，段数超过MAX_SEGMENTS时调用者应该提前apply，
+ * 占用的内存不超过MAX_SEGMENTS个对应表。
+ */
+class CacheTranslation {
+	/**
+	 * 积累的段数上限
+	 */
+	public static final int MAX_SEGMENTS = 32;
+
+	private int [] firstDocs = new int[MAX_SEGMENTS + 1];
+	private int [][] translations = new int[MAX_SEGMENTS][];
+	private int count = 0;
+
+	/**
+	 * 记录一次紧缩
+	 * @param ndocs 紧缩时cache中的文档数
+	 * @param translation 紧缩前的词id到紧缩后的词id的对应表，去掉的词小于0
+	 */
+	public void add( int ndocs, int [] translation ) {
+		for ( int k = 0 ; k < count ; k++ ) {
+			int [] t = translations[k];
+			for ( int i = 0 ; i < t.length ; i++ ) {
+				t[i] = t[i] >= 0 && t[i] < translation.length ? translation[t[i]] : -1;
+			}
+		}
+		if ( count == translations.length ) {
+			translations = Arrays.copyOf(translations, count * 2);
+			firstDocs = Arrays.copyOf(firstDocs, count * 2 + 1);
+		}
+		translations[count] = translation.clone();
+		count++;
+		firstDocs[count] = ndocs;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public boolean isFull() {
+		return count >= MAX_SEGMENTS;
+	}
+
+	/**
+	 * 按记录的对应表重写cache，之后清空记录
+	 * @return 新的cache，没有记录时返回原来的cache。原来的cache由调用者删除
+	 */
+	public TrainingCache apply( TrainingCache cache ) throws IOException {
+		if ( count == 0 ) {
+			return cache;
+		}
+		TrainingCache mapped = cache.map(firstDocs, translations, count);
+		clear();
+		return mapped;
+	}
+
+	public void clear() {
+		Arrays.fill(translations, null);
+		count = 0;
+	}
+}
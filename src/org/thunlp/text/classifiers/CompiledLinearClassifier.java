@@ -0,0 +1,312 @@
+package org.thunlp.text.classifiers;
+
+import java.util.Arrays;
+
+import org.thunlp.language.chinese.PackedWordSegment;
+import org.thunlp.language.chinese.TokenBuffer;
+import org.thunlp.language.chinese.WordSegment;
+import org.thunlp.text.FeatureHasher;
+import org.thunlp.text.Lexicon;
+
+import de.bwaldvogel.liblinear.Model;
+
+/**
+ * 训练或加载完成后的liblinear分类器快照，由LiblinearTextClassifier在train、loadModel
+ * 和loadFromString之后生成，也可以由BinaryModel直接从二进制模型文件读出。
+ *
+ * 快照持有锁定的词典、每个特征的idf和模型，构造之后不再修改，分类时用到的缓冲区
+ * 放在ThreadLocal里，所以任意多个线程可以不加锁地同时调用classify，内存中只有一份
+ * 模型。打分由LinearScorer直接读权重矩阵完成，每个特征不分配任何对象。
+ *
+ * 分词器需要能被并发调用：PackedWordSegment只用调用者给的缓冲区；其他分词器的
+ * segment(String)需要自己保证线程安全。
+ *
+ * 使用特征哈希训练的模型没有词典，词由FeatureHasher转换成特征id，这时getLexicon
+ * 返回null，也不能写成BinaryModel。
+ */
+public class CompiledLinearClassifier {
+	private final Lexicon lexicon;
+	private final FeatureHasher hasher;
+	/**
+	 * idf[id] = log10(numDocs / df + 1)，和TfIdfTermWeighter一致
+	 */
+	private final double [] idf;
+	/**
+	 * 从二进制模型读入时没有liblinear模型，需要时由权重重新构造
+	 */
+	private volatile Model model;
+	private final LinearScorer scorer;
+	private final WordSegment seg;
+	private final int nclasses;
+
+	private static class Scratch {
+		TokenBuffer tokens = new TokenBuffer();
+		int [] ids = new int[256];
+		int [] tfs = new int[256];
+		double [] values = new double[256];
+		double [] probs;
+	}
+
+	private static final ThreadLocal<Scratch> scratch =
+		new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+	};
+
+	/**
+	 * @param lexicon 特征选择后的词典，会被锁定，之后不能再修改
+	 * @param model 训练好的模型，特征i+1对应词典中id为i的词
+	 * @param seg 分词器
+	 */
+	public CompiledLinearClassifier( Lexicon lexicon, Model model, WordSegment seg ) {
+		this(lexicon, computeIdf(lexicon), new LinearScorer(model), seg);
+		this.model = model;
+	}
+
+	/**
+	 * @param idf 预先算好的idf，长度不小于词典的getIdLimit()
+	 * @param scorer 模型的权重
+	 */
+	public CompiledLinearClassifier( Lexicon lexicon, double [] idf, 
+			LinearScorer scorer, WordSegment seg ) {
+		this(lexicon, null, idf, scorer, seg);
+	}
+
+	/**
+	 * @param hasher 特征选择后的哈希器，之后不能再修改
+	 * @param model 训练好的模型，特征i+1对应哈希器的特征i
+	 * @param seg 分词器
+	 */
+	public CompiledLinearClassifier( FeatureHasher hasher, Model model, WordSegment seg ) {
+		this(null, hasher, computeIdf(hasher), new LinearScorer(model), seg);
+		this.model = model;
+	}
+
+	private CompiledLinearClassifier( Lexicon lexicon, FeatureHasher hasher, 
+			double [] idf, LinearScorer scorer, WordSegment seg ) {
+		if ( lexicon != null ) {
+			if ( idf.length < lexicon.getIdLimit() ) {
+				throw new IllegalArgumentException("expect " + lexicon.getIdLimit() + 
+						" idf values, got " + idf.length);
+			}
+			lexicon.lock(idf);
+		}
+		this.lexicon = lexicon;
+		this.hasher = hasher;
+		this.idf = idf;
+		this.scorer = scorer;
+		this.seg = seg;
+		this.nclasses = scorer.getNrClass();
+	}
+
+	/**
+	 * 使用词典的idf，词典没有锁定时按当前的统计计算
+	 */
+	private static double [] computeIdf( Lexicon lexicon ) {
+		return lexicon.getIdf();
+	}
+
+	private static double [] computeIdf( FeatureHasher hasher ) {
+		long n = hasher.getNumDocs();
+		double [] idf = new double[hasher.getSize()];
+		for ( int id = 0 ; id < idf.length ; id++ ) {
+			if ( hasher.getDocumentFrequency(id) > 0 ) {
+				idf[id] = Math.log10( (double) n / hasher.getDocumentFrequency(id) + 1 );
+			}
+		}
+		return idf;
+	}
+
+	/**
+	 * @return 词典；使用特征哈希时为null
+	 */
+	public Lexicon getLexicon() {
+		return lexicon;
+	}
+
+	/**
+	 * @return 特征哈希器；使用词典时为null
+	 */
+	public FeatureHasher getHasher() {
+		return hasher;
+	}
+
+	public Model getModel() {
+		if ( model == null ) {
+			model = scorer.toModel();
+		}
+		return model;
+	}
+
+	public LinearScorer getScorer() {
+		return scorer;
+	}
+
+	/**
+	 * 每个特征的idf，调用者不能修改
+	 */
+	double [] getIdf() {
+		return idf;
+	}
+
+	public int getNrClass() {
+		return nclasses;
+	}
+
+	/**
+	 * 构造归一化的tf-idf特征向量，特征的id按升序放在s.ids，值放在s.values
+	 * @return 特征个数
+	 */
+	private int vectorize( String text, Scratch s ) {
+		if ( hasher != null || seg instanceof PackedWordSegment ) {
+			s.tokens.segment(seg, text);
+			int n = vectorize(s.tokens, s);
+			s.tokens.clear();
+			return n;
+		}
+		String [] words = seg.segment(text);
+		if ( s.ids.length < words.length ) {
+			s.ids = new int[words.length];
+		}
+		int n = 0;
+		for ( String w : words ) {
+			int id = lexicon.getId(w);
+			if ( id >= 0 ) {
+				s.ids[n++] = id;
+			}
+		}
+		return weigh(n, s);
+	}
+
+	/**
+	 * 由分好的词构造特征向量，见vectorize(text, s)
+	 */
+	private int vectorize( TokenBuffer tokens, Scratch s ) {
+		if ( hasher != null ) {
+			return vectorizeHashed(tokens, s);
+		}
+		if ( s.ids.length < tokens.size() ) {
+			s.ids = new int[tokens.size()];
+		}
+		return weigh(lexicon.convertDocument(tokens, s.ids), s);
+	}
+
+	/**
+	 * 把s.ids中的n个词id合并成tf-idf特征
+	 */
+	private int weigh( int n, Scratch s ) {
+		int [] ids = s.ids;
+		Arrays.sort(ids, 0, n);
+		if ( s.values.length < n ) {
+			s.values = new double[ids.length];
+		}
+		double [] values = s.values;
+		// 相同的id合并成一个特征，tf是出现次数
+		double normalizer = 0;
+		int k = 0;
+		for ( int i = 0 ; i < n ; ) {
+			int j = i + 1;
+			while ( j < n && ids[j] == ids[i] ) {
+				j++;
+			}
+			double w = Math.log10( (double) (j - i) + 1 ) * idf[ids[i]];
+			normalizer += w * w;
+			ids[k] = ids[i];
+			values[k] = w;
+			k++;
+			i = j;
+		}
+		normalizer = Math.sqrt(normalizer);
+		for ( int i = 0 ; i < k ; i++ ) {
+			values[i] /= normalizer;
+		}
+		return k;
+	}
+
+	/**
+	 * 用特征哈希构造归一化的tf-idf特征向量，tf是按符号相加的计数，
+	 * 特征值为sign(tf) * log10(|tf| + 1) * idf
+	 */
+	private int vectorizeHashed( TokenBuffer tokens, Scratch s ) {
+		int size = tokens.size();
+		if ( s.ids.length < size ) {
+			s.ids = new int[size];
+		}
+		if ( s.tfs.length < size ) {
+			s.tfs = new int[size];
+		}
+		int k = hasher.count(tokens, s.ids, s.tfs);
+		if ( s.values.length < k ) {
+			s.values = new double[s.ids.length];
+		}
+		double [] values = s.values;
+		double normalizer = 0;
+		for ( int i = 0 ; i < k ; i++ ) {
+			int tf = s.tfs[i];
+			double w = Math.log10( (double) Math.abs(tf) + 1 ) * idf[s.ids[i]];
+			values[i] = tf > 0 ? w : -w;
+			normalizer += w * w;
+		}
+		normalizer = Math.sqrt(normalizer);
+		for ( int i = 0 ; i < k ; i++ ) {
+			values[i] /= normalizer;
+		}
+		return k;
+	}
+
+	/**
+	 * 计算概率，结果在s.probs中
+	 */
+	private double [] score( String text, Scratch s ) {
+		return score(vectorize(text, s), s);
+	}
+
+	/**
+	 * 由s中的n个特征计算概率，结果在s.probs中
+	 */
+	private double [] score( int n, Scratch s ) {
+		if ( s.probs == null || s.probs.length < nclasses ) {
+			s.probs = new double[nclasses];
+		}
+		scorer.probabilities(s.ids, s.values, n, s.probs);
+		return s.probs;
+	}
+
+	/**
+	 * 计算文本属于每个类别的概率
+	 * @return 长度为类别数的数组，下标是类别编号
+	 */
+	public double [] probabilities( String text ) {
+		return Arrays.copyOf(score(text, scratch.get()), nclasses);
+	}
+
+	/**
+	 * 分类一篇文档
+	 * @return 概率最大的类别和它的概率
+	 */
+	public ClassifyResult classify( String text ) {
+		return LinearScorer.best(score(text, scratch.get()), nclasses);
+	}
+
+	/**
+	 * 返回概率最大的topN个类别，按概率从大到小排列
+	 */
+	public ClassifyResult [] classify( String text, int topN ) {
+		return LinearScorer.top(score(text, scratch.get()), nclasses, topN);
+	}
+
+	/**
+	 * 分类一篇已经分好词的文档（例如DocumentTokenizer的结果），和对原文调用
+	 * classify(text)相同
+	 */
+	public ClassifyResult classify( TokenBuffer tokens ) {
+		Scratch s = scratch.get();
+		return LinearScorer.best(score(vectorize(tokens, s), s), nclasses);
+	}
+
+	public ClassifyResult [] classify( TokenBuffer tokens, int topN ) {
+		Scratch s = scratch.get();
+		return LinearScorer.top(score(vectorize(tokens, s), s), nclasses, topN);
+	}
+}
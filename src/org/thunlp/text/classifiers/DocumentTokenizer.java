@@ -0,0 +1,123 @@
+package org.thunlp.text.classifiers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.thunlp.io.CharSink;
+import org.thunlp.io.DocumentReader;
+import org.thunlp.language.chinese.TextNormalizer;
+import org.thunlp.language.chinese.TokenBuffer;
+import org.thunlp.language.chinese.WordSegment;
+import org.thunlp.language.english.BilingualBigramWordSegment;
+
+/**
+ * 把训练或待分类的文件直接切分成TokenBuffer，结果和BasicTextClassifier读入文件、
+ * 经过trainerfilter之后再用BilingualBigramWordSegment切分完全相同，但中间不构造
+ * String：DocumentReader把文件的字节解码成字符，逐个交给trainerfilter规则的
+ * TextNormalizer.Stream，它的结果再逐个交给分词器的Stream，两个汉字的bigram直接打包
+ * 成int。英文词的词干化结果来自EnglishWordSegment的缓存，只有含英文词的bigram仍然
+ * 是String。
+ *
+ * trainerfilter对超过6003个字符的文本只保留前6001个字符，所以只解码前6004个字符，
+ * 第6002到6004个字符先留下来，收到第6004个字符时丢掉，否则在结尾再交给后面。
+ *
+ * 解码器和各阶段的状态在多次调用之间重复使用，一个对象只能在一个线程中使用。
+ */
+public class DocumentTokenizer {
+	/**
+	 * trainerfilter保留的字符数
+	 */
+	private static final int KEEP = BasicTextClassifier.TRAINER_FILTER_CHARS - 3;
+
+	private final DocumentReader reader;
+	private final BilingualBigramWordSegment seg;
+	private final TextNormalizer.Stream filter;
+	private final Truncation truncation = new Truncation();
+	/**
+	 * 分词器的Stream，和它写入的tokens对应
+	 */
+	private BilingualBigramWordSegment.Stream stream = null;
+	private TokenBuffer tokens = null;
+
+	public DocumentTokenizer( String encoding, BilingualBigramWordSegment seg )
+			throws UnsupportedEncodingException {
+		this.reader = new DocumentReader(encoding);
+		this.seg = seg;
+		this.filter = BasicTextClassifier.TRAINER_FILTER.stream(new CharSink() {
+			public void append( char c ) {
+				stream.append(c);
+			}
+		});
+	}
+
+	/**
+	 * @return 分类器的分词器是BilingualBigramWordSegment时返回对应的DocumentTokenizer，
+	 *   否则返回null
+	 */
+	public static DocumentTokenizer create( TextClassifier classifier, String encoding )
+			throws UnsupportedEncodingException {
+		WordSegment seg = null;
+		if ( classifier instanceof LiblinearTextClassifier ) {
+			seg = ( (LiblinearTextClassifier) classifier ).getWordSegment();
+		} else if ( classifier instanceof AbstractTextClassifier ) {
+			seg = ( (AbstractTextClassifier) classifier ).getWordSegment();
+		}
+		if ( ! ( seg instanceof BilingualBigramWordSegment ) ) {
+			return null;
+		}
+		return new DocumentTokenizer(encoding, (BilingualBigramWordSegment) seg);
+	}
+
+	/**
+	 * 读入文件并切分，结果写入tokens（先清空）
+	 * @return 读入的字符数
+	 */
+	public int tokenize( File file, TokenBuffer tokens ) throws IOException {
+		tokens.clear();
+		if ( stream == null || tokens != this.tokens ) {
+			stream = seg.stream(tokens);
+			this.tokens = tokens;
+		}
+		int n;
+		try {
+			n = reader.read(file, BasicTextClassifier.TRAINER_FILTER_CHARS, truncation);
+		} catch ( IOException e ) {
+			truncation.count = 0;
+			filter.finish();
+			stream = null;
+			throw e;
+		}
+		truncation.finish();
+		filter.finish();
+		stream.finish();
+		return n;
+	}
+
+	/**
+	 * trainerfilter开头的截断
+	 */
+	private class Truncation implements CharSink {
+		private int count = 0;
+		private final char [] held = new char[3];
+
+		public void append( char c ) {
+			if ( count < KEEP ) {
+				filter.append(c);
+			} else if ( count < KEEP + held.length ) {
+				held[count - KEEP] = c;
+			}
+			count++;
+		}
+
+		void finish() {
+			// 收到第6004个字符时文本超过6003个字符，只保留前KEEP个
+			if ( count < KEEP + held.length ) {
+				for ( int i = KEEP ; i < count ; i++ ) {
+					filter.append(held[i - KEEP]);
+				}
+			}
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.thunlp.text.classifiers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.thunlp.io.DocumentReader;
+import org.thunlp.text.FeatureStatistics;
+import org.thunlp.text.Lexicon;
+
+/**
+ * 检查设置词典预算（LiblinearTextClassifier.setLexiconBudget）之后选出的特征是否
+ * 不变：用同一个训练集分别不设预算和设预算训练LinearBigramChineseTextClassifier，
+ * 比较chi-square选出的词。训练集的每个子目录是一个类别，目录和文件都按名称排序，
+ * 同一类别的文档连续加入，这是对lossy counting最不利的顺序。
+ *
+ * 预算要能容纳df大于1的词，否则df只有2、3的特征难免被去掉过，结果会不同。选出的
+ * 特征完全相同时退出码为0，否则输出不同的词，退出码为1。
+ */
+public class LexiconBudgetCheck {
+
+	/**
+	 * 训练一个分类器，返回chi-square选出的词
+	 */
+	private static Set<String> selectedWords( File [] categories, int budget,
+			int features, String encoding ) throws IOException {
+		final Set<String> selected = new TreeSet<String>();
+		LinearBigramChineseTextClassifier classifier =
+			new LinearBigramChineseTextClassifier(categories.length) {
+				public int [] selectFeatureIdsByChiSquare( FeatureStatistics stats,
+						int featureSize, int kept, double [] chimaxValues ) {
+					int [] remap = super.selectFeatureIdsByChiSquare(stats,
+							featureSize, kept, chimaxValues);
+					Lexicon lexicon = getLexicon();
+					for ( int i = 0 ; i < remap.length ; i++ ) {
+						if ( remap[i] >= 0 ) {
+							selected.add(lexicon.getName(i));
+						}
+					}
+					return remap;
+				}
+			};
+		classifier.setMaxFeatures(features);
+		classifier.setLexiconBudget(budget);
+		DocumentReader reader = new DocumentReader(encoding);
+		for ( int label = 0 ; label < categories.length ; label++ ) {
+			File [] files = categories[label].listFiles();
+			Arrays.sort(files);
+			for ( File f : files ) {
+				if ( f.isFile() && ! classifier.addTrainingText(reader.read(f).toString(), label) ) {
+					throw new IOException("cannot add training document " + f);
+				}
+			}
+		}
+		if ( ! classifier.train() ) {
+			throw new IOException("training failed");
+		}
+		classifier.clear();
+		return selected;
+	}
+
+	/**
+	 * 用法：LexiconBudgetCheck TRAIN_DIR BUDGET [FEATURES] [ENCODING]
+	 * FEATURES默认为5000，ENCODING默认为UTF-8。
+	 */
+	public static void main( String [] args ) {
+		if ( args.length < 2 ) {
+			System.err.println("Usage: LexiconBudgetCheck TRAIN_DIR BUDGET [FEATURES] [ENCODING]");
+			System.exit(1);
+		}
+		File [] categories = new File(args[0]).listFiles();
+		if ( categories == null ) {
+			System.err.println("cannot read " + args[0]);
+			System.exit(1);
+		}
+		Arrays.sort(categories);
+		int n = 0;
+		for ( File c : categories ) {
+			if ( c.isDirectory() ) {
+				categories[n++] = c;
+			}
+		}
+		categories = Arrays.copyOf(categories, n);
+		int budget = Integer.parseInt(args[1]);
+		int features = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+		String encoding = args.length > 3 ? args[3] : "UTF-8";
+		Set<String> exact, budgeted;
+		try {
+			exact = selectedWords(categories, 0, features, encoding);
+			budgeted = selectedWords(categories, budget, features, encoding);
+		} catch ( IOException e ) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		Set<String> lost = new TreeSet<String>(exact);
+		lost.removeAll(budgeted);
+		Set<String> gained = new TreeSet<String>(budgeted);
+		gained.removeAll(exact);
+		System.err.println(exact.size() + " features selected without budget, "
+				+ budgeted.size() + " with budget " + budget + ": "
+				+ lost.size() + " lost, " + gained.size() + " gained");
+		if ( ! lost.isEmpty() || ! gained.isEmpty() ) {
+			System.err.println("lost: " + lost);
+			System.err.println("gained: " + gained);
+			System.exit(1);
+		}
+	}
+}
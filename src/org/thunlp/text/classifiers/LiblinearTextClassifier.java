@@ -20,9 +20,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 import libsvm.svm;
 import libsvm.svm_model;
@@ -35,30 +37,47 @@ import de.bwaldvogel.*;
 
 import org.apache.commons.codec.binary.Base64;
 import org.thunlp.io.TextFileWriter;
-import org.thunlp.language.chinese.LangUtils;
+import org.thunlp.language.chinese.TextNormalizer;
+import org.thunlp.language.chinese.TokenBuffer;
 import org.thunlp.language.chinese.WordSegment;
+import org.thunlp.text.ChiSquareFeatureSelector;
 import org.thunlp.text.DocumentVector;
+import org.thunlp.text.FeatureHasher;
+import org.thunlp.text.FeatureStatistics;
 import org.thunlp.text.Lexicon;
+import org.thunlp.text.SparseVector;
 import org.thunlp.text.Term;
-import org.thunlp.text.TfIdfTermWeighter;
+import org.thunlp.text.TrainingCache;
 import org.thunlp.text.TfOnlyTermWeighter;
 import org.thunlp.text.Lexicon.Word;
 
 public abstract class LiblinearTextClassifier implements TextClassifier{
-	public  Lexicon lexicon; // 词典
+	public  Lexicon lexicon; // 词典，使用特征哈希时为null
+	private FeatureHasher hasher; // 不为null时用特征哈希代替词典
 	private DocumentVector trainingVectorBuilder; // 用来构造训练特征向量
-	private DocumentVector testVectorBuilder; // 用来构造待分类文本的特征向量
+	private volatile CompiledLinearClassifier compiled; // 训练或加载后生成的分类器快照，用于分类
 	private WordSegment seg;
+	private TokenBuffer tokens; // 分词和转换id时重复使用的缓冲区
+	private int [] ids;
+	private int [] tfs;
+	private SparseVector trainingVector = new SparseVector(); // 训练文档的特征向量，在addTrainingTokens之间重复使用
 	//private svm_model model; // 训练好的模型
 	private de.bwaldvogel.liblinear.Model lmodel;
 	private int maxFeatures = 5000; // 默认的最大特征数
 	private int nclasses; // 类别数
 	private int longestDoc; // 最长的文档向量长度，决定读取临时文件时缓冲大小
 	private int ndocs; //训练集的大小
+	private StreamingLinearTrainer streamingTrainer = null; // 不为null时在cache上流式训练，不使用liblinear
+	private int trainingThreads = 1; // liblinear同时训练的类别数
+	private int lexiconBudget = 0; // 训练时词典的最大词数，为0时不限制
+	private int bucketWidth = 0; // lossy counting每个桶的文档数，词典第一次超过预算时确定
+	private CacheTranslation pendingTranslation = new CacheTranslation(); // 紧缩词典时还没有写入训练集cache的词id对应表
+	private ExecutorService classifyExecutor = null; // classifyBatch使用的线程池，为null时在调用线程中分类
 
+	private FeatureStatistics featureStats; // 每个词在每个类别的文档频率，在addTrainingText时累加，用于特征选择
 	public ArrayList<Integer> labelIndex = new ArrayList<Integer>(); // 类别标签
 	public File tsCacheFile; // 训练集的cache文件，存放在磁盘上
-	public DataOutputStream tsCache = null; // 训练集的cache输出流
+	public TrainingCache tsCache = null; // 训练集的cache
 	
 	public int getLongestDoc() {
 		return longestDoc;
@@ -68,24 +87,106 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 		lexicon = new Lexicon();
 		trainingVectorBuilder =
 		  new DocumentVector(lexicon, new TfOnlyTermWeighter());
-		testVectorBuilder = null;
+		compiled = null;
 		//model = null;
 		lmodel = null;
 		this.nclasses = nclasses;
 		ndocs = 0;
+		featureStats = new FeatureStatistics(nclasses);
+		hasher = null;
 		this.seg = seg;
 	}
 	
+	/**
+	 * @return 词典；使用特征哈希时为null
+	 */
 	public Lexicon getLexicon() {
 		return lexicon;
 	}
 
+	/**
+	 * @return 训练和分类时使用的分词器
+	 */
+	public WordSegment getWordSegment() {
+		return seg;
+	}
+
+	/**
+	 * 使用特征哈希代替词典，必须在加入训练文档之前调用。词被哈希到2^bits个桶中，
+	 * 特征选择在桶上进行，见FeatureHasher。这时不保存词典，也不能保存二进制模型
+	 * @param bits 桶数的以2为底的对数，为0时使用词典
+	 */
+	public void setFeatureHashing(int bits) {
+		if ( ndocs > 0 ) {
+			throw new IllegalStateException("feature hashing must be set before training");
+		}
+		if ( bits > 0 ) {
+			hasher = new FeatureHasher(bits);
+			lexicon = null;
+			trainingVectorBuilder = null;
+		} else {
+			hasher = null;
+			lexicon = new Lexicon();
+			trainingVectorBuilder =
+			  new DocumentVector(lexicon, new TfOnlyTermWeighter());
+		}
+	}
+
+	/**
+	 * @return 特征哈希器；使用词典时为null
+	 */
+	public FeatureHasher getFeatureHasher() {
+		return hasher;
+	}
+
+	/**
+	 * 设置训练时词典的最大词数，必须在加入训练文档之前调用。这是一个软上限：词典
+	 * 超过这个大小之后用lossy counting去掉df低的词，见pruneLexicon，不能去掉的词
+	 * 保留，词典可以超过预算；为0时不限制。使用特征哈希时不起作用
+	 */
+	public void setLexiconBudget(int maxWords) {
+		this.lexiconBudget = maxWords;
+	}
+
+	/**
+	 * 返回训练或加载模型后生成的分类器快照。快照是不可变的，可以被多个线程同时用来
+	 * 分类；模型还没有训练或加载时返回null
+	 */
+	public CompiledLinearClassifier getCompiledClassifier() {
+		return compiled;
+	}
+
+	/**
+	 * 设置流式训练器。设置后train直接在磁盘上的训练集cache上训练，不把训练集读入内存，
+	 * 适合liblinear放不下的大规模语料；设为null时使用liblinear
+	 */
+	public void setStreamingTrainer(StreamingLinearTrainer trainer) {
+		this.streamingTrainer = trainer;
+	}
+
+	/**
+	 * 设置liblinear训练的线程数。大于1时各个类别的二类子问题同时训练，见ParallelLinearTrainer；
+	 * 这时得到的模型和逐个训练的不同，分类结果也可能不同
+	 */
+	public void setTrainingThreads(int threads) {
+		this.trainingThreads = threads;
+	}
+
+	/**
+	 * 设置classifyBatch使用的线程池，线程池由调用者负责关闭；设为null时在调用线程中分类
+	 */
+	public void setClassifyExecutor(ExecutorService executor) {
+		this.classifyExecutor = executor;
+	}
+
 	
 	public void clear () {
 		lexicon = null;
 		trainingVectorBuilder = null;
-		testVectorBuilder = null;
+		compiled = null;
 		lmodel = null;
+		featureStats = null;
+		hasher = null;
 		seg = null;
 		labelIndex = null;
 	}
@@ -117,55 +218,37 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 	 */
 	public Map<Integer, Integer> selectFeatureBySTS(File cacheFile,
 			int featureSize, int kept, int ndocs, int nclasses, int longestDoc) {
-		
+		FeatureStatistics stats = FeatureStatistics.readCache(cacheFile, nclasses);
+		if ( stats == null ) {
+			return null;
+		}
+		return selectFeatureBySTS(stats, featureSize, kept);
+	}
+
+	/**
+	 * 利用Scalable Term Selection方法进行特征选择，计数来自addTrainingText时累加的统计，
+	 * 不读取训练集cache
+	 * @param stats 训练集的统计
+	 * @param featureSize 数据集中特征的总数，特征应该是从0到featureSize编号
+	 * @param kept 需要保留的特征数
+	 * @return 选择前特征到选择后特征的id对应表
+	 */
+	public Map<Integer, Integer> selectFeatureBySTS(FeatureStatistics stats,
+			int featureSize, int kept) {
+		int ndocs = stats.getNumDocuments();
+		int nclasses = stats.getNumClasses();
+
 		// lamda初始值
 		double lamda = 0.5;
-		int[][] featureStats = new int[featureSize][nclasses];
-		int[] featureFreq = new int[featureSize];
 		double[] prValues = new double[featureSize];
 		PriorityQueue<Term> selectedFeatures;
-		int[] classSize = new int[nclasses];
 
-		// 统计chi-square需要的计数
-		int label = 0;
-		int nterms = 0;
+		// 去掉只在一篇文档中出现的词以后，训练集的总词数。df取自stats而不是词典，
+		// 使用特征哈希时没有词典
 		double sum = 0;
-		Term[] terms = new Term[longestDoc + 1];
-		for (int i = 0; i < terms.length; i++) {
-			terms[i] = new Term();
-		}
-		int ndocsread = 0;
-		try {
-			DataInputStream dis = new DataInputStream(new BufferedInputStream(
-					new FileInputStream(cacheFile)));
-			while (true) {
-				int ncut = 0;
-				try {
-					label = dis.readInt();
-					nterms = dis.readInt();
-					sum += nterms;
-					for (int i = 0; i < nterms; i++) {
-						terms[i].id = dis.readInt();
-						terms[i].weight = dis.readDouble();
-						if ( lexicon.getWord(terms[i].id).getDocumentFrequency()
-								== 1 ) 
-							ncut++;
-					}
-				} catch (EOFException e) {
-					break;
-				}
-				sum -= ncut;
-
-				classSize[label]++;
-				for (int i = 0; i < nterms; i++) {
-					Term t = terms[i];
-					featureStats[t.id][label]++;
-					featureFreq[t.id]++;
-				}				
-			}
-			dis.close();
-		} catch (IOException e) {
-			return null;
+		for (int i = 0; i < featureSize; i++) {
+			if ( stats.getDocumentFrequency(i) != 1 )
+				sum += stats.getDocumentFrequency(i);
 		}
 
 		System.err.println("start STS calculation");
@@ -184,9 +267,9 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 			double pr = -1;
 			double prmax = -1;
 			for (int j = 0; j < nclasses; j++) {
-				A = featureStats[i][j];
-				B = featureFreq[i] - A;
-				C = classSize[j];
+				A = stats.getDocumentFrequency(i, j);
+				B = stats.getDocumentFrequency(i) - A;
+				C = stats.getClassSize(j);
 				D = ndocs - C;
 
 				double fractorBase = (double) (B * C);
@@ -212,12 +295,13 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 		while (true) {
 			selectedFeatures.clear();
 			for (int i = 0; i < featureSize; i++) {
-				if ( lexicon.getWord(i).getDocumentFrequency() == 1 )
+				// 特征哈希中没有词落入的桶df为0，也不参加选择
+				if ( stats.getDocumentFrequency(i) <= 1 )
 					continue;
 				Term t = new Term();
 				t.id = i;
 				t.weight = 1.0 / (lamda / Math.log(prValues[i]) + (1 - lamda)
-						/ Math.log(featureFreq[i]));
+						/ Math.log(stats.getDocumentFrequency(i)));
 				selectedFeatures.add(t);
 				if (selectedFeatures.size() > kept) {
 					selectedFeatures.poll();
@@ -229,7 +313,7 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 				Term t = selectedFeatures.poll();
 				featuresToSort[n] = t;
 				n++;
-				AVL += featureFreq[t.id];
+				AVL += stats.getDocumentFrequency(t.id);
 			}
 			Arrays.sort(featuresToSort, new Term.TermIdComparator());
 			AVL /= ndocs;
@@ -297,131 +381,52 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 			int nclasses,
 			int longestDoc,
 			double [] chimaxValues ) {
-		
 		System.out.println("selectFeatureBySTS : " +
 				"featureSize = " + featureSize + 
 				"; kept = " + kept + 
 				"; ndocs = " + ndocs + 
 				"; nclasses = " + nclasses + 
 				"; longestDoc = " + longestDoc);
-		
-		int [][] featureStats = new int[featureSize][nclasses]; //某词在某类出现次数
-		int [] featureFreq = new int[featureSize];//某词词频
-		PriorityQueue<Term> selectedFeatures;
-		int [] classSize = new int[nclasses];//每类多少篇文章
-		
-		// 统计chi-square需要的计数
-		int label = 0;
-		int nterms = 0;
-		Term [] terms = new Term[longestDoc + 1];
-		for ( int i = 0 ; i < terms.length ; i++ ) {
-			terms[i] = new Term();
-		}
-		int ndocsread = 0;
-		try {
-			DataInputStream dis = new DataInputStream(new BufferedInputStream(
-					new FileInputStream(cacheFile)));
-			while ( true ) {
-				try {
-					label = dis.readInt();
-					nterms = dis.readInt();
-					//System.out.println("Reading doc "+ ndocsread + " :  label = " + label + ";  nterms = " + nterms);
-					for ( int i = 0 ; i < nterms ; i++ ) { 
-						terms[i].id = dis.readInt();
-						terms[i].weight = dis.readDouble();
-					}
-				} catch ( EOFException e ) {
-					break;
-				}
-				
-				classSize[label] ++;
-				for ( int i = 0 ; i < nterms ; i++ ) { 
-					Term t = terms[i];
-					featureStats[t.id][label] ++;
-					featureFreq[t.id] ++;
-				}
-				if ( ndocsread++ % 10000 == 0) {
-					System.err.println("scanned " + ndocsread);
-				}
-			}
-			dis.close();
-		} catch ( IOException e ) {
+
+		FeatureStatistics stats = FeatureStatistics.readCache(cacheFile, nclasses);
+		if ( stats == null ) {
 			return null;
 		}
-		
-		
+		return ChiSquareFeatureSelector.toMap(
+				selectFeatureIdsByChiSquare(stats, featureSize, kept, chimaxValues));
+	}
+
+	/**
+	 * 利用chi-square统计量来进行特征选择，计数来自addTrainingText时累加的统计，
+	 * 不读取训练集cache。各个特征的得分用trainingThreads个线程计算，见
+	 * ChiSquareFeatureSelector
+	 * @param stats 训练集的统计
+	 * @param featureSize 数据集中特征的总数，特征应该是从0到featureSize编号的
+	 * @param kept 要保留的特征数
+	 * @param chimaxValues 每个特征的chimax值，如果为null则不记录
+	 * @return 选择前特征到选择后特征的id对应表，没有选中的特征为-1，保证选择后特征的
+	 * 排序和选择前一样
+	 */
+	public int [] selectFeatureIdsByChiSquare(
+			FeatureStatistics stats,
+			int featureSize,
+			int kept,
+			double [] chimaxValues ) {
 		System.err.println("start chi-square calculation");
-		
-		// 计算chi^2_avg(t)，这里利用一个优先级队列来选择chi^2最高的特征
-		selectedFeatures = new PriorityQueue<Term>( kept + 1, 
-				new Comparator<Term>() {
-					public int compare(Term t0, Term t1) {
-						return Double.compare(t0.weight, t1.weight);
-					}			
-		});
-		
-		long A, B, C, D;
-		
-		for ( int i = 0 ; i < featureSize ; i++ ) {
-			Word w = lexicon.getWord(i);
-			if (w != null) {
-			  if ( w.getDocumentFrequency() == 1 || w.getName().length() > 50 )
-			    continue;
-			}
-			double chisqr = -1;
-			double chimax = -1;
-			for ( int j = 0 ; j < nclasses ; j++ ) {
-				A = featureStats[i][j];
-				B = featureFreq[i] - A;
-				C = classSize[j] - A;
-				D = ndocs - A - B - C;
-				
-				//System.out.println("A:"+A+" B:"+B+" C:"+C+" D:"+D);
-				double fractorBase = (double)( (A+C) * (B+D) * (A+B) * (C+D) );
-				if ( Double.compare(fractorBase, 0.0 ) == 0 ) {
-					chisqr = 0;
-				} else {
-					// 我们不用ndocs，因为所有特征的ndocs都一样
-					//chisqr = ndocs * ( A*D -B*C) * (A*D - B*C) / fractorBase  ;
-					chisqr = ( A*D -B*C) / fractorBase * (A*D - B*C)   ;
+		ChiSquareFeatureSelector selector = new ChiSquareFeatureSelector(stats, lexicon);
+		selector.setThreads(trainingThreads);
+		double [] scores = selector.score(featureSize);
+		if ( chimaxValues != null ) {
+			for ( int i = 0 ; i < featureSize ; i++ ) {
+				if ( ! Double.isNaN(scores[i]) ) {
+					chimaxValues[i] = scores[i];
 				}
-				if ( chisqr > chimax ) {
-					chimax = chisqr;
-				}
-
-//				被注释的方法是计算chi^2_avg即概率加权平均的卡方值。我们实际用的是chimax
-//				chisqr += (classSize[j] / (double) ndocs) * 
-//						ndocs * ( A*D -B*C) * (A*D - B*C) 
-//						/ (double)( (A+C) * (B+D) * (A+B) * (C+D) ) ;
-			}
-			if ( chimaxValues != null ) {
-				chimaxValues[i] = chimax;
-			}
-			Term t = new Term();
-			t.id = i;
-			t.weight = chimax;
-			selectedFeatures.add(t);
-			if ( selectedFeatures.size() > kept ) {
-				selectedFeatures.poll();
 			}
 		}
-		outputSecletedFeatures(selectedFeatures);
 		System.err.println("generating feature map");
-		
-		// 生成旧id和新选择的id的对应表
-		Map<Integer, Integer> fidmap = new Hashtable<Integer, Integer>(kept);
-		Term [] featuresToSort = new Term[selectedFeatures.size()];
-		int n = 0;
-		while ( selectedFeatures.size() > 0 ) {
-			Term t = selectedFeatures.poll();
-			featuresToSort[n] = t;
-			n++;
-		}
-		Arrays.sort(featuresToSort, new Term.TermIdComparator());
-		for ( int i = 0 ; i < featuresToSort.length ; i++ ) {
-			fidmap.put(featuresToSort[i].id, i);
-		}
-		return fidmap;
+		int [] remap = ChiSquareFeatureSelector.selectTop(scores, kept);
+		outputSecletedFeatures(remap, scores);
+		return remap;
 	}
 	
 	public void outputSecletedFeatures(PriorityQueue<Term> features){
@@ -443,6 +448,31 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 		System.out.println("end store features...=======================================");
 	}
 	
+	/**
+	 * 把选中的特征和它们的chimax按新的特征id的顺序写到selectedFeatures文件
+	 */
+	public void outputSecletedFeatures(int [] remap, double [] scores){
+		System.out.println("store features...=======================================");
+		try{
+			TextFileWriter tw = new TextFileWriter("selectedFeatures","UTF-8");
+			int n = 0;
+			for(int i=0; i<remap.length; i++){
+				if(remap[i] >= 0){
+					String name = lexicon != null ? lexicon.getName(i) : "#" + i;
+					tw.writeLine(name + " " + scores[i]);
+					n++;
+				}
+			}
+			System.out.println(n);
+			tw.flush();
+			tw.close();
+			
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+		System.out.println("end store features...=======================================");
+	}
+	
 	public void setMaxFeatures( int max ) {
 		maxFeatures = max;
 	}
@@ -452,6 +482,16 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 	}
 	
 
+	/**
+	 * 训练文本的预处理和分词，结果写入tokens（先清空）。只读取分词器，分词器能被并发
+	 * 调用时（PackedWordSegment和系统自带的分词器都可以），可以在多个线程中同时调用，
+	 * 再按文档顺序调用addTrainingTokens。
+	 */
+	public void segmentTrainingText(String text, TokenBuffer tokens) {
+		text = TextNormalizer.WHITESPACE.normalize(text);
+		tokens.segment(seg, text);
+	}
+
 	/**
 	 * 加入一篇训练文档。要求label是小于总类别数的整数，从0开始。
 	 * @param text 训练文本
@@ -459,6 +499,24 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 	 * @return 加入是否成功。不成功可能是由于不能在磁盘上创建临时文件
 	 */
 	public boolean addTrainingText(String text, int label) {
+		if ( label >= nclasses || label < 0 ) {
+			return false;
+		}
+		if ( tokens == null ) {
+			tokens = new TokenBuffer();
+		}
+		segmentTrainingText(text, tokens);
+		return addTrainingTokens(tokens, label);
+	}
+
+	/**
+	 * 加入一篇已经由segmentTrainingText分好词的训练文档，更新词典的统计并写入训练集
+	 * 的cache。要求label是小于总类别数的整数，从0开始。
+	 * @param tokens 分词结果
+	 * @param label 类别编号
+	 * @return 加入是否成功。不成功可能是由于不能在磁盘上创建临时文件
+	 */
+	public boolean addTrainingTokens(TokenBuffer tokens, int label) {
 		if ( label >= nclasses || label < 0 ) {
 			return false;
 		}
@@ -466,41 +524,98 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 			try {
 				//tsCacheFile = File.createTempFile("tctscache", "data");
 				tsCacheFile = new File(".", "tctscache" + Long.toString(System.currentTimeMillis()) + "data");
-				tsCache = new DataOutputStream(
-								new BufferedOutputStream(
-								new FileOutputStream(tsCacheFile)));
+				tsCache = TrainingCache.create(tsCacheFile);
 				longestDoc = 0;
+				pendingTranslation.clear();
+				bucketWidth = 0;
 			} catch (IOException e) {
 				return false;
 			}
 		}
-		text = LangUtils.removeEmptyLines(text);
-		text = LangUtils.removeExtraSpaces(text);
-		String [] bigrams = seg.segment(text);
-		lexicon.addDocument(bigrams);
-		Word [] words = lexicon.convertDocument(bigrams);
-		bigrams = null;
-		Term [] terms = trainingVectorBuilder.build( words, false );
-		try {
-			tsCache.writeInt(label);
-			tsCache.writeInt(terms.length);
-			if ( terms.length > longestDoc ) {
-				longestDoc = terms.length;
+		SparseVector v = trainingVector;
+		if ( hasher != null ) {
+			hashTrainingTokens(tokens, v);
+		} else {
+			lexicon.addDocument(tokens);
+			if ( ids == null || ids.length < tokens.size() ) {
+				ids = new int[Math.max(tokens.size(), 256)];
 			}
-			for ( int i = 0 ; i < terms.length ; i++ ) {
-				tsCache.writeInt(terms[i].id);
-				tsCache.writeDouble(terms[i].weight);
+			int n = lexicon.convertDocument(tokens, ids);
+			trainingVectorBuilder.build(ids, n, false, v);
+		}
+		try {
+			tsCache.add(label, v);
+			if ( v.size() > longestDoc ) {
+				longestDoc = v.size();
 			}
 		} catch (IOException e) {
 			return false;
 		}
+		featureStats.addDocument(label, v.getIds(), v.size());
 		if ( ! labelIndex.contains(label) ) {
 			labelIndex.add(label);
 		}
 		ndocs++;
+		if ( lexiconBudget > 0 && lexicon != null ) {
+			if ( bucketWidth == 0 && lexicon.getSize() > lexiconBudget ) {
+				bucketWidth = ndocs;
+			}
+			if ( bucketWidth > 0 && ndocs % bucketWidth == 0
+					&& lexicon.getSize() > lexiconBudget ) {
+				return pruneLexicon(ndocs / bucketWidth);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 用lossy counting（见Lexicon.pruneLossy）限制训练时的词典大小。文档按顺序分成
+	 * 宽度相同的桶，宽度是词典第一次超过预算时读入的文档数；每个桶结束时如果词典超过
+	 * 预算，去掉df + delta不超过当前桶号的词，先去掉只出现过一次的、最早加入的词，
+	 * 直到回到预算以内。df + delta超过桶号的词不去掉，这时词典会超过预算。被去掉的词
+	 * 以后再出现时从0重新计数，少计的次数不超过delta，df + delta是真实df的上界，
+	 * 特征选择用这个上界判断只出现过一次的词，见ChiSquareFeatureSelector。预算足够
+	 * 容纳df大于1的词时，被去掉的基本上都是以后不再出现的词，选出的特征和不设预算时
+	 * 相同，可以用LexiconBudgetCheck检查。featureStats同时换成新的词id。
+	 * 训练集的cache不在这里重写，对应表记录在pendingTranslation中，train时一次重写；
+	 * 积累的对应表达到CacheTranslation.MAX_SEGMENTS个时提前重写一次
+	 * @param bucket 刚结束的桶的编号，从1开始
+	 * @return 是否成功。不成功可能是由于不能重写cache文件
+	 */
+	private boolean pruneLexicon(int bucket) {
+		int before = lexicon.getSize();
+		int [] translation = lexicon.pruneLossy(bucket, lexiconBudget);
+		if ( translation == null ) {
+			return true;
+		}
+		pendingTranslation.add(tsCache.size(), translation);
+		if ( pendingTranslation.isFull() && ! applyPendingTranslation() ) {
+			return false;
+		}
+		lexicon = lexicon.map(translation);
+		featureStats = featureStats.map(translation);
+		trainingVectorBuilder =
+		  new DocumentVector(lexicon, new TfOnlyTermWeighter());
+		System.err.println("lexicon pruned at bucket " + bucket + ": " + before + " -> "
+				+ lexicon.getSize() + " words");
 		return true;
 	}
 
+	/**
+	 * 用特征哈希把训练文档转换成特征向量，结果写入v，特征值是按符号相加的计数
+	 */
+	private void hashTrainingTokens(TokenBuffer tokens, SparseVector v) {
+		if ( tfs == null || tfs.length < tokens.size() ) {
+			ids = new int[Math.max(tokens.size(), 256)];
+			tfs = new int[ids.length];
+		}
+		int n = hasher.count(tokens, ids, tfs);
+		v.clear();
+		for ( int i = 0 ; i < n ; i++ ) {
+			v.add(ids[i], tfs[i]);
+		}
+	}
+
 	/**
 	 * 分类一篇文档
 	 * @param text 待分类文档
@@ -508,86 +623,38 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 	 */
 
 	public ClassifyResult classify(String text) {
-		String [] bigrams = seg.segment(text);
-		Word [] words = lexicon.convertDocument(bigrams);
-		bigrams = null;
-		Term [] terms = testVectorBuilder.build( words, true);
-		
-		int m = terms.length;
-		//svm_node[] x = new svm_node[m];
-		FeatureNode[] lx = new FeatureNode[m];
-		for(int j = 0; j < m; j++)
-		{
-			lx[j] = new FeatureNode(terms[j].id + 1, terms[j].weight);
-		}
-		
-		ClassifyResult cr = new ClassifyResult(-1, -Double.MAX_VALUE);
-		//double [] probs = new double[svm.svm_get_nr_class(model)];
-		double[] probs = new double[this.lmodel.getNrClass()];
-		//svm.svm_predict_probability(model, x, probs);
-		//de.bwaldvogel.liblinear.Linear.predictValues(lmodel, lx, probs);
-		de.bwaldvogel.liblinear.Linear.predictProbability(lmodel, lx, probs);
-		for (int i = 0; i < probs.length; i++) {
-		  if (probs[i] > cr.prob) {
-		    cr.prob = probs[i];
-		    cr.label = i;
-		  }
-		}
-		return cr;
+		return compiled.classify(text);
 	}
 	
+	/**
+	 * 返回概率最大的topN个类别，按概率从大到小排列
+	 */
 	public ClassifyResult[] classify(String text, int topN){
-		
-		String [] bigrams = seg.segment(text);
-		Word [] words = lexicon.convertDocument(bigrams);
-		bigrams = null;
-		Term [] terms = testVectorBuilder.build(words, true);
-		
-		int m = terms.length;
-		//svm_node[] x = new svm_node[m];
-		FeatureNode[] lx = new FeatureNode[m];
-		for(int j = 0; j < m; j++)
-		{
-			lx[j] = new FeatureNode(terms[j].id + 1, terms[j].weight);
-		}
-		
-		//double [] probs = new double[svm.svm_get_nr_class(model)];
-		double[] probs = new double[this.lmodel.getNrClass()];
-		ArrayList<ClassifyResult> cr = new ArrayList<ClassifyResult>();
-		//svm.svm_predict_probability(model, x, probs);
-		//de.bwaldvogel.liblinear.Linear.predictValues(lmodel, lx, probs);
-		de.bwaldvogel.liblinear.Linear.predictProbability(lmodel, lx, probs);
-		for(int i=0; i<probs.length; i++){
-			cr.add(new ClassifyResult(i, probs[i]));
-		}
-		Comparator com = new Comparator() {
-			public int compare(Object obj1, Object obj2){
-				ClassifyResult o1 = (ClassifyResult)obj1;
-				ClassifyResult o2 = (ClassifyResult)obj2;
-				if(o1.prob > o2.prob + 1e-20) return -1;
-				else if(o1.prob < o2.prob - 1e-20) return 1;
-				else return 0;
-			}
-		};
-		
-		Collections.sort(cr,com);
-		
-		/*
-		double totalexp = 0.0;
-		for(int i=0; i<probs.length;i++){
-			totalexp += Math.exp(probs[i]);
-		}
-		for(int i=0; i<topN; i++){
-			results[i] = ""+ al.get(i).index +" "+ Math.exp(al.get(i).value)/totalexp;
-		}*/
-		java.text.DecimalFormat dcmFmt = new DecimalFormat("0.0000");
-		ClassifyResult result[] = new ClassifyResult[topN];
-		for(int i=0; i<topN; i++){
-			result[i] = new ClassifyResult(cr.get(i).label, cr.get(i).prob);
-		}
-		cr.clear();
-		//System.out.println(""+totalexp+results[0]);
-		return result;
+		return compiled.classify(text, topN);
+	}
+
+	/**
+	 * 分类一篇已经分好词的文档，和对原文调用classify(text)相同
+	 */
+	public ClassifyResult classify(TokenBuffer tokens) {
+		return compiled.classify(tokens);
+	}
+
+	public ClassifyResult[] classify(TokenBuffer tokens, int topN) {
+		return compiled.classify(tokens, topN);
+	}
+
+	/**
+	 * 分批分类。整批使用同一个分类器快照，各线程的缓冲区在CompiledLinearClassifier中
+	 */
+	public ClassifyResult[][] classifyBatch(List<? extends CharSequence> texts, int topN) {
+		final CompiledLinearClassifier c = compiled;
+		return BatchClassification.run(texts, topN, classifyExecutor, 
+				new BatchClassification.Task() {
+					public ClassifyResult[] classify(String text, int topN) {
+						return c.classify(text, topN);
+					}
+				});
 	}
 	
 	
@@ -609,21 +676,7 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 		double sd2 = 0.1165;
 		double sd3 = 0.0275;
 		
-		String [] bigrams = seg.segment(text);
-		Word [] words = lexicon.convertDocument(bigrams);
-		bigrams = null;
-		Term [] terms = testVectorBuilder.build( words, true);
-		
-		
-		int m = terms.length;
-		FeatureNode[] lx = new FeatureNode[m];
-		for(int j = 0; j < m; j++){
-			lx[j] = new FeatureNode(terms[j].id + 1, terms[j].weight);
-		}
-		
-		double[] probs = new double[this.lmodel.getNrClass()];
-		//de.bwaldvogel.liblinear.Linear.predictValues(lmodel, lx, probs);
-		de.bwaldvogel.liblinear.Linear.predictProbability(lmodel, lx, probs);
+		double[] probs = compiled.probabilities(text);
 		
 		ArrayList<ClassifyResult> al = new ArrayList<ClassifyResult>();
 		for(int i=0; i<probs.length; i++){
@@ -667,20 +720,35 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 	}
 	/**
 	 * 从磁盘上加载训练好的模型
-	 * @param filename 模型文件名(是一个目录)
+	 * @param filename 模型文件名(是一个目录，或者一个二进制模型文件)。目录中的二进制
+	 *   模型model.bin不比lexicon、model和hasher旧时读取它；比它们旧时说明文本模型
+	 *   后来被替换过，给出警告并读取文本模型
 	 * @return 加载是否成功
 	 */
 	
 	public boolean loadModel(String filename) {
 		File modelPath = new File(filename);
+		if ( modelPath.isFile() )
+			return loadBinaryModel(modelPath);
 		if ( ! modelPath.isDirectory() )
 			return false;
-		
+		File binaryFile = new File( modelPath, BinaryModel.FILE_NAME);
 		File lexiconFile = new File( modelPath, "lexicon");
 		File modelFile = new File( modelPath, "model");
+		File hasherFile = new File( modelPath, "hasher");
+		if ( binaryFile.isFile() ) {
+			if ( isUpToDate(binaryFile, lexiconFile, modelFile, hasherFile) )
+				return loadBinaryModel(binaryFile);
+			System.err.println(binaryFile + " is older than the text model, ignored");
+		}
+		
+		if ( hasherFile.isFile() )
+			return loadHashedModel(hasherFile, modelFile);
 		
 		System.out.println(lexiconFile.getAbsolutePath());
 		
+		// 载入到新的词典里，已经生成的快照可能还在被其他线程使用
+		Lexicon lexicon = new Lexicon();
 		try { 
 			if ( lexiconFile.exists() ) {
 				lexicon.loadFromFile(lexiconFile);
@@ -701,15 +769,69 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 			return false;
 		}
 		lexicon.setLock( true );
+		this.lexicon = lexicon;
+		this.hasher = null;
 		trainingVectorBuilder = null;
-		testVectorBuilder =
-		  new DocumentVector(lexicon, new TfIdfTermWeighter(lexicon));
+		compiled = new CompiledLinearClassifier(lexicon, lmodel, seg);
 		return true;
 	}
+
+	/**
+	 * 二进制模型是否不比存在的各个文本模型文件旧
+	 */
+	private static boolean isUpToDate(File binaryFile, File... sources) {
+		for ( File f : sources ) {
+			if ( f.exists() && f.lastModified() > binaryFile.lastModified() )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 加载使用特征哈希训练的模型，目录中是hasher和model，没有词典
+	 */
+	private boolean loadHashedModel(File hasherFile, File modelFile) {
+		FeatureHasher hasher = FeatureHasher.loadFromFile(hasherFile);
+		if ( hasher == null || ! modelFile.exists() )
+			return false;
+		try {
+			this.lmodel = de.bwaldvogel.liblinear.Linear.loadModel(modelFile);
+		} catch ( Exception e ) {
+			return false;
+		}
+		this.hasher = hasher;
+		this.lexicon = null;
+		trainingVectorBuilder = null;
+		compiled = new CompiledLinearClassifier(hasher, lmodel, seg);
+		return true;
+	}
+
+	/**
+	 * 加载BinaryModel格式的二进制模型，权重矩阵直接映射到内存，不需要解析
+	 */
+	private boolean loadBinaryModel(File file) {
+		CompiledLinearClassifier c;
+		try {
+			c = BinaryModel.read(file, seg);
+		} catch ( IOException e ) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+		this.lexicon = c.getLexicon();
+		this.hasher = null;
+		this.lmodel = null; // 需要保存时由compiled重新构造
+		trainingVectorBuilder = null;
+		compiled = c;
+		return true;
+	}
+
 	/**
 	 * 将训练好的模型保存到磁盘
-	 * @param filename 保存的文件名(实际是一个目录)
-	 * @return 保存是否成功
+	 * @param filename 保存的文件名(实际是一个目录)。除了文本格式的lexicon和model，
+	 *   还会写一份二进制模型model.bin，以后加载时直接使用。使用特征哈希时用hasher
+	 *   代替lexicon，不写二进制模型
+	 * @return 保存是否成功。目录中已经有另一种模型（使用特征哈希时的lexicon或
+	 *   model.bin，否则是hasher）时不覆盖也不删除，返回false
 	 */
 
 	public boolean  saveModel(String filename) {
@@ -720,58 +842,169 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 		
 		File lexiconFile = new File( modelPath, "lexicon");
 		File modelFile = new File( modelPath, "model");
+		File binaryFile = new File( modelPath, BinaryModel.FILE_NAME);
+		File hasherFile = new File( modelPath, "hasher");
 		
+		if ( hasher != null ) {
+			// 目录中原有的词典模型会被优先加载，不能和hasher放在一起
+			if ( lexiconFile.exists() || binaryFile.exists() ) {
+				System.err.println(modelPath + " already contains a lexicon model, not saved");
+				return false;
+			}
+			try {
+				de.bwaldvogel.liblinear.Linear.saveModel(modelFile,
+						lmodel != null ? lmodel : compiled.getModel());
+			} catch (IOException e ) {
+				return false;
+			}
+			return hasher.saveToFile(hasherFile);
+		}
+		if ( hasherFile.exists() ) {
+			System.err.println(modelPath + " already contains a hashed model, not saved");
+			return false;
+		}
 		try {
 			lexicon.saveToFile(lexiconFile);
 			//svm.svm_save_model(modelFile.getAbsolutePath(), model);
-			de.bwaldvogel.liblinear.Linear.saveModel(new File(modelFile.getAbsolutePath()), lmodel);
+			de.bwaldvogel.liblinear.Linear.saveModel(new File(modelFile.getAbsolutePath()),
+					lmodel != null ? lmodel : compiled.getModel());
+			BinaryModel.write(compiled, binaryFile);
 		} catch (IOException e ) {
 			return false;
 		}
 		return true;
 	}
+
+	/**
+	 * 只保存二进制模型
+	 * @param filename 二进制模型文件名
+	 * @return 保存是否成功
+	 */
+	public boolean saveBinaryModel(String filename) {
+		try {
+			BinaryModel.write(compiled, new File(filename));
+		} catch (IOException e ) {
+			return false;
+		}
+		return true;
+	}
+	/**
+	 * 按紧缩词典时记录的对应表重写训练集的cache
+	 * @return 是否成功。不成功可能是由于不能重写cache文件
+	 */
+	private boolean applyPendingTranslation() {
+		TrainingCache cache;
+		try {
+			cache = pendingTranslation.apply(tsCache);
+		} catch (IOException e) {
+			return false;
+		}
+		if ( cache != tsCache ) {
+			tsCache.delete();
+			tsCache = cache;
+			tsCacheFile = cache.getFile();
+			longestDoc = cache.getLongestDoc();
+		}
+		return true;
+	}
+
 	/**
 	 * 训练模型
 	 * @return 训练是否成功。不成功可能是由于不能正确地读写临时文件造成的
 	 */
 	public boolean train() {
+		if ( ! applyPendingTranslation() ) {
+			return false;
+		}
 		try {
 			tsCache.close();
 		} catch (IOException e) {
 			return false;
 		}
 		
-		Map<Integer, Integer> selectedFeatures = selectFeaturesByChiSquare(
-				tsCacheFile, lexicon.getSize(), maxFeatures);
+		int featureSize = hasher != null ? hasher.getSize() : lexicon.getSize();
+		int [] selectedFeatures = selectFeatureIdsByChiSquare(
+				featureStats, featureSize, maxFeatures, null);
 		
 		//以下注释的代码为用李景阳论文Scalable Term Selection方法选择特征，目前未经完全测试通过！！
 //		Map<Integer, Integer> selectedFeatures = selectFeatureBySTS(
-//				tsCacheFile, lexicon.getSize(), maxFeatures, ndocs, nclasses,
-//				longestDoc);
+//				featureStats, lexicon.getSize(), maxFeatures);
 		if ( selectedFeatures == null ) {
 			return false;
 		}
+		if ( hasher != null ) {
+			// 特征哈希的df来自featureStats，要在释放之前取出
+			hasher = hasher.map( selectedFeatures, featureStats );
+		}
+		featureStats = null;
 		System.err.println("feature selection complete");
+		if ( streamingTrainer != null ) {
+			de.bwaldvogel.liblinear.Model tempModel;
+			if ( hasher != null ) {
+				int [] df = new int[featureSize];
+				for ( int i = 0 ; i < featureSize ; i++ ) {
+					if ( selectedFeatures[i] >= 0 ) {
+						df[i] = hasher.getDocumentFrequency(selectedFeatures[i]);
+					}
+				}
+				tempModel = streamingTrainer.train(tsCache, df, selectedFeatures,
+						ndocs, nclasses);
+			} else {
+				tempModel = streamingTrainer.train(tsCache, lexicon, selectedFeatures,
+						ndocs, nclasses);
+			}
+			if ( tempModel == null ) {
+				return false;
+			}
+			System.err.println("streaming training complete");
+			mapLexicon( selectedFeatures );
+			tsCache.delete();
+			trainingVectorBuilder = null;
+			this.lmodel = tempModel;
+			compiled = compile(lmodel);
+			return true;
+		}
 		//svm_problem problem = createLibSVMProblem(tsCacheFile, selectedFeatures);
 		///////////////////add
-		de.bwaldvogel.liblinear.Problem lproblem = createLiblinearProblem(tsCacheFile, selectedFeatures);
+		de.bwaldvogel.liblinear.Problem lproblem = createLiblinearProblem(tsCache, selectedFeatures);
 		System.err.println("liblinear problem created");
 		
-		lexicon = lexicon.map( selectedFeatures );
-		lexicon.setLock( true );
-		tsCacheFile.delete();
+		mapLexicon( selectedFeatures );
+		tsCache.delete();
 		trainingVectorBuilder = null;
-		testVectorBuilder = new DocumentVector(lexicon, new TfIdfTermWeighter(lexicon));
 
 		de.bwaldvogel.liblinear.Parameter lparam = new Parameter(SolverType.L1R_LR, 500, 0.01);
 		//de.bwaldvogel.liblinear.Parameter lparam = new Parameter(solverType, C, eps)
 
-		de.bwaldvogel.liblinear.Model tempModel = de.bwaldvogel.liblinear.Linear.train(lproblem, lparam);
+		de.bwaldvogel.liblinear.Model tempModel;
+		if ( trainingThreads > 1 ) {
+			tempModel = new ParallelLinearTrainer(trainingThreads).train(lproblem, lparam);
+		} else {
+			tempModel = de.bwaldvogel.liblinear.Linear.train(lproblem, lparam);
+		}
 		System.err.println("TRAINING COMPLETE=========================================================================================");
 		this.lmodel = tempModel;
 		//this.model = (svm_model)tempModel;
+		compiled = compile(lmodel);
 		return true;
 	}
+
+	/**
+	 * 按特征选择的结果重新编号词典的特征，使用特征哈希时哈希器在特征选择后已经重新编号
+	 */
+	private void mapLexicon(int [] selectedFeatures) {
+		if ( hasher == null ) {
+			lexicon = lexicon.map( selectedFeatures );
+			lexicon.setLock( true );
+		}
+	}
+
+	private CompiledLinearClassifier compile(de.bwaldvogel.liblinear.Model m) {
+		if ( hasher != null ) {
+			return new CompiledLinearClassifier(hasher, m, seg);
+		}
+		return new CompiledLinearClassifier(lexicon, m, seg);
+	}
 	
 	private static class DataNode implements Comparable{
 		int label;
@@ -793,90 +1026,94 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 		}
 	}
 	
-	private de.bwaldvogel.liblinear.Problem createLiblinearProblem( File cacheFile, 
-			Map<Integer, Integer> selectedFeatures){
-		Vector<Double> vy = new Vector<Double>();
-		Vector<svm_node[]> vx = new Vector<svm_node[]>();
-		
-		//DataNode [] datanodes = new DataNode[this.ndocs];
-		LdataNode [] ldatanodes = new LdataNode[this.ndocs];
-		//FeatureNode[][] lfeatureNodes;
-		
-		int label, nterms;
-		Term [] terms = new Term[longestDoc + 1];
-		for ( int i = 0 ; i < terms.length ; i++ ) {
-			terms[i] = new Term();
+	/**
+	 * 训练特征的idf = log((ndocs + 1) / df)，以特征选择后的特征id为下标，在构造problem
+	 * 之前算好，每篇文档的每个词只查表。公式和分类时词典的idf（Lexicon.getIdf）不同，
+	 * 保持原来训练时的权重
+	 * @param selectedFeatures 原来的词id到新特征id的对应表，没有选中的为-1
+	 */
+	private double [] trainingIdf( int [] selectedFeatures ) {
+		int size = 0;
+		for ( int id : selectedFeatures ) {
+			size = Math.max(size, id + 1);
 		}
-		int ndocsread = 0;
-		//add------------------------
-		int maxIndex=0;
+		double [] idf = new double[size];
+		for ( int tid = 0 ; tid < selectedFeatures.length ; tid++ ) {
+			int id = selectedFeatures[tid];
+			if ( id >= 0 ) {
+				// 特征哈希的df在特征选择后按新的特征id保存
+				int df = hasher != null ? hasher.getDocumentFrequency(id)
+					: lexicon.getDocumentFrequency(tid);
+				idf[id] = Math.log( (double) ( ndocs + 1 ) / df );
+			}
+		}
+		return idf;
+	}
+	
+	/**
+	 * 根据特征选择的结果来生成一个用于训练的liblinear problem。trainingThreads大于1时
+	 * 多个线程同时读取cache的不同部分
+	 * @param cache 存放训练集的缓存
+	 * @param selectedFeatures 特征选择的结果，原来的词id到新特征id的对应表，没有选中的为-1
+	 * @return 构造好的problem
+	 */
+	private de.bwaldvogel.liblinear.Problem createLiblinearProblem( TrainingCache cache, 
+			final int [] selectedFeatures){
+		final LdataNode [] ldatanodes = new LdataNode[cache.size()];
+		
+		final double [] idf = trainingIdf(selectedFeatures);
 		try {
-			DataInputStream dis = new DataInputStream(new BufferedInputStream(
-					new FileInputStream(cacheFile)));
-			while ( true ) {
-				int n = 0;
-				try {
-					label = dis.readInt();
-					nterms = dis.readInt();
-					for ( int i = 0 ; i < nterms ; i++ ) { 
-						int tid = dis.readInt();
-						double tweight = dis.readDouble();
-						Integer id = selectedFeatures.get(tid);
-						if ( id != null ) {
-							terms[n].id = id;
-							//add
-							maxIndex=Math.max(maxIndex, id+1);
-							
-							Word w = lexicon.getWord(tid);
-							int df = w.getDocumentFrequency();
-							terms[n].weight = Math.log( tweight + 1 ) 
-								* ( Math.log( (double) ( ndocs + 1 ) / df ) );
+			cache.scan(trainingThreads, new TrainingCache.Handler() {
+				public void document( int index, TrainingCache.Document doc ) {
+					int [] ids = new int[doc.nterms];
+					double [] weights = new double[doc.nterms];
+					int n = 0;
+					for ( int i = 0 ; i < doc.nterms ; i++ ) { 
+						int tid = doc.ids[i];
+						int id = tid < selectedFeatures.length ? selectedFeatures[tid] : -1;
+						if ( id >= 0 ) {
+							ids[n] = id;
+							int tf = doc.tfs[i];
+							// 特征哈希的计数可以是负数
+							weights[n] = Math.log( Math.abs(tf) + 1 ) * idf[id];
+							if ( tf < 0 ) {
+								weights[n] = -weights[n];
+							}
 							n++;
-							//System.err.println("doc " + id + " " + w);
 						}
 					}
-				} catch ( EOFException e ) {
-					break;
-				}
-				
-				
-				//----------------------------
-				//lfeatureNodes = new FeatureNode[this.ndocs][n];
-				//-----------------------
-				
-				//System.out.println("===================================================n: "+n);
-				// 归一化向量
-				double normalizer = 0;
-				for ( int i = 0 ; i < n ; i++ ) { 
-					normalizer += terms[i].weight * terms[i].weight;
-				}
-				normalizer = Math.sqrt(normalizer);
-				for ( int i = 0 ; i < n ; i++ ) { 
-					terms[i].weight /= normalizer;
-				}
-				
-				//datanodes[ndocsread] = new DataNode();
-				
-				// 放入svm problem中
-				ldatanodes[ndocsread] = new LdataNode();
-				ldatanodes[ndocsread].llabel= label;
-
-				FeatureNode[] lx = new FeatureNode[n];
-				for ( int i = 0; i < n ; i++ ) {
-					lx[i] = new FeatureNode(terms[i].id + 1,terms[i].weight);
-				}
-				ldatanodes[ndocsread].lnodes = lx;
-				
-				if ( ndocsread++ % 10000 == 0) {
-					System.err.println("scanned " + ndocsread);
+					
+					// 归一化向量
+					double normalizer = 0;
+					for ( int i = 0 ; i < n ; i++ ) { 
+						normalizer += weights[i] * weights[i];
+					}
+					normalizer = Math.sqrt(normalizer);
+					
+					// 放入liblinear problem中
+					LdataNode node = new LdataNode();
+					node.llabel = doc.label;
+					FeatureNode[] lx = new FeatureNode[n];
+					for ( int i = 0; i < n ; i++ ) {
+						lx[i] = new FeatureNode(ids[i] + 1, weights[i] / normalizer);
+					}
+					node.lnodes = lx;
+					ldatanodes[index] = node;
 				}
-			}
-			dis.close();
+			});
 		} catch ( IOException e ) {
 			return null;
 		}
+		System.err.println("scanned " + ldatanodes.length + " documents ("
+				+ cache.getByteSize() + " bytes)");
 		
-		assert( this.ndocs == ndocsread );
+		// 特征id和原来的词id顺序相同，每篇文档的最后一个特征id最大
+		int maxIndex=0;
+		for ( LdataNode node : ldatanodes ) {
+			if ( node.lnodes.length > 0 ) {
+				maxIndex = Math.max(maxIndex, node.lnodes[node.lnodes.length - 1].index);
+			}
+		}
 		
 		Arrays.sort( ldatanodes );
 		
@@ -919,9 +1156,10 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 	  ByteArrayOutputStream baos = new ByteArrayOutputStream();
 	  try {
 	    ObjectOutputStream oos = new ObjectOutputStream(baos);
-	    oos.writeObject(this.lexicon);
+	    // 使用特征哈希时以哈希器代替词典
+	    oos.writeObject(this.hasher != null ? this.hasher : this.lexicon);
 	    //oos.writeObject(this.model);
-	    oos.writeObject(this.lmodel);
+	    oos.writeObject(this.lmodel != null ? this.lmodel : compiled.getModel());
 	    oos.close();
 	  } catch (IOException e) {
 	    e.printStackTrace();
@@ -937,7 +1175,14 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
 	  ObjectInputStream ois;
     try {
       ois = new ObjectInputStream(bais);
-      this.lexicon = (Lexicon) ois.readObject();
+      Object features = ois.readObject();
+      if ( features instanceof FeatureHasher ) {
+        this.hasher = (FeatureHasher) features;
+        this.lexicon = null;
+      } else {
+        this.hasher = null;
+        this.lexicon = (Lexicon) features;
+      }
       //this.model = (svm_model) ois.readObject();
       this.lmodel = (de.bwaldvogel.liblinear.Model) ois.readObject();
       ois.close();
@@ -948,7 +1193,6 @@ public abstract class LiblinearTextClassifier implements TextClassifier{
       // TODO Auto-generated catch block
       e.printStackTrace();
     }
-    testVectorBuilder = 
-      new DocumentVector(lexicon, new TfIdfTermWeighter(lexicon));
+    compiled = compile(lmodel);
 	}
 }
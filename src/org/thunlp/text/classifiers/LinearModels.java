@@ -0,0 +1,58 @@
+package org.thunlp.text.classifiers;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * liblinear 1.8的Model没有公开solverType，也不能直接由权重构造，这里通过它的文本
+ * 格式来做这两件事。
+ */
+public class LinearModels {
+	/**
+	 * 从Model.toString()中取出solverType，它在字符串的最后
+	 */
+	public static SolverType getSolverType( Model model ) {
+		String s = model.toString();
+		String key = "solverType=";
+		int pos = s.lastIndexOf(key);
+		if ( pos < 0 ) {
+			throw new IllegalArgumentException("unknown model: " + s);
+		}
+		return SolverType.valueOf(s.substring(pos + key.length()).trim());
+	}
+
+	/**
+	 * 由权重矩阵构造模型，w的布局和Model.getFeatureWeights()相同
+	 */
+	public static Model create( SolverType solverType, int [] labels,
+			int nrFeature, double bias, double [] w ) {
+		int nrClass = labels.length;
+		int nrW = (nrClass == 2 && solverType != SolverType.MCSVM_CS) ? 1 : nrClass;
+		StringBuilder sb = new StringBuilder(32 + w.length * 20);
+		sb.append("solver_type ").append(solverType.name()).append('\n');
+		sb.append("nr_class ").append(nrClass).append('\n');
+		sb.append("label");
+		for ( int label : labels ) {
+			sb.append(' ').append(label);
+		}
+		sb.append('\n');
+		sb.append("nr_feature ").append(nrFeature).append('\n');
+		sb.append("bias ").append(bias).append('\n');
+		sb.append("w\n");
+		// Double.toString能精确还原，重新构造的模型和原来的权重逐位相同
+		for ( int i = 0 ; i < w.length ; i += nrW ) {
+			for ( int j = 0 ; j < nrW ; j++ ) {
+				sb.append(w[i + j]).append(' ');
+			}
+			sb.append('\n');
+		}
+		try {
+			return Model.load(new StringReader(sb.toString()));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package org.thunlp.text.classifiers;
+
+import java.nio.DoubleBuffer;
+
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * 直接用liblinear模型的权重矩阵计算类别得分，不构造FeatureNode，也不调用
+ * Linear.predictProbability。
+ *
+ * 权重按[特征][类别]平铺，和liblinear内部的布局相同：特征index（从1开始）在类别i上
+ * 的权重是w[(index - 1) * nrW + i]。两类的logistic regression模型只有一列权重
+ * （nrW = 1）。累加顺序和logistic变换都和liblinear一样，所以得到的概率和
+ * Linear.predictProbability逐位相同。
+ *
+ * 权重放在DoubleBuffer里，可以是包装的数组，也可以是BinaryModel映射到内存的文件，
+ * 后者在同一台机器的多个JVM之间共享物理内存。
+ *
+ * 构造之后不再修改，可以被多个线程同时使用。
+ */
+public class LinearScorer {
+	private final DoubleBuffer w;
+	private final SolverType solverType;
+	private final int [] labels;
+	private final int nrFeature;
+	private final double bias;
+	private final int nrW;
+	private final int nrClass;
+	/**
+	 * 参与计算的最大特征index，更大的特征被忽略
+	 */
+	private final int maxIndex;
+	private final boolean probabilityModel;
+
+	public LinearScorer( Model model ) {
+		this(LinearModels.getSolverType(model), model.getLabels(),
+				model.getNrFeature(), model.getBias(),
+				DoubleBuffer.wrap(model.getFeatureWeights()));
+	}
+
+	/**
+	 * @param w 权重矩阵，从position开始的内容，布局和Model.getFeatureWeights()相同
+	 */
+	public LinearScorer( SolverType solverType, int [] labels, int nrFeature, 
+			double bias, DoubleBuffer w ) {
+		this.solverType = solverType;
+		this.labels = labels.clone();
+		this.nrFeature = nrFeature;
+		this.bias = bias;
+		this.w = w.slice();
+		nrClass = labels.length;
+		// 只有logistic regression能输出概率，这时两类模型只有一列权重
+		nrW = nrClass == 2 ? 1 : nrClass;
+		maxIndex = bias >= 0 ? nrFeature + 1 : nrFeature;
+		probabilityModel = solverType == SolverType.L2R_LR 
+			|| solverType == SolverType.L2R_LR_DUAL
+			|| solverType == SolverType.L1R_LR;
+		int nrWeights = (bias >= 0 ? nrFeature + 1 : nrFeature) * 
+			(nrClass == 2 && solverType != SolverType.MCSVM_CS ? 1 : nrClass);
+		if ( this.w.remaining() < nrWeights ) {
+			throw new IllegalArgumentException("expect " + nrWeights + 
+					" weights, got " + this.w.remaining());
+		}
+	}
+
+	public int getNrClass() {
+		return nrClass;
+	}
+
+	public int getNrFeature() {
+		return nrFeature;
+	}
+
+	public double getBias() {
+		return bias;
+	}
+
+	public SolverType getSolverType() {
+		return solverType;
+	}
+
+	public int [] getLabels() {
+		return labels.clone();
+	}
+
+	/**
+	 * 权重矩阵的只读视图
+	 */
+	public DoubleBuffer getWeights() {
+		return w.asReadOnlyBuffer();
+	}
+
+	/**
+	 * 用这些权重重新构造一个liblinear模型
+	 */
+	public Model toModel() {
+		double [] weights = new double[w.remaining()];
+		w.duplicate().get(weights);
+		return LinearModels.create(solverType, labels, nrFeature, bias, weights);
+	}
+
+	/**
+	 * 计算每个类别的概率
+	 * @param ids 特征的词典id（特征index减1），按升序排列
+	 * @param values 特征值
+	 * @param n 特征个数
+	 * @param probs 输出，长度至少为类别数
+	 */
+	public void probabilities( int [] ids, double [] values, int n, double [] probs ) {
+		if ( ! probabilityModel ) {
+			throw new IllegalArgumentException(
+					"probability output is only supported for logistic regression");
+		}
+		if ( nrW == 1 ) {
+			// 两类模型只有一列权重，得分放在局部变量里累加
+			double s = 0;
+			for ( int k = 0 ; k < n ; k++ ) {
+				int id = ids[k];
+				if ( id < maxIndex ) {
+					s += w.get(id) * values[k];
+				}
+			}
+			probs[0] = s;
+		} else {
+			for ( int i = 0 ; i < nrW ; i++ ) {
+				probs[i] = 0;
+			}
+			for ( int k = 0 ; k < n ; k++ ) {
+				int id = ids[k];
+				if ( id >= maxIndex ) {
+					continue;
+				}
+				double v = values[k];
+				int base = id * nrW;
+				for ( int i = 0 ; i < nrW ; i++ ) {
+					probs[i] += w.get(base + i) * v;
+				}
+			}
+		}
+		for ( int i = 0 ; i < nrW ; i++ ) {
+			probs[i] = 1 / (1 + Math.exp(-probs[i]));
+		}
+		if ( nrClass == 2 ) {
+			probs[1] = 1. - probs[0];
+		} else {
+			double sum = 0;
+			for ( int i = 0 ; i < nrClass ; i++ ) {
+				sum += probs[i];
+			}
+			for ( int i = 0 ; i < nrClass ; i++ ) {
+				probs[i] = probs[i] / sum;
+			}
+		}
+	}
+
+	/**
+	 * 概率最大的类别，概率相同时取编号小的
+	 */
+	public static ClassifyResult best( double [] probs, int nclasses ) {
+		ClassifyResult cr = new ClassifyResult(-1, -Double.MAX_VALUE);
+		for ( int i = 0 ; i < nclasses ; i++ ) {
+			if ( probs[i] > cr.prob ) {
+				cr.prob = probs[i];
+				cr.label = i;
+			}
+		}
+		return cr;
+	}
+
+	/**
+	 * 选出概率最大的topN个类别，按概率从大到小排列。只维护一个长度为topN的有序数组，
+	 * 按类别编号依次插入，概率相差不到1e-20的类别保持编号顺序，和用同样的比较器
+	 * 做稳定排序后取前topN个的结果相同。
+	 */
+	public static ClassifyResult [] top( double [] probs, int nclasses, int topN ) {
+		int k = Math.max(0, Math.min(topN, nclasses));
+		int [] labels = new int[k];
+		int size = 0;
+		for ( int c = 0 ; c < nclasses ; c++ ) {
+			double p = probs[c];
+			// 插在第一个明显比它小的类别前面
+			int pos = size;
+			while ( pos > 0 && p > probs[labels[pos - 1]] + 1e-20 ) {
+				pos--;
+			}
+			if ( pos >= k ) {
+				continue;
+			}
+			int last = size < k ? size : k - 1;
+			for ( int j = last ; j > pos ; j-- ) {
+				labels[j] = labels[j - 1];
+			}
+			labels[pos] = c;
+			if ( size < k ) {
+				size++;
+			}
+		}
+		ClassifyResult [] result = new ClassifyResult[size];
+		for ( int i = 0 ; i < size ; i++ ) {
+			result[i] = new ClassifyResult(labels[i], probs[labels[i]]);
+		}
+		return result;
+	}
+}
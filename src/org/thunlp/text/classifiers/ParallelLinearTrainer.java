@@ -0,0 +1,284 @@
+package org.thunlp.text.classifiers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * 多线程训练liblinear模型。
+ *
+ * 多类问题（MCSVM_CS以外的solver）在liblinear中就是每个类别各自训练一个二类问题
+ * （one-vs-rest），Linear.train逐个训练。这里按Linear.train的方式划分出同样的二类问题，
+ * 用线程池同时求解，再拼成格式完全相同的模型。二类问题和MCSVM_CS只有一个子问题，
+ * 直接调用Linear.train。
+ *
+ * liblinear 1.8的求解器共用一个静态的Random，多个线程同时使用时结果和线程的调度
+ * 有关。这里在训练期间把Linear.random换成ThreadRandom，给每个线程换上自己的Random，
+ * 每个类别开始训练前用liblinear的默认种子重置，所以结果和线程数无关，每次运行都
+ * 相同。训练结束后换回原来的Random，其他线程在训练期间也仍然使用原来的Random。
+ *
+ * 得到的模型和Linear.train的不同。Linear.train逐个训练时，第k个类别接着使用前面的
+ * 类别用剩的随机序列，要训练完前面的类别才知道从哪里开始，所以这里除了第一个类别
+ * 以外，各个类别的随机序列都和逐个训练时不同，权重和分类结果都可能不同。只有第一个
+ * 类别的权重和Linear.train（在resetRandom之后）逐位相同。
+ *
+ * 各个子问题共用训练集的FeatureNode，但L1正则化的solver会各自转置一份训练集，内存
+ * 占用随线程数增加。
+ */
+public class ParallelLinearTrainer {
+	private final int threads;
+
+	/**
+	 * liblinear的默认随机种子，见Linear.resetRandom
+	 */
+	private static final long RANDOM_SEED = 0L;
+
+	private static Method trainOne = null;
+	private static Field randomField = null;
+	/**
+	 * 正在使用的ThreadRandom，以及使用它的train的个数
+	 */
+	private static ThreadRandom installed = null;
+	private static int active = 0;
+
+	/**
+	 * 每个线程可以设置自己的Random，没有设置的线程使用原来的共享Random
+	 */
+	private static class ThreadRandom extends Random {
+		private static final long serialVersionUID = 1L;
+		private final Random shared;
+		private final ThreadLocal<Random> local = new ThreadLocal<Random>();
+
+		ThreadRandom( Random shared ) {
+			this.shared = shared;
+		}
+
+		private Random current() {
+			Random r = local.get();
+			return r != null ? r : shared;
+		}
+
+		public void setSeed( long seed ) {
+			// 父类的构造函数会调用setSeed，这时shared还没有赋值
+			if ( shared == null ) {
+				super.setSeed(seed);
+			} else {
+				current().setSeed(seed);
+			}
+		}
+
+		public int nextInt() { return current().nextInt(); }
+		public int nextInt( int n ) { return current().nextInt(n); }
+		public long nextLong() { return current().nextLong(); }
+		public boolean nextBoolean() { return current().nextBoolean(); }
+		public float nextFloat() { return current().nextFloat(); }
+		public double nextDouble() { return current().nextDouble(); }
+		public double nextGaussian() { return current().nextGaussian(); }
+		public void nextBytes( byte [] bytes ) { current().nextBytes(bytes); }
+	}
+
+	/**
+	 * 取得Linear.train_one和Linear.random
+	 * @return 是否成功，失败时只能调用Linear.train
+	 */
+	private static synchronized boolean prepare() {
+		if ( trainOne != null ) {
+			return true;
+		}
+		try {
+			Method m = Linear.class.getDeclaredMethod("train_one", Problem.class,
+					Parameter.class, double[].class, double.class, double.class);
+			m.setAccessible(true);
+			Field f = Linear.class.getDeclaredField("random");
+			f.setAccessible(true);
+			randomField = f;
+			trainOne = m;
+			return true;
+		} catch ( Exception e ) {
+			System.err.println("parallel liblinear training is not available: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * 把Linear.random换成包装了原来的Random的ThreadRandom，没有设置自己Random的线程
+	 * 仍然使用原来的Random。已经换好时直接使用，训练期间被Linear.resetRandom换掉时
+	 * 重新包装。每次调用之后都要调用restoreThreadRandom
+	 * @return 本次训练使用的ThreadRandom
+	 */
+	private static synchronized ThreadRandom installThreadRandom() 
+			throws IllegalAccessException {
+		Object current = randomField.get(null);
+		if ( installed == null || current != installed ) {
+			installed = new ThreadRandom((Random) current);
+			randomField.set(null, installed);
+		}
+		active++;
+		return installed;
+	}
+
+	/**
+	 * 最后一个train结束时把Linear.random换回原来的Random
+	 */
+	private static synchronized void restoreThreadRandom() {
+		if ( --active > 0 ) {
+			return;
+		}
+		try {
+			if ( randomField.get(null) == installed ) {
+				randomField.set(null, installed.shared);
+			}
+		} catch ( IllegalAccessException e ) {
+			System.err.println("cannot restore liblinear's random: " + e);
+		}
+		installed = null;
+	}
+
+	/**
+	 * @param threads 同时训练的类别数
+	 */
+	public ParallelLinearTrainer( int threads ) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * 训练模型，参数和Linear.train相同
+	 */
+	public Model train( final Problem prob, final Parameter param ) {
+		if ( param.getSolverType() == SolverType.MCSVM_CS || ! prepare() ) {
+			return Linear.train(prob, param);
+		}
+		// 按类别第一次出现的顺序分组，和Linear.groupClasses相同
+		int l = prob.l;
+		List<Integer> labelList = new ArrayList<Integer>();
+		List<Integer> countList = new ArrayList<Integer>();
+		int [] dataLabel = new int[l];
+		for ( int i = 0 ; i < l ; i++ ) {
+			int k = labelList.indexOf(prob.y[i]);
+			if ( k < 0 ) {
+				k = labelList.size();
+				labelList.add(prob.y[i]);
+				countList.add(0);
+			}
+			countList.set(k, countList.get(k) + 1);
+			dataLabel[i] = k;
+		}
+		final int nrClass = labelList.size();
+		if ( nrClass <= 2 ) {
+			return Linear.train(prob, param);
+		}
+		int [] labels = new int[nrClass];
+		final int [] start = new int[nrClass];
+		final int [] count = new int[nrClass];
+		for ( int k = 0 ; k < nrClass ; k++ ) {
+			labels[k] = labelList.get(k);
+			count[k] = countList.get(k);
+			start[k] = k == 0 ? 0 : start[k - 1] + count[k - 1];
+		}
+		final FeatureNode [][] x = new FeatureNode[l][];
+		int [] next = start.clone();
+		for ( int i = 0 ; i < l ; i++ ) {
+			x[next[dataLabel[i]]++] = prob.x[i];
+		}
+
+		final double [] weightedC = new double[nrClass];
+		for ( int k = 0 ; k < nrClass ; k++ ) {
+			weightedC[k] = param.getC();
+		}
+		for ( int i = 0 ; i < param.getNumWeights() ; i++ ) {
+			int k = labelList.indexOf(param.getWeightLabels()[i]);
+			if ( k < 0 ) {
+				throw new IllegalArgumentException("class label "
+						+ param.getWeightLabels()[i] + " specified in weight is not found");
+			}
+			weightedC[k] *= param.getWeights()[i];
+		}
+
+		final ThreadRandom threadRandom;
+		try {
+			threadRandom = installThreadRandom();
+		} catch ( IllegalAccessException e ) {
+			System.err.println("parallel liblinear training is not available: " + e);
+			return Linear.train(prob, param);
+		}
+		try {
+			return train(prob, param, labels, x, start, count, weightedC, threadRandom);
+		} finally {
+			restoreThreadRandom();
+		}
+	}
+
+	private Model train( final Problem prob, final Parameter param, int [] labels,
+			final FeatureNode [][] x, final int [] start, final int [] count,
+			final double [] weightedC, final ThreadRandom threadRandom ) {
+		final int nrClass = labels.length;
+		final int n = prob.n;
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(threads, nrClass), new ThreadFactory() {
+					public Thread newThread( Runnable r ) {
+						Thread t = new Thread(r, "liblinear-train");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		List<Future<double []>> results = new ArrayList<Future<double []>>();
+		for ( int k = 0 ; k < nrClass ; k++ ) {
+			final int c = k;
+			results.add(executor.submit(new Callable<double []>() {
+				public double [] call() throws Exception {
+					Problem sub = new Problem();
+					sub.l = x.length;
+					sub.n = n;
+					sub.bias = prob.bias;
+					sub.x = x;
+					sub.y = new int[x.length];
+					for ( int i = 0 ; i < sub.l ; i++ ) {
+						sub.y[i] = i >= start[c] && i < start[c] + count[c] ? 1 : -1;
+					}
+					double [] w = new double[n];
+					threadRandom.local.set(new Random(RANDOM_SEED));
+					try {
+						trainOne.invoke(null, sub, param, w, weightedC[c], param.getC());
+					} finally {
+						threadRandom.local.remove();
+					}
+					return w;
+				}
+			}));
+		}
+
+		double [] w = new double[n * nrClass];
+		try {
+			for ( int k = 0 ; k < nrClass ; k++ ) {
+				double [] wk = results.get(k).get();
+				for ( int j = 0 ; j < n ; j++ ) {
+					w[j * nrClass + k] = wk[j];
+				}
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("liblinear training interrupted", e);
+		} catch ( ExecutionException e ) {
+			throw new RuntimeException("liblinear training failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		int nrFeature = prob.bias >= 0 ? n - 1 : n;
+		return LinearModels.create(param.getSolverType(), labels, nrFeature, prob.bias, w);
+	}
+}
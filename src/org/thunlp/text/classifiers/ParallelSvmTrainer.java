@@ -0,0 +1,314 @@
+package org.thunlp.text.classifiers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+import libsvm.svm_problem;
+
+/**
+ * 多线程训练libsvm模型。
+ *
+ * libsvm的多类分类是one-vs-one，k个类别有k(k-1)/2个两两之间的二类子问题，
+ * svm.svm_train逐个求解，开启probability时每个子问题还要先做一次5折交叉验证来拟合
+ * sigmoid的参数probA、probB。这些子问题互不相关，这里按svm_train的方式划分出同样的
+ * 子问题，连同各自的交叉验证一起交给线程池，再按svm_train的方式拼成svm_model，
+ * 支持向量、系数和rho与svm_train的结果逐位相同。
+ *
+ * probA、probB在svm_train中也是用Math.random打乱交叉验证的顺序得到的，每次运行都
+ * 不同，多线程训练时同样如此。
+ *
+ * 每个同时训练的子问题各有一个cache_size大小的核函数缓存，内存占用随线程数增加。
+ * libsvm 2.89的这些函数和svm_model的字段都不是公开的，通过反射访问；不是C_SVC、NU_SVC
+ * 或者反射失败时直接调用svm.svm_train。
+ */
+public class ParallelSvmTrainer {
+	private final int threads;
+
+	private static Method groupClasses = null;
+	private static Method trainOne = null;
+	private static Method binaryProbability = null;
+	private static Field alphaField;
+	private static Field rhoField;
+	private static Field[] modelFields;
+
+	private static final String [] MODEL_FIELDS = { "param", "nr_class", "l",
+		"SV", "sv_coef", "rho", "probA", "probB", "label", "nSV" };
+
+	/**
+	 * 一个二类子问题的结果
+	 */
+	private static class Pair {
+		double [] alpha;
+		double rho;
+		double probA;
+		double probB;
+	}
+
+	/**
+	 * 取得libsvm内部的训练函数和svm_model的字段
+	 * @return 是否成功，失败时只能调用svm.svm_train
+	 */
+	private static synchronized boolean prepare() {
+		if ( groupClasses != null ) {
+			return true;
+		}
+		try {
+			Method group = svm.class.getDeclaredMethod("svm_group_classes",
+					svm_problem.class, int[].class, int[][].class, int[][].class,
+					int[][].class, int[].class);
+			Method one = svm.class.getDeclaredMethod("svm_train_one",
+					svm_problem.class, svm_parameter.class, double.class, double.class);
+			Method prob = svm.class.getDeclaredMethod("svm_binary_svc_probability",
+					svm_problem.class, svm_parameter.class, double.class, double.class,
+					double[].class);
+			Class<?> decision = one.getReturnType();
+			Field alpha = decision.getDeclaredField("alpha");
+			Field rho = decision.getDeclaredField("rho");
+			Field [] fields = new Field[MODEL_FIELDS.length];
+			for ( int i = 0 ; i < fields.length ; i++ ) {
+				fields[i] = svm_model.class.getDeclaredField(MODEL_FIELDS[i]);
+				fields[i].setAccessible(true);
+			}
+			one.setAccessible(true);
+			prob.setAccessible(true);
+			alpha.setAccessible(true);
+			rho.setAccessible(true);
+			group.setAccessible(true);
+			trainOne = one;
+			binaryProbability = prob;
+			alphaField = alpha;
+			rhoField = rho;
+			modelFields = fields;
+			groupClasses = group;
+			return true;
+		} catch ( Exception e ) {
+			System.err.println("parallel libsvm training is not available: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * @param threads 同时训练的子问题数
+	 */
+	public ParallelSvmTrainer( int threads ) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * 训练模型，参数和svm.svm_train相同
+	 */
+	public svm_model train( svm_problem prob, final svm_parameter param ) {
+		if ( ( param.svm_type != svm_parameter.C_SVC
+				&& param.svm_type != svm_parameter.NU_SVC ) || ! prepare() ) {
+			return svm.svm_train(prob, param);
+		}
+
+		int l = prob.l;
+		int [] tmpNrClass = new int[1];
+		int [][] tmpLabel = new int[1][];
+		int [][] tmpStart = new int[1][];
+		int [][] tmpCount = new int[1][];
+		int [] perm = new int[l];
+		try {
+			groupClasses.invoke(null, prob, tmpNrClass, tmpLabel, tmpStart, tmpCount, perm);
+		} catch ( Exception e ) {
+			throw new RuntimeException("libsvm training failed", e);
+		}
+		final int nrClass = tmpNrClass[0];
+		int [] label = tmpLabel[0];
+		final int [] start = tmpStart[0];
+		final int [] count = tmpCount[0];
+		if ( nrClass <= 2 ) {
+			return svm.svm_train(prob, param);
+		}
+		final svm_node [][] x = new svm_node[l][];
+		for ( int i = 0 ; i < l ; i++ ) {
+			x[i] = prob.x[perm[i]];
+		}
+
+		final double [] weightedC = new double[nrClass];
+		for ( int i = 0 ; i < nrClass ; i++ ) {
+			weightedC[i] = param.C;
+		}
+		for ( int i = 0 ; i < param.nr_weight ; i++ ) {
+			int j;
+			for ( j = 0 ; j < nrClass ; j++ ) {
+				if ( param.weight_label[i] == label[j] ) break;
+			}
+			if ( j == nrClass ) {
+				System.err.print("warning: class label " + param.weight_label[i]
+						+ " specified in weight is not found\n");
+			} else {
+				weightedC[j] *= param.weight[i];
+			}
+		}
+
+		// 按svm_train的顺序提交k(k-1)/2个子问题
+		int npairs = nrClass * (nrClass - 1) / 2;
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(threads, npairs), new ThreadFactory() {
+					public Thread newThread( Runnable r ) {
+						Thread t = new Thread(r, "libsvm-train");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		List<Future<Pair>> results = new ArrayList<Future<Pair>>(npairs);
+		for ( int i = 0 ; i < nrClass ; i++ ) {
+			for ( int j = i + 1 ; j < nrClass ; j++ ) {
+				final int ci = i;
+				final int cj = j;
+				results.add(executor.submit(new Callable<Pair>() {
+					public Pair call() throws Exception {
+						return trainPair(x, start, count, ci, cj, param, weightedC);
+					}
+				}));
+			}
+		}
+
+		Pair [] f = new Pair[npairs];
+		try {
+			for ( int p = 0 ; p < npairs ; p++ ) {
+				f[p] = results.get(p).get();
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("libsvm training interrupted", e);
+		} catch ( ExecutionException e ) {
+			throw new RuntimeException("libsvm training failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// 以下和svm_train组装模型的过程相同
+		boolean [] nonzero = new boolean[l];
+		int p = 0;
+		for ( int i = 0 ; i < nrClass ; i++ ) {
+			for ( int j = i + 1 ; j < nrClass ; j++ ) {
+				int si = start[i], sj = start[j];
+				int ci = count[i], cj = count[j];
+				for ( int k = 0 ; k < ci ; k++ ) {
+					if ( Math.abs(f[p].alpha[k]) > 0 ) nonzero[si + k] = true;
+				}
+				for ( int k = 0 ; k < cj ; k++ ) {
+					if ( Math.abs(f[p].alpha[ci + k]) > 0 ) nonzero[sj + k] = true;
+				}
+				p++;
+			}
+		}
+
+		double [] rho = new double[npairs];
+		double [] probA = null;
+		double [] probB = null;
+		if ( param.probability == 1 ) {
+			probA = new double[npairs];
+			probB = new double[npairs];
+		}
+		for ( p = 0 ; p < npairs ; p++ ) {
+			rho[p] = f[p].rho;
+			if ( probA != null ) {
+				probA[p] = f[p].probA;
+				probB[p] = f[p].probB;
+			}
+		}
+
+		int nnz = 0;
+		int [] nSV = new int[nrClass];
+		for ( int i = 0 ; i < nrClass ; i++ ) {
+			for ( int j = 0 ; j < count[i] ; j++ ) {
+				if ( nonzero[start[i] + j] ) {
+					nSV[i]++;
+					nnz++;
+				}
+			}
+		}
+		System.err.print("Total nSV = " + nnz + "\n");
+
+		svm_node [][] sv = new svm_node[nnz][];
+		p = 0;
+		for ( int i = 0 ; i < l ; i++ ) {
+			if ( nonzero[i] ) sv[p++] = x[i];
+		}
+		int [] nzStart = new int[nrClass];
+		for ( int i = 1 ; i < nrClass ; i++ ) {
+			nzStart[i] = nzStart[i - 1] + nSV[i - 1];
+		}
+
+		// 子问题(i,j)中类别i的系数在svCoef[j-1]，类别j的系数在svCoef[i]
+		double [][] svCoef = new double[nrClass - 1][nnz];
+		p = 0;
+		for ( int i = 0 ; i < nrClass ; i++ ) {
+			for ( int j = i + 1 ; j < nrClass ; j++ ) {
+				int si = start[i], sj = start[j];
+				int ci = count[i], cj = count[j];
+				int q = nzStart[i];
+				for ( int k = 0 ; k < ci ; k++ ) {
+					if ( nonzero[si + k] ) svCoef[j - 1][q++] = f[p].alpha[k];
+				}
+				q = nzStart[j];
+				for ( int k = 0 ; k < cj ; k++ ) {
+					if ( nonzero[sj + k] ) svCoef[i][q++] = f[p].alpha[ci + k];
+				}
+				p++;
+			}
+		}
+
+		svm_model model = new svm_model();
+		Object [] values = { param, nrClass, nnz, sv, svCoef, rho, probA, probB,
+				label.clone(), nSV };
+		try {
+			for ( int i = 0 ; i < modelFields.length ; i++ ) {
+				modelFields[i].set(model, values[i]);
+			}
+		} catch ( IllegalAccessException e ) {
+			throw new RuntimeException("libsvm training failed", e);
+		}
+		return model;
+	}
+
+	/**
+	 * 训练类别i和类别j之间的二类子问题，类别i为+1
+	 */
+	private static Pair trainPair( svm_node [][] x, int [] start, int [] count,
+			int i, int j, svm_parameter param, double [] weightedC )
+			throws Exception {
+		int si = start[i], sj = start[j];
+		int ci = count[i], cj = count[j];
+		svm_problem sub = new svm_problem();
+		sub.l = ci + cj;
+		sub.x = new svm_node[sub.l][];
+		sub.y = new double[sub.l];
+		for ( int k = 0 ; k < ci ; k++ ) {
+			sub.x[k] = x[si + k];
+			sub.y[k] = +1;
+		}
+		for ( int k = 0 ; k < cj ; k++ ) {
+			sub.x[ci + k] = x[sj + k];
+			sub.y[ci + k] = -1;
+		}
+
+		Pair pair = new Pair();
+		if ( param.probability == 1 ) {
+			double [] probAB = new double[2];
+			binaryProbability.invoke(null, sub, param, weightedC[i], weightedC[j], probAB);
+			pair.probA = probAB[0];
+			pair.probB = probAB[1];
+		}
+		Object f = trainOne.invoke(null, sub, param, weightedC[i], weightedC[j]);
+		pair.alpha = (double []) alphaField.get(f);
+		pair.rho = rhoField.getDouble(f);
+		return pair;
+	}
+}
@@ -0,0 +1,315 @@
+package org.thunlp.text.classifiers;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.thunlp.text.Lexicon;
+import org.thunlp.text.TrainingCache;
+
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * 直接在磁盘上的训练集cache（addTrainingText写出的tctscache文件）上训练的线性分类器，
+ * 不把训练集读入内存。
+ *
+ * 每个类别训练一个L2正则化的logistic regression（one-vs-rest），和liblinear的L2R_LR
+ * 模型含义相同，所以结果就是一个liblinear模型，classify、saveModel和BinaryModel都能
+ * 直接使用。两类问题只有一列权重，对应第一个类别。
+ *
+ * 每个epoch把cache分成若干个块，每块是连续的blockSize篇文档，按随机顺序遍历所有的块。
+ * 每次顺序读入blocksPerRound个块，在内存中打乱这些文档的顺序，再逐篇用SGD更新。cache
+ * 中的文档是按类别成块写入的，一次读入多个不相邻的块，同一轮中才会有不同类别的文档。
+ * 特征选择的映射和tf-idf变换在读的时候完成，公式和createLiblinearProblem相同：
+ * log(tf + 1) * log((ndocs + 1) / df)，再归一化为单位向量。使用特征哈希时tf可以是负数，
+ * 按sign(tf) * log(|tf| + 1)计算。
+ *
+ * 内存占用是权重矩阵（特征数 * 类别数）、按原始词id索引的idf，以及一轮读入的
+ * blockSize * blocksPerRound篇文档的特征，和训练集的大小无关。每个块都是顺序读取的，
+ * 不需要为每篇文档定位一次。
+ */
+public class StreamingLinearTrainer {
+	private int epochs = 10;
+	private double lambda = 1e-5;
+	private double eta0 = 1.0;
+	private long seed = 0;
+	private int blockSize = 64;
+	private int blocksPerRound = 16;
+
+	/**
+	 * @param epochs 遍历训练集的次数
+	 */
+	public void setEpochs( int epochs ) {
+		this.epochs = epochs;
+	}
+
+	/**
+	 * @param lambda L2正则化系数，对应liblinear中的1 / (C * ndocs)
+	 */
+	public void setLambda( double lambda ) {
+		this.lambda = lambda;
+	}
+
+	/**
+	 * @param eta0 初始学习率，第t步的学习率为eta0 / (1 + eta0 * lambda * t)
+	 */
+	public void setLearningRate( double eta0 ) {
+		this.eta0 = eta0;
+	}
+
+	public void setSeed( long seed ) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param blockSize 每块的文档数，块内的文档在cache中是连续的
+	 */
+	public void setBlockSize( int blockSize ) {
+		this.blockSize = Math.max(blockSize, 1);
+	}
+
+	/**
+	 * @param blocksPerRound 每次读入内存、一起打乱顺序的块数
+	 */
+	public void setBlocksPerRound( int blocksPerRound ) {
+		this.blocksPerRound = Math.max(blocksPerRound, 1);
+	}
+
+	/**
+	 * 训练模型
+	 * @param cache 训练集cache
+	 * @param lexicon 特征选择前的词典，提供df
+	 * @param selectedFeatures 特征选择的结果，原始词id到新特征id（从0开始）的对应表，
+	 * 没有选中的为-1
+	 * @param ndocs 训练集的文档数
+	 * @param nclasses 类别数
+	 * @return 训练好的模型；读取cache出错时返回null
+	 */
+	public Model train( TrainingCache cache, Lexicon lexicon,
+			int [] selectedFeatures, int ndocs, int nclasses ) {
+		int [] df = new int[lexicon.getIdLimit()];
+		for ( int tid = 0 ; tid < selectedFeatures.length && tid < df.length ; tid++ ) {
+			if ( selectedFeatures[tid] >= 0 ) {
+				df[tid] = lexicon.getDocumentFrequency(tid);
+			}
+		}
+		return train(cache, df, selectedFeatures, ndocs, nclasses);
+	}
+
+	/**
+	 * 训练模型
+	 * @param cache 训练集cache
+	 * @param df 特征选择前每个特征的df，只用到被选中的特征
+	 * @param selectedFeatures 特征选择的结果，原始特征id到新特征id（从0开始）的对应表，
+	 * 没有选中的为-1
+	 * @param ndocs 训练集的文档数
+	 * @param nclasses 类别数
+	 * @return 训练好的模型；读取cache出错时返回null
+	 */
+	public Model train( TrainingCache cache, int [] df,
+			int [] selectedFeatures, int ndocs, int nclasses ) {
+		// 原始词id到新特征id和idf的映射，没有被选中的词为-1
+		int [] featureOf = new int[df.length];
+		double [] idf = new double[df.length];
+		Arrays.fill(featureOf, -1);
+		int nrFeature = 0;
+		for ( int tid = 0 ; tid < selectedFeatures.length && tid < featureOf.length ; tid++ ) {
+			int fid = selectedFeatures[tid];
+			if ( fid < 0 ) {
+				continue;
+			}
+			featureOf[tid] = fid;
+			idf[tid] = Math.log( (double) ( ndocs + 1 ) / df[tid] );
+			nrFeature = Math.max(nrFeature, fid + 1);
+		}
+
+		final boolean [] seen = new boolean[nclasses];
+		try {
+			cache.scan(0, cache.size(), new TrainingCache.Handler() {
+				public void document( int index, TrainingCache.Document doc ) {
+					if ( doc.label >= 0 && doc.label < seen.length ) {
+						seen[doc.label] = true;
+					}
+				}
+			});
+		} catch ( IOException e ) {
+			return null;
+		}
+		int n = cache.size();
+		int nlabels = 0;
+		for ( boolean b : seen ) {
+			if ( b ) nlabels++;
+		}
+		// 类别按编号排列，和createLiblinearProblem按类别排序后liblinear得到的顺序一致
+		int [] labels = new int[nlabels];
+		int [] column = new int[nclasses];
+		for ( int c = 0, k = 0 ; c < nclasses ; c++ ) {
+			column[c] = -1;
+			if ( seen[c] ) {
+				column[c] = k;
+				labels[k++] = c;
+			}
+		}
+		if ( nlabels < 2 ) {
+			System.err.println("streaming trainer needs at least two classes");
+			return null;
+		}
+		int nrW = nlabels == 2 ? 1 : nlabels;
+
+		// 权重 w = scale * v，L2正则化只需要缩小scale，更新保持稀疏
+		double [] v = new double[nrFeature * nrW];
+		double scale = 1;
+		double [] scores = new double[nrW];
+		int nblocks = (n + blockSize - 1) / blockSize;
+		int [] blockOrder = new int[nblocks];
+		for ( int b = 0 ; b < nblocks ; b++ ) {
+			blockOrder[b] = b;
+		}
+		Round round = new Round(featureOf, idf, column);
+		Random random = new Random(seed);
+		long t = 0;
+
+		try {
+			for ( int epoch = 0 ; epoch < epochs ; epoch++ ) {
+				long start = System.currentTimeMillis();
+				shuffle(blockOrder, nblocks, random);
+				double loss = 0;
+				for ( int r = 0 ; r < nblocks ; r += blocksPerRound ) {
+					round.clear();
+					for ( int b = r ; b < nblocks && b < r + blocksPerRound ; b++ ) {
+						int from = blockOrder[b] * blockSize;
+						cache.scan(from, Math.min(from + blockSize, n), round);
+					}
+					shuffle(round.order, round.size, random);
+					for ( int k = 0 ; k < round.size ; k++ ) {
+						int d = round.order[k];
+						int y = round.labels[d];
+						int begin = round.starts[d];
+						int end = round.starts[d + 1];
+
+						Arrays.fill(scores, 0);
+						for ( int i = begin ; i < end ; i++ ) {
+							int base = round.fids[i] * nrW;
+							for ( int c = 0 ; c < nrW ; c++ ) {
+								scores[c] += v[base + c] * round.values[i];
+							}
+						}
+
+						double eta = eta0 / (1 + eta0 * lambda * t);
+						scale *= 1 - eta * lambda;
+						for ( int c = 0 ; c < nrW ; c++ ) {
+							double s = scale * scores[c];
+							double p = 1 / (1 + Math.exp(-s));
+							boolean positive = c == y;
+							loss += positive ? -logSigmoid(s) : -logSigmoid(-s);
+							// 对v的梯度要除以scale
+							scores[c] = eta * ((positive ? 1 : 0) - p) / scale;
+						}
+						for ( int i = begin ; i < end ; i++ ) {
+							int base = round.fids[i] * nrW;
+							for ( int c = 0 ; c < nrW ; c++ ) {
+								v[base + c] += scores[c] * round.values[i];
+							}
+						}
+						if ( scale < 1e-9 ) {
+							for ( int i = 0 ; i < v.length ; i++ ) {
+								v[i] *= scale;
+							}
+							scale = 1;
+						}
+						t++;
+					}
+				}
+				System.err.println("epoch " + (epoch + 1) + " average loss "
+						+ (loss / n) + " (" + (System.currentTimeMillis() - start) + " ms)");
+			}
+		} catch ( IOException e ) {
+			return null;
+		}
+
+		for ( int i = 0 ; i < v.length ; i++ ) {
+			v[i] *= scale;
+		}
+		return LinearModels.create(SolverType.L2R_LR, labels, nrFeature, -1, v);
+	}
+
+	private static void shuffle( int [] a, int n, Random random ) {
+		for ( int i = n - 1 ; i > 0 ; i-- ) {
+			int j = random.nextInt(i + 1);
+			int tmp = a[i];
+			a[i] = a[j];
+			a[j] = tmp;
+		}
+	}
+
+	/**
+	 * 一轮读入内存的文档，已经做过特征选择和tf-idf变换。第d篇文档的特征是
+	 * fids和values中[starts[d], starts[d + 1])的部分，没有选中特征的文档不保留
+	 */
+	private static class Round implements TrainingCache.Handler {
+		private final int [] featureOf;
+		private final double [] idf;
+		private final int [] column;
+		int size = 0;
+		int [] labels = new int[256];
+		int [] starts = new int[257];
+		int [] order = new int[256];
+		int [] fids = new int[4096];
+		double [] values = new double[4096];
+
+		Round( int [] featureOf, double [] idf, int [] column ) {
+			this.featureOf = featureOf;
+			this.idf = idf;
+			this.column = column;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		public void document( int index, TrainingCache.Document doc ) {
+			int begin = starts[size];
+			if ( fids.length < begin + doc.nterms ) {
+				int capacity = Math.max(fids.length * 2, begin + doc.nterms);
+				fids = Arrays.copyOf(fids, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			int m = begin;
+			double normalizer = 0;
+			for ( int i = 0 ; i < doc.nterms ; i++ ) {
+				int tid = doc.ids[i];
+				int fid = featureOf[tid];
+				if ( fid >= 0 ) {
+					int tf = doc.tfs[i];
+					double x = tf > 0 ? Math.log( tf + 1 ) * idf[tid]
+							: -Math.log( -tf + 1 ) * idf[tid];
+					fids[m] = fid;
+					values[m] = x;
+					normalizer += x * x;
+					m++;
+				}
+			}
+			if ( m == begin ) {
+				return;
+			}
+			normalizer = Math.sqrt(normalizer);
+			for ( int i = begin ; i < m ; i++ ) {
+				values[i] /= normalizer;
+			}
+			if ( size + 1 == labels.length ) {
+				labels = Arrays.copyOf(labels, labels.length * 2);
+				starts = Arrays.copyOf(starts, labels.length + 1);
+				order = Arrays.copyOf(order, labels.length);
+			}
+			labels[size] = column[doc.label];
+			order[size] = size;
+			size++;
+			starts[size] = m;
+		}
+	}
+
+	private static double logSigmoid( double s ) {
+		return s >= 0 ? -Math.log1p(Math.exp(-s)) : s - Math.log1p(Math.exp(s));
+	}
+}
@@ -1,5 +1,8 @@
 package org.thunlp.text.classifiers;
 
+import java.util.List;
+
+import org.thunlp.language.chinese.TokenBuffer;
 import org.thunlp.text.Lexicon;
 
 /**
@@ -21,6 +24,23 @@ public interface TextClassifier {
    */
   public boolean addTrainingText ( String text, int label );
   
+  /**
+   * 训练文本的预处理和分词，和addTrainingText中的相同。不修改分类器的状态，可以在多个
+   * 线程中同时调用
+   * @param text 训练文本
+   * @param tokens 存放分词结果
+   */
+  public void segmentTrainingText ( String text, TokenBuffer tokens );
+  
+  /**
+   * 把segmentTrainingText分好词的文本加入到训练集合中。按同样的顺序加入时，结果和
+   * 对原文调用addTrainingText相同
+   * @param tokens 分词结果
+   * @param label 标签
+   * @return 加入是否成功
+   */
+  public boolean addTrainingTokens ( TokenBuffer tokens, int label );
+  
   /**
    * 利用已经给出的训练集合训练分类器
    * @return 训练是否成功
@@ -54,6 +74,15 @@ public interface TextClassifier {
    */
   public ClassifyResult[] classify( String text, int topN );
   
+  /**
+   * 对一批文本进行分类，结果和对每篇文本调用classify(text, topN)相同，按输入的顺序返回。
+   * 分类器设置了线程池时把文本分段交给线程池同时分类，每个线程重复使用自己的缓冲区
+   * @param texts 待分类文本
+   * @param topN 前N个结果候选
+   * @return 第i个元素是第i篇文本的分类结果
+   */
+  public ClassifyResult[][] classifyBatch( List<? extends CharSequence> texts, int topN );
+  
   /**
    * 将模型序列化为一个字符串.
    * @return
@@ -73,7 +102,7 @@ public interface TextClassifier {
   
   /**
    * 返回训练字典
-   * @return 字典
+   * @return 字典；使用特征哈希的分类器没有字典，返回null
    */
   public Lexicon getLexicon();
 }
@@ -0,0 +1,272 @@
+package org.thunlp.text.classifiers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.thunlp.io.DocumentReader;
+import org.thunlp.language.chinese.TokenBuffer;
+
+/**
+ * 多线程读入训练语料的流水线，供BasicTextClassifier.addfiles使用。
+ *
+ * 一篇文档依次经过四个阶段：读文件、trainerfilter预处理、分词、合并。前三个阶段各由
+ * 若干线程处理，阶段之间用有界队列连接；合并阶段在调用者的线程中执行，按文件的原始
+ * 顺序把分词结果交给TextClassifier.addTrainingTokens，由它分配词典id并写训练集的
+ * cache。所以得到的词典和cache与逐个调用addTrainingText完全相同。
+ *
+ * 分类器的分词器能由DocumentTokenizer直接处理时，读文件的阶段直接把文件切分成词，
+ * 预处理和分词两个阶段跳过这篇文档。
+ *
+ * 同时在流水线中的文档数有上限，先完成的文档在合并阶段最多等待这么多篇，内存占用
+ * 不随语料大小增长。结束后在System.err输出每个阶段的吞吐量。
+ */
+public class TrainingPipeline {
+	private final BasicTextClassifier owner;
+	private final int threads;
+	private final int queueSize;
+	/**
+	 * 同时在流水线中的最多文档数，也是合并阶段重新排序的窗口大小
+	 */
+	private final int window;
+
+	private static class Doc {
+		final int seq;
+		final String category;
+		final String filename;
+		String text;
+		TokenBuffer tokens;
+		boolean readFailed = false;
+		Throwable error = null;
+
+		Doc( int seq, String category, String filename ) {
+			this.seq = seq;
+			this.category = category;
+			this.filename = filename;
+		}
+	}
+
+	/**
+	 * 一个阶段的统计，items对读文件和预处理是字符数，对分词和合并是词数
+	 */
+	private static class Stage {
+		final String name;
+		final int threads;
+		final AtomicLong docs = new AtomicLong();
+		final AtomicLong items = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+
+		Stage( String name, int threads ) {
+			this.name = name;
+			this.threads = threads;
+		}
+
+		void record( long start, long n ) {
+			nanos.addAndGet(System.nanoTime() - start);
+			docs.incrementAndGet();
+			items.addAndGet(n);
+		}
+
+		String report( String unit ) {
+			double seconds = nanos.get() / 1e9;
+			double rate = seconds > 0 ? docs.get() / seconds : 0;
+			return String.format(
+					"  %-10s %2d thread(s) %8d docs %12d %-6s busy %8.2f s %10.1f docs/s/thread",
+					name, threads, docs.get(), items.get(), unit, seconds, rate);
+		}
+	}
+
+	/**
+	 * 一个工作线程：从in中取文档，处理后放入out
+	 */
+	private abstract class Worker implements Runnable {
+		private final BlockingQueue<Doc> in;
+		private final BlockingQueue<Doc> out;
+		protected final Stage stage;
+
+		Worker( BlockingQueue<Doc> in, BlockingQueue<Doc> out, Stage stage ) {
+			this.in = in;
+			this.out = out;
+			this.stage = stage;
+		}
+
+		/**
+		 * @return 处理的字符数或词数
+		 */
+		abstract long process( Doc doc ) throws Exception;
+
+		public void run() {
+			try {
+				while ( true ) {
+					Doc doc = in.take();
+					if ( doc.error == null && ! doc.readFailed && doc.tokens == null ) {
+						long start = System.nanoTime();
+						try {
+							stage.record(start, process(doc));
+						} catch ( Throwable e ) {
+							// 交给合并阶段按顺序抛出
+							doc.error = e;
+						}
+					}
+					out.put(doc);
+				}
+			} catch ( InterruptedException e ) {
+				// 流水线结束
+			}
+		}
+	}
+
+	/**
+	 * @param owner 提供trainerfilter、文件编码和分类器
+	 * @param threads 读文件、预处理和分词每个阶段的线程数
+	 */
+	public TrainingPipeline( BasicTextClassifier owner, int threads ) {
+		this.owner = owner;
+		this.threads = Math.max(1, threads);
+		this.queueSize = Math.max(16, 4 * this.threads);
+		this.window = 8 * queueSize;
+	}
+
+	/**
+	 * 按顺序加入训练文件，返回时所有文件都已经交给分类器
+	 * @param categories 每个文件的类别名
+	 * @param files 文件路径，和categories一一对应
+	 */
+	public void run( final List<String> categories, final List<String> files ) {
+		final int n = files.size();
+		final BlockingQueue<Doc> toRead = new ArrayBlockingQueue<Doc>(queueSize);
+		final BlockingQueue<Doc> toFilter = new ArrayBlockingQueue<Doc>(queueSize);
+		final BlockingQueue<Doc> toSegment = new ArrayBlockingQueue<Doc>(queueSize);
+		final BlockingQueue<Doc> toMerge = new ArrayBlockingQueue<Doc>(queueSize);
+		final BlockingQueue<TokenBuffer> freeTokens = new ArrayBlockingQueue<TokenBuffer>(window);
+		final Semaphore inFlight = new Semaphore(window);
+
+		final Stage read = new Stage("read", threads);
+		final Stage filter = new Stage("normalize", threads);
+		final Stage segment = new Stage("segment", threads);
+		Stage merge = new Stage("merge", 1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(3 * threads + 1,
+				new ThreadFactory() {
+					public Thread newThread( Runnable r ) {
+						Thread t = new Thread(r, "training-pipeline");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		long start = System.nanoTime();
+		try {
+			// 按顺序把文件送入流水线，同时在流水线中的文档数不超过window
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						for ( int i = 0 ; i < n ; i++ ) {
+							inFlight.acquire();
+							toRead.put(new Doc(i, categories.get(i), files.get(i)));
+						}
+					} catch ( InterruptedException e ) {
+						// 流水线提前结束
+					}
+				}
+			});
+			for ( int t = 0 ; t < threads ; t++ ) {
+				executor.execute(new Worker(toRead, toFilter, read) {
+					private DocumentReader reader = null;
+					private DocumentTokenizer tokenizer = null;
+
+					long process( Doc doc ) {
+						try {
+							if ( reader == null ) {
+								reader = new DocumentReader(owner.encoding);
+								tokenizer = DocumentTokenizer.create(owner.classifier,
+										owner.encoding);
+							}
+							if ( tokenizer != null ) {
+								TokenBuffer tokens = freeTokens.poll();
+								if ( tokens == null ) {
+									tokens = new TokenBuffer();
+								}
+								int n = tokenizer.tokenize(new File(doc.filename), tokens);
+								doc.tokens = tokens;
+								return n;
+							}
+							// 缓冲区由这个线程重复使用，交给下一个阶段的只是trainerfilter用到的部分
+							doc.text = reader.read(new File(doc.filename),
+									BasicTextClassifier.TRAINER_FILTER_CHARS).toString();
+						} catch ( IOException e ) {
+							doc.readFailed = true;
+							return 0;
+						}
+						return doc.text.length();
+					}
+				});
+				executor.execute(new Worker(toFilter, toSegment, filter) {
+					long process( Doc doc ) {
+						doc.text = owner.trainerfilter(doc.text);
+						return doc.text.length();
+					}
+				});
+				executor.execute(new Worker(toSegment, toMerge, segment) {
+					long process( Doc doc ) {
+						TokenBuffer tokens = freeTokens.poll();
+						if ( tokens == null ) {
+							tokens = new TokenBuffer();
+						}
+						owner.classifier.segmentTrainingText(doc.text, tokens);
+						doc.text = null;
+						doc.tokens = tokens;
+						return tokens.size();
+					}
+				});
+			}
+
+			// 合并阶段：先到的文档放在环形窗口里，按seq的顺序交给分类器
+			Doc [] pending = new Doc[window];
+			int next = 0;
+			while ( next < n ) {
+				Doc doc = toMerge.take();
+				pending[doc.seq % window] = doc;
+				while ( next < n && (doc = pending[next % window]) != null ) {
+					pending[next % window] = null;
+					if ( doc.error != null ) {
+						throw new RuntimeException("failed to ingest " + doc.filename,
+								doc.error);
+					}
+					long t = System.nanoTime();
+					if ( doc.readFailed ) {
+						System.err.println("ERROR : AddTrainingText()  Can't read content from "
+								+ doc.filename);
+					} else {
+						owner.addTrainingTokens(doc.category, doc.filename, doc.tokens);
+						merge.record(t, doc.tokens.size());
+						doc.tokens.clear();
+						freeTokens.offer(doc.tokens);
+					}
+					owner.trainingFileAdded();
+					inFlight.release();
+					next++;
+				}
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("training pipeline interrupted", e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.println(String.format("ingested %d files in %.2f s (%.1f docs/s)",
+				n, seconds, seconds > 0 ? n / seconds : 0));
+		System.err.println(read.report("chars"));
+		System.err.println(filter.report("chars"));
+		System.err.println(segment.report("tokens"));
+		System.err.println(merge.report("tokens"));
+	}
+}